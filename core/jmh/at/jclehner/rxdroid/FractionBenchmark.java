@@ -0,0 +1,71 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+
+package at.jclehner.rxdroid;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Summing doses using Fraction and FractionAccumulator.
+ *
+ * @author Joseph Lehner
+ */
+@State(Scope.Thread)
+public class FractionBenchmark
+{
+	private Fraction[] mDoses;
+
+	@Setup
+	public void setup()
+	{
+		final Random random = new Random(1);
+		mDoses = new Fraction[10000];
+
+		for(int i = 0; i != mDoses.length; ++i)
+			mDoses[i] = Fraction.valueOf(random.nextInt(8), 1 + random.nextInt(4));
+	}
+
+	@Benchmark
+	public Fraction sumWithPlus()
+	{
+		Fraction sum = Fraction.ZERO;
+		for(Fraction dose : mDoses)
+			sum = sum.plus(dose);
+
+		return sum;
+	}
+
+	@Benchmark
+	public Fraction sumWithAccumulator()
+	{
+		final FractionAccumulator acc = new FractionAccumulator();
+		for(Fraction dose : mDoses)
+			acc.add(dose);
+
+		return acc.toFraction();
+	}
+}
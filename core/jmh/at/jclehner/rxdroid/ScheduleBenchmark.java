@@ -0,0 +1,130 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+
+package at.jclehner.rxdroid;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Repeat matching and dose totals over a year, as done for each drug when
+ * projecting supplies.
+ *
+ * @author Joseph Lehner
+ */
+@State(Scope.Thread)
+public class ScheduleBenchmark
+{
+	private static final Fraction[] DOSES = {
+		new Fraction(1), new Fraction(1, 2), Fraction.ZERO, new Fraction(1, 4)
+	};
+
+	@Param({ "0", "1", "2", "4" })
+	public int repeatMode;
+
+	private Date[] mDates;
+	private DoseTotals.Regimen mRegimen;
+
+	@Setup
+	public void setup()
+	{
+		final Calendar cal = new GregorianCalendar(2013, Calendar.JANUARY, 1);
+		final Date origin = cal.getTime();
+
+		mDates = new Date[365];
+		for(int i = 0; i != mDates.length; ++i)
+		{
+			mDates[i] = cal.getTime();
+			cal.add(Calendar.DAY_OF_MONTH, 1);
+		}
+
+		final long repeatArg = repeatMode == RepeatRules.REPEAT_WEEKDAYS ? 0x15 : 3;
+
+		mRegimen = new DoseTotals.Regimen() {
+
+			@Override
+			public int getRepeatMode() {
+				return repeatMode;
+			}
+
+			@Override
+			public long getRepeatArg() {
+				return repeatArg;
+			}
+
+			@Override
+			public Date getRepeatOrigin() {
+				return origin;
+			}
+
+			@Override
+			public boolean hasDoseOnDate(Date date) {
+				return RepeatRules.hasDoseOnDate(date, repeatMode, repeatArg, origin, null);
+			}
+
+			@Override
+			public Fraction getDose(int doseTime) {
+				return DOSES[doseTime];
+			}
+
+			@Override
+			public Fraction getDose(int doseTime, Date date) {
+				return hasDoseOnDate(date) ? DOSES[doseTime] : Fraction.ZERO;
+			}
+		};
+	}
+
+	@Benchmark
+	public int hasDoseOnDate()
+	{
+		int count = 0;
+		for(Date date : mDates)
+		{
+			if(mRegimen.hasDoseOnDate(date))
+				++count;
+		}
+
+		return count;
+	}
+
+	@Benchmark
+	public Fraction totalDosePerDay()
+	{
+		final FractionAccumulator total = new FractionAccumulator();
+		for(Date date : mDates)
+			DoseTotals.addTotalDose(mRegimen, date, total);
+
+		return total.toFraction();
+	}
+
+	@Benchmark
+	public int supplyDaysLeft() {
+		return DoseTotals.getSupplyDaysLeft(mRegimen, 100);
+	}
+}
@@ -0,0 +1,329 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+/**
+ * The dose times of a day, compiled for fast lookups.
+ * <p>
+ * All offsets are wall-clock offsets from midnight, so a timeline does not depend
+ * on the time zone; it only needs to be rebuilt if the dose time settings change.
+ * Dose times must not overlap.
+ *
+ * @author Joseph Lehner
+ */
+public final class DoseTimeTimeline
+{
+	// Schedule.TIME_INVALID and Drug.TIME_INVALID refer to this value
+	public static final int TIME_INVALID = 4;
+
+	private static final long MILLIS_PER_DAY = 24L * 3600 * 1000;
+
+	// Each dose time's interval, for the day before, the day itself and the day
+	// after, sorted by begin offset. An end offset may exceed 24h, if the dose
+	// time wraps around midnight.
+	private final long[] mBegins;
+	private final long[] mEnds;
+	private final int[] mDoseTimes;
+	private final int[] mDayOffsets;
+
+	// All begins and ends within a day, i.e. in [0, 24h), sorted by offset.
+	private final long[] mBoundaries;
+	private final int[] mBoundaryDoseTimes;
+	private final int[] mBoundaryDayOffsets;
+	private final boolean[] mBoundaryIsEnd;
+
+	/**
+	 * A dose time's begin or end, at an actual point in time.
+	 */
+	public static final class Boundary
+	{
+		public final long timeInMillis;
+		public final Date date;
+		public final int doseTime;
+		public final boolean isEnd;
+
+		private Boundary(long timeInMillis, Date date, int doseTime, boolean isEnd)
+		{
+			this.timeInMillis = timeInMillis;
+			this.date = date;
+			this.doseTime = doseTime;
+			this.isEnd = isEnd;
+		}
+	}
+
+	/**
+	 * Creates a timeline.
+	 *
+	 * @param beginOffsets Each dose time's begin, or <code>-1</code> if it is not available.
+	 * @param endOffsets Each dose time's end. May be less than the begin, if the dose time wraps around midnight.
+	 */
+	public DoseTimeTimeline(long[] beginOffsets, long[] endOffsets)
+	{
+		int count = 0;
+		for(long begin : beginOffsets)
+		{
+			if(begin != -1)
+				++count;
+		}
+
+		mBegins = new long[3 * count];
+		mEnds = new long[3 * count];
+		mDoseTimes = new int[3 * count];
+		mDayOffsets = new int[3 * count];
+
+		mBoundaries = new long[2 * count];
+		mBoundaryDoseTimes = new int[2 * count];
+		mBoundaryDayOffsets = new int[2 * count];
+		mBoundaryIsEnd = new boolean[2 * count];
+
+		int i = 0, k = 0;
+
+		for(int doseTime = 0; doseTime != beginOffsets.length; ++doseTime)
+		{
+			final long begin = beginOffsets[doseTime];
+			if(begin == -1)
+				continue;
+
+			long end = endOffsets[doseTime];
+			if(end < begin)
+				end += MILLIS_PER_DAY;
+
+			for(int dayOffset = -1; dayOffset <= 1; ++dayOffset, ++i)
+			{
+				mBegins[i] = begin + dayOffset * MILLIS_PER_DAY;
+				mEnds[i] = end + dayOffset * MILLIS_PER_DAY;
+				mDoseTimes[i] = doseTime;
+				mDayOffsets[i] = dayOffset;
+			}
+
+			mBoundaries[k] = begin;
+			mBoundaryDoseTimes[k] = doseTime;
+			mBoundaryDayOffsets[k] = 0;
+			mBoundaryIsEnd[k++] = false;
+
+			// a wrapping end belongs to the dose time of the previous day
+			final boolean wraps = end >= MILLIS_PER_DAY;
+			mBoundaries[k] = wraps ? end - MILLIS_PER_DAY : end;
+			mBoundaryDoseTimes[k] = doseTime;
+			mBoundaryDayOffsets[k] = wraps ? -1 : 0;
+			mBoundaryIsEnd[k++] = true;
+		}
+
+		sortIntervals();
+		sortBoundaries();
+	}
+
+	/**
+	 * Returns the dose time that is active at the specified wall-clock offset,
+	 * or {@link #TIME_INVALID}.
+	 */
+	public int getActiveDoseTime(long offset)
+	{
+		final int i = findActive(offset);
+		return i != -1 ? mDoseTimes[i] : TIME_INVALID;
+	}
+
+	/**
+	 * Returns the date of the dose time that is active at the specified time,
+	 * relative to the time's date, i.e. <code>-1</code> if the active dose time
+	 * began on the previous day.
+	 */
+	public int getActiveDayOffset(long offset)
+	{
+		final int i = findActive(offset);
+		return i != -1 ? mDayOffsets[i] : 0;
+	}
+
+	/**
+	 * Returns the next dose time to begin after the specified wall-clock offset.
+	 */
+	public int getNextDoseTime(long offset)
+	{
+		final int i = findNext(offset);
+		return i != -1 ? mDoseTimes[i] : TIME_INVALID;
+	}
+
+	/**
+	 * Returns the date of the next dose time, relative to the date of the specified time.
+	 */
+	public int getNextDayOffset(long offset)
+	{
+		final int i = findNext(offset);
+		return i != -1 ? mDayOffsets[i] : 0;
+	}
+
+	/**
+	 * Returns the next <code>count</code> begins and ends of dose times after the specified time.
+	 */
+	public List<Boundary> getNextBoundaries(Calendar time, int count)
+	{
+		final List<Boundary> boundaries = new ArrayList<Boundary>(count);
+		if(mBoundaries.length == 0)
+			return boundaries;
+
+		final Calendar date = getDatePart(time);
+		final long offset = getOffsetFromMidnight(time);
+
+		// first boundary after offset
+		int i = upperBound(mBoundaries, offset);
+
+		while(boundaries.size() != count)
+		{
+			if(i == mBoundaries.length)
+			{
+				date.add(Calendar.DAY_OF_MONTH, 1);
+				i = 0;
+			}
+
+			final Calendar boundaryTime = (Calendar) date.clone();
+			setOffsetFromMidnight(boundaryTime, mBoundaries[i]);
+
+			final Calendar doseTimeDate = (Calendar) date.clone();
+			doseTimeDate.add(Calendar.DAY_OF_MONTH, mBoundaryDayOffsets[i]);
+
+			boundaries.add(new Boundary(boundaryTime.getTimeInMillis(), doseTimeDate.getTime(),
+					mBoundaryDoseTimes[i], mBoundaryIsEnd[i]));
+
+			++i;
+		}
+
+		return boundaries;
+	}
+
+	/**
+	 * Returns the wall-clock offset from midnight, with a resolution of one second.
+	 */
+	public static long getOffsetFromMidnight(Calendar time)
+	{
+		final int hour = time.get(Calendar.HOUR_OF_DAY);
+		final int minute = time.get(Calendar.MINUTE);
+		final int second = time.get(Calendar.SECOND);
+
+		return 1000L * (hour * 3600 + minute * 60 + second);
+	}
+
+	private int findActive(long offset)
+	{
+		// the last interval beginning at or before offset
+		final int i = upperBound(mBegins, offset) - 1;
+		if(i >= 0 && offset < mEnds[i])
+			return i;
+
+		return -1;
+	}
+
+	private int findNext(long offset)
+	{
+		final int i = upperBound(mBegins, offset);
+		return i != mBegins.length ? i : -1;
+	}
+
+	/**
+	 * Returns the index of the first element greater than <code>value</code>.
+	 */
+	private static int upperBound(long[] values, long value)
+	{
+		int low = 0, high = values.length;
+
+		while(low < high)
+		{
+			final int mid = (low + high) >>> 1;
+			if(values[mid] <= value)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	private static Calendar getDatePart(Calendar time)
+	{
+		final Calendar date = new GregorianCalendar(time.getTimeZone());
+		date.clear();
+		date.set(time.get(Calendar.YEAR), time.get(Calendar.MONTH), time.get(Calendar.DAY_OF_MONTH));
+		return date;
+	}
+
+	private static void setOffsetFromMidnight(Calendar date, long offset)
+	{
+		// Setting the fields instead of adding the offset, so DST changes
+		// are handled correctly.
+		final int seconds = (int) (offset / 1000);
+
+		date.set(Calendar.HOUR_OF_DAY, seconds / 3600);
+		date.set(Calendar.MINUTE, (seconds / 60) % 60);
+		date.set(Calendar.SECOND, seconds % 60);
+	}
+
+	private void sortIntervals()
+	{
+		// insertion sort, as there are at most a dozen intervals
+		for(int i = 1; i < mBegins.length; ++i)
+		{
+			for(int j = i; j > 0 && mBegins[j - 1] > mBegins[j]; --j)
+			{
+				swap(mBegins, j, j - 1);
+				swap(mEnds, j, j - 1);
+				swap(mDoseTimes, j, j - 1);
+				swap(mDayOffsets, j, j - 1);
+			}
+		}
+	}
+
+	private void sortBoundaries()
+	{
+		for(int i = 1; i < mBoundaries.length; ++i)
+		{
+			for(int j = i; j > 0 && mBoundaries[j - 1] > mBoundaries[j]; --j)
+			{
+				swap(mBoundaries, j, j - 1);
+				swap(mBoundaryDoseTimes, j, j - 1);
+				swap(mBoundaryDayOffsets, j, j - 1);
+
+				final boolean tmp = mBoundaryIsEnd[j];
+				mBoundaryIsEnd[j] = mBoundaryIsEnd[j - 1];
+				mBoundaryIsEnd[j - 1] = tmp;
+			}
+		}
+	}
+
+	private static void swap(long[] a, int i, int j)
+	{
+		final long tmp = a[i];
+		a[i] = a[j];
+		a[j] = tmp;
+	}
+
+	private static void swap(int[] a, int i, int j)
+	{
+		final int tmp = a[i];
+		a[i] = a[j];
+		a[j] = tmp;
+	}
+}
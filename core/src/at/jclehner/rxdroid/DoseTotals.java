@@ -0,0 +1,240 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+
+package at.jclehner.rxdroid;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import at.jclehner.rxdroid.util.DateMath;
+
+/**
+ * Dose and supply totals of a drug's regimen.
+ * <p>
+ * Drug implements {@link Regimen}, and Entries only wraps these functions.
+ *
+ * @author Joseph Lehner
+ */
+public final class DoseTotals
+{
+	private static final int DOSE_TIME_COUNT = DoseTimeTimeline.TIME_INVALID;
+
+	/**
+	 * A drug's doses, as seen by these functions.
+	 */
+	public interface Regimen
+	{
+		/**
+		 * Returns one of {@link RepeatRules}' repeat modes.
+		 */
+		int getRepeatMode();
+
+		long getRepeatArg();
+
+		Date getRepeatOrigin();
+
+		boolean hasDoseOnDate(Date date);
+
+		/**
+		 * Returns the dose at the specified dose time, regardless of the date.
+		 */
+		Fraction getDose(int doseTime);
+
+		/**
+		 * Returns the dose at the specified dose time and date.
+		 */
+		Fraction getDose(int doseTime, Date date);
+	}
+
+	/**
+	 * Adds the doses on the specified date to <code>outTotalDose</code>.
+	 *
+	 * @param date the date, or <code>null</code> to add the doses regardless of the date.
+	 */
+	public static void addTotalDose(Regimen regimen, Date date, FractionAccumulator outTotalDose)
+	{
+		if(date != null && !regimen.hasDoseOnDate(date))
+			return;
+
+		if(regimen.getRepeatMode() == RepeatRules.REPEAT_AS_NEEDED)
+			return;
+
+		for(int doseTime = 0; doseTime != DOSE_TIME_COUNT; ++doseTime)
+		{
+			if(date == null)
+				outTotalDose.add(regimen.getDose(doseTime));
+			else
+				outTotalDose.add(regimen.getDose(doseTime, date));
+		}
+	}
+
+	/**
+	 * Returns the total dose in a time period, without checking each day.
+	 */
+	public static Fraction getTotalDoseInTimePeriod(Regimen regimen, Date begin, Date end)
+	{
+		final int repeatMode = regimen.getRepeatMode();
+		final FractionAccumulator baseDose = new FractionAccumulator();
+		long doseMultiplier = 0;
+
+		if(repeatMode == RepeatRules.REPEAT_AS_NEEDED)
+			return Fraction.ZERO;
+		if(repeatMode == RepeatRules.REPEAT_DAILY)
+		{
+			addTotalDose(regimen, null, baseDose);
+			doseMultiplier = diffDays(begin, end);
+		}
+		else if(repeatMode == RepeatRules.REPEAT_EVERY_N_DAYS)
+		{
+			addTotalDose(regimen, null, baseDose);
+
+			final long arg = regimen.getRepeatArg();
+			final long daysInPeriod = diffDays(begin, end);
+
+			if(regimen.hasDoseOnDate(begin) || regimen.hasDoseOnDate(end))
+				doseMultiplier = 1;
+
+			doseMultiplier += daysInPeriod / arg;
+		}
+		else if(repeatMode == RepeatRules.REPEAT_WEEKDAYS)
+		{
+			addTotalDose(regimen, null, baseDose);
+
+			final long weekDays = regimen.getRepeatArg();
+			final Calendar cal = Calendar.getInstance();
+			cal.setTime(begin);
+			int weekDay;
+
+			// Manually check the days before the first Monday
+			while((weekDay = cal.get(Calendar.DAY_OF_WEEK)) != Calendar.MONDAY)
+			{
+				if(RepeatRules.isOnWeekDay(weekDays, weekDay))
+					++doseMultiplier;
+
+				cal.add(Calendar.DAY_OF_WEEK, 1);
+			}
+
+			final Date firstMonday = cal.getTime();
+
+			// Now check the days after the last Sunday
+			cal.setTime(end);
+
+			while((weekDay = cal.get(Calendar.DAY_OF_WEEK)) != Calendar.MONDAY)
+			{
+				if(RepeatRules.isOnWeekDay(weekDays, weekDay))
+					++doseMultiplier;
+
+				cal.add(Calendar.DAY_OF_WEEK, -1);
+			}
+
+			final Date lastSunday = cal.getTime();
+
+			// Now comes the easy part: dealing with the full week(s) in between
+			final long days = diffDays(firstMonday, lastSunday);
+			if(days > 7)
+			{
+				if(days % 7 != 0)
+					throw new IllegalStateException("Not a full week: " + firstMonday + " - " + lastSunday);
+
+				doseMultiplier += days / 7 * Long.bitCount(weekDays);
+			}
+		}
+		else if(repeatMode == RepeatRules.REPEAT_21_7)
+		{
+			addTotalDose(regimen, null, baseDose);
+
+			final Date origin = regimen.getRepeatOrigin();
+
+			long daysInTimePeriod = diffDays(begin, end);
+			final long daysFromOriginToBegin = diffDays(origin, begin);
+			final long daysFromOriginToEnd = diffDays(origin, end);
+
+			long index = daysFromOriginToBegin % 28;
+			if(index < 21)
+			{
+				final long days = 21 - index;
+				daysInTimePeriod -= days + 7;
+				doseMultiplier += days;
+			}
+
+			index = daysFromOriginToEnd % 28;
+			if(index < 21)
+			{
+				final long days = 21 - index;
+				daysInTimePeriod -= days + 7;
+				doseMultiplier += days;
+			}
+
+			if(daysInTimePeriod > 28)
+				doseMultiplier += (daysInTimePeriod * 3) / 4;
+		}
+		else
+			throw new UnsupportedOperationException();
+
+		return baseDose.multiplyBy(doseMultiplier).toFraction();
+	}
+
+	/**
+	 * Returns the number of days a supply will last.
+	 */
+	public static int getSupplyDaysLeft(Regimen regimen, double supply) {
+		return (int) (Math.floor(supply / getDailyDose(regimen) * getSupplyCorrectionFactor(regimen)));
+	}
+
+	/**
+	 * Returns the sum of the doses of a day with doses.
+	 */
+	public static double getDailyDose(Regimen regimen)
+	{
+		double dailyDose = 0.0;
+		for(int doseTime = 0; doseTime != DOSE_TIME_COUNT; ++doseTime)
+			dailyDose += regimen.getDose(doseTime).doubleValue();
+		return dailyDose;
+	}
+
+	/**
+	 * Returns the ratio of all days to days with doses.
+	 */
+	public static double getSupplyCorrectionFactor(Regimen regimen)
+	{
+		switch(regimen.getRepeatMode())
+		{
+			case RepeatRules.REPEAT_EVERY_N_DAYS:
+				return regimen.getRepeatArg();
+
+			case RepeatRules.REPEAT_WEEKDAYS:
+				return 7.0 / Long.bitCount(regimen.getRepeatArg());
+
+			case RepeatRules.REPEAT_21_7:
+				return 1.0 / 0.75;
+
+			default:
+				return 1.0;
+		}
+	}
+
+	private static long diffDays(Date date1, Date date2) {
+		return DateMath.diffDays(date1.getTime(), date2.getTime());
+	}
+
+	private DoseTotals() {}
+}
@@ -28,8 +28,6 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.TimeZone;
 
-import android.widget.TimePicker;
-import at.jclehner.rxdroid.util.Constants;
 import at.jclehner.rxdroid.util.Hasher;
 
 /**
@@ -57,6 +55,7 @@ public class DumbTime implements Serializable, Comparable<DumbTime>
 	private static final int S_MILLIS = 1000;
 	private static final int M_MILLIS = 60 * S_MILLIS;
 	private static final int H_MILLIS = 60 * M_MILLIS;
+	private static final long D_MILLIS = 24L * H_MILLIS;
 
 	private int mHours;
 	private int mMinutes;
@@ -81,7 +80,7 @@ public class DumbTime implements Serializable, Comparable<DumbTime>
 	}
 
 	public DumbTime() {
-		this(System.currentTimeMillis() % Constants.MILLIS_PER_DAY);
+		this(System.currentTimeMillis() % D_MILLIS);
 	}
 
 	/**
@@ -93,7 +92,7 @@ public class DumbTime implements Serializable, Comparable<DumbTime>
 	 */
 	public DumbTime(long offset, boolean allowMoreThan24Hours)
 	{
-		if(offset < 0 || (offset >= Constants.MILLIS_PER_DAY && !allowMoreThan24Hours))
+		if(offset < 0 || (offset >= D_MILLIS && !allowMoreThan24Hours))
 			throw new IllegalArgumentException(offset + " is out of range");
 
 		mHours = (int) (offset / H_MILLIS);
@@ -220,8 +219,7 @@ public class DumbTime implements Serializable, Comparable<DumbTime>
 			{
 				try
 				{
-					final SimpleDateFormat sdf =
-						PerThreadInstance.get(SimpleDateFormat.class, format);
+					final SimpleDateFormat sdf = new SimpleDateFormat(format);
 
 					return fromDate(sdf.parse(timeString));
 				}
@@ -244,10 +242,5 @@ public class DumbTime implements Serializable, Comparable<DumbTime>
 		return new DumbTime(cal.get(Calendar.HOUR_OF_DAY), cal.get(Calendar.MINUTE), cal.get(Calendar.SECOND));
 	}
 
-	public static DumbTime fromTimePicker(TimePicker picker) {
-		return new DumbTime(picker.getCurrentHour(), picker.getCurrentMinute());
-	}
-
-	//public static void applyToTimePicker(TimePicker)
 }
 
@@ -21,23 +21,26 @@
 
 package at.jclehner.rxdroid;
 
-import java.util.Arrays;
-
-import android.os.Parcel;
-import android.os.Parcelable;
-
-
 /**
  * Very simple class for handling fractions.
  *
  * @author Joseph Lehner
  */
-public class Fraction extends Number implements Comparable<Number>, Parcelable
+public class Fraction extends Number implements Comparable<Number>
 {
+	/**
+	 * A mutable Fraction.
+	 * <p>
+	 * All operations are performed using a {@link FractionAccumulator}, so
+	 * intermediate results may exceed the range of an <code>int</code>. If the
+	 * result itself does not fit, an <code>ArithmeticException</code> is thrown.
+	 */
 	public static class MutableFraction extends Fraction
 	{
 		private static final long serialVersionUID = -3830132386515948322L;
 
+		private transient FractionAccumulator mAccumulator;
+
 		public MutableFraction(Fraction other) {
 			super(other);
 		}
@@ -51,7 +54,7 @@ public class Fraction extends Number implements Comparable<Number>, Parcelable
 		 * @return a reference to this instance
 		 */
 		public MutableFraction add(Fraction other) {
-			return Fraction.add(this, other);
+			return assign(load().add(other));
 		}
 
 		/**
@@ -59,7 +62,7 @@ public class Fraction extends Number implements Comparable<Number>, Parcelable
 		 * @return a reference to this object
 		 */
 		public MutableFraction add(int n) {
-			return Fraction.add(this, n);
+			return assign(load().add(n));
 		}
 
 		/**
@@ -67,7 +70,7 @@ public class Fraction extends Number implements Comparable<Number>, Parcelable
 		 * @return a reference to this instance
 		 */
 		public MutableFraction subtract(Fraction other) {
-			return Fraction.add(this, other.negate());
+			return assign(load().subtract(other));
 		}
 
 		/**
@@ -75,23 +78,37 @@ public class Fraction extends Number implements Comparable<Number>, Parcelable
 		 * @return a reference to this instance
 		 */
 		public MutableFraction subtract(int n) {
-			return Fraction.add(this, -n);
+			return assign(load().subtract(n));
 		}
 
 		public MutableFraction multiplyBy(Fraction other) {
-			return Fraction.multiplyBy(this, other);
+			return assign(load().multiplyBy(other));
 		}
 
 		public MutableFraction multiplyBy(int n) {
-			return Fraction.multiplyBy(this, n);
+			return assign(load().multiplyBy(n));
 		}
 
 		public MutableFraction divideBy(Fraction other) {
-			return Fraction.divideBy(this, other);
+			return assign(load().divideBy(other));
 		}
 
 		public MutableFraction divideBy(int n) {
-			return Fraction.divideBy(this, n);
+			return assign(load().divideBy(n));
+		}
+
+		private FractionAccumulator load()
+		{
+			if(mAccumulator == null)
+				mAccumulator = new FractionAccumulator();
+
+			return mAccumulator.set(numerator(), denominator());
+		}
+
+		private MutableFraction assign(FractionAccumulator value)
+		{
+			((Fraction) this).setReduced(value.numerator(), value.denominator());
+			return this;
 		}
 	}
 
@@ -110,6 +127,39 @@ public class Fraction extends Number implements Comparable<Number>, Parcelable
 	 */
 	public static final Fraction ZERO = new Fraction();
 
+	private static final int MAX_CANONICAL_DENOMINATOR = 4;
+	private static final int MAX_CANONICAL_VALUE = 8;
+
+	/**
+	 * Shared instances for all values between 0 and {@link #MAX_CANONICAL_VALUE} with
+	 * a denominator of up to {@link #MAX_CANONICAL_DENOMINATOR}, indexed by
+	 * denominator and (unreduced) numerator.
+	 */
+	private static final Fraction[][] CANONICAL = new Fraction[MAX_CANONICAL_DENOMINATOR + 1][];
+
+	static
+	{
+		for(int d = 1; d <= MAX_CANONICAL_DENOMINATOR; ++d)
+		{
+			CANONICAL[d] = new Fraction[MAX_CANONICAL_VALUE * d + 1];
+
+			for(int n = 0; n != CANONICAL[d].length; ++n)
+			{
+				final int gcd = n != 0 ? findGCD(n, d) : 1;
+				if(n == 0)
+					CANONICAL[d][n] = ZERO;
+				else if(gcd != 1)
+					CANONICAL[d][n] = CANONICAL[d / gcd][n / gcd];
+				else
+					CANONICAL[d][n] = new Fraction(n, d);
+			}
+		}
+	}
+
+	// Not synchronized, so these are approximations at best
+	private static int sCanonicalHits = 0;
+	private static int sCanonicalMisses = 0;
+
 	/**
 	 * Default constructor.
 	 * <p>
@@ -173,40 +223,36 @@ public class Fraction extends Number implements Comparable<Number>, Parcelable
 		return new MutableFraction(this);
 	}
 
-	public Fraction plus(final Fraction other)
-	{
-		Fraction result = new Fraction(this);
-		return add(result, other);
+	public Fraction plus(final Fraction other) {
+		return of((long) mNumerator * other.mDenominator + (long) other.mNumerator * mDenominator, (long) mDenominator * other.mDenominator);
 	}
 
-	public Fraction plus(int n)
-	{
-		Fraction result = new Fraction(this);
-		return add(result, n);
+	public Fraction plus(int n) {
+		return of(mNumerator + (long) n * mDenominator, mDenominator);
 	}
 
 	public Fraction minus(final Fraction other) {
-		return plus(other.negate());
+		return of((long) mNumerator * other.mDenominator - (long) other.mNumerator * mDenominator, (long) mDenominator * other.mDenominator);
 	}
 
 	public Fraction minus(int n) {
-		return plus(-n);
+		return of(mNumerator - (long) n * mDenominator, mDenominator);
 	}
 
 	public Fraction times(Fraction other) {
-		return multiplyBy(new Fraction(this), other);
+		return of((long) mNumerator * other.mNumerator, (long) mDenominator * other.mDenominator);
 	}
 
 	public Fraction times(int n) {
-		return multiplyBy(new Fraction(this), n);
+		return of((long) mNumerator * n, mDenominator);
 	}
 
 	public Fraction dividedBy(Fraction other) {
-		return divideBy(new Fraction(this), other);
+		return of((long) mNumerator * other.mDenominator, (long) mDenominator * other.mNumerator);
 	}
 
 	public Fraction dividedBy(int n) {
-		return divideBy(new Fraction(this), n);
+		return of(mNumerator, (long) mDenominator * n);
 	}
 
 	/**
@@ -293,8 +339,9 @@ public class Fraction extends Number implements Comparable<Number>, Parcelable
 		{
 			Fraction otherFraction = (Fraction) other;
 
-			int a = this.mNumerator * otherFraction.mDenominator;
-			int b = otherFraction.mNumerator * this.mDenominator;
+			// can't overflow, as all values are ints
+			long a = (long) this.mNumerator * otherFraction.mDenominator;
+			long b = (long) otherFraction.mNumerator * this.mDenominator;
 
 			if(a == b)
 				return 0;
@@ -356,18 +403,6 @@ public class Fraction extends Number implements Comparable<Number>, Parcelable
 		return Math.round(doubleValue());
 	}
 
-	@Override
-	public int describeContents() {
-		return 0;
-	}
-
-	@Override
-	public void writeToParcel(Parcel dest, int flags)
-	{
-		dest.writeInt(mNumerator);
-		dest.writeInt(mDenominator);
-	}
-
 	/**
 	 * Parses the textual representation of a fraction.
 	 * <p>
@@ -378,32 +413,108 @@ public class Fraction extends Number implements Comparable<Number>, Parcelable
 	 */
 	public static Fraction valueOf(final String string)
 	{
-		final String[] tokens = string.trim().split("\\s*/\\s*|\\s+");
-		int wholeNum = 0, numerator = 0, denominator = 1;
+		final int end = string.length();
+		int pos = skipWhitespace(string, 0, end);
+
+		// up to three integers, separated either by whitespace or by a slash
+		int count = 0;
+		int t0 = 0, t1 = 0, t2 = 0;
+
+		while(pos < end)
+		{
+			int tokenEnd = pos;
+			while(tokenEnd < end && !isSeparator(string.charAt(tokenEnd)))
+				++tokenEnd;
+
+			final int value = parseInt(string, pos, tokenEnd);
+
+			switch(count++)
+			{
+				case 0:
+					t0 = value;
+					break;
 
-		switch(tokens.length)
+				case 1:
+					t1 = value;
+					break;
+
+				case 2:
+					t2 = value;
+					break;
+
+				default:
+					throw new NumberFormatException(string);
+			}
+
+			pos = skipWhitespace(string, tokenEnd, end);
+			if(pos < end && string.charAt(pos) == '/')
+			{
+				pos = skipWhitespace(string, pos + 1, end);
+				if(pos == end)
+					throw new NumberFormatException(string);
+			}
+		}
+
+		final int wholeNum, numerator, denominator;
+
+		switch(count)
 		{
+			case 1:
+				return valueOf(t0, 1);
+
 			case 2:
-				numerator = Integer.parseInt(tokens[0]);
-				denominator = Integer.parseInt(tokens[1]);
+				wholeNum = 0;
+				numerator = t0;
+				denominator = t1;
 				break;
 
 			case 3:
-				numerator = Integer.parseInt(tokens[1]);
-				denominator = Integer.parseInt(tokens[2]);
-				// fall through
-
-			case 1:
-				wholeNum = Integer.parseInt(tokens[0]);
+				wholeNum = t0;
+				numerator = t1;
+				denominator = t2;
 				break;
 
 			default:
-				throw new NumberFormatException(string + " -> " + Arrays.toString(tokens));
+				throw new NumberFormatException("Empty string");
 		}
 
+		if(denominator <= 0)
+			throw new NumberFormatException(string + ": denominator must be greater than zero");
+
+		if(wholeNum == 0)
+			return valueOf(numerator, denominator);
+
 		return new Fraction(wholeNum, numerator, denominator);
 	}
 
+	/**
+	 * Returns a Fraction with the specified value.
+	 * <p>
+	 * Unlike the constructor, this function returns a shared instance for
+	 * commonly used values, such as 1/2 or 2.
+	 *
+	 * @throws IllegalArgumentException if {@code denominator <= 0}
+	 */
+	public static Fraction valueOf(int numerator, int denominator)
+	{
+		if(denominator > 0 && denominator <= MAX_CANONICAL_DENOMINATOR &&
+				numerator >= 0 && numerator < CANONICAL[denominator].length)
+		{
+			++sCanonicalHits;
+			return CANONICAL[denominator][numerator];
+		}
+
+		++sCanonicalMisses;
+		return new Fraction(numerator, denominator);
+	}
+
+	/**
+	 * Returns a summary of how often {@link #valueOf(int, int)} could return a shared instance.
+	 */
+	public static String getCanonicalStats() {
+		return sCanonicalHits + " of " + (sCanonicalHits + sCanonicalMisses) + " shared";
+	}
+
 	public static Fraction nullAsZero(Fraction f) {
 		return f == null ? Fraction.ZERO : f;
 	}
@@ -413,21 +524,6 @@ public class Fraction extends Number implements Comparable<Number>, Parcelable
 		sDisplayMixedNumbers = displayMixedNumbers;
 	}
 
-	public static final Parcelable.Creator<Fraction> CREATOR = new Parcelable.Creator<Fraction>() {
-
-		@Override
-		public Fraction createFromParcel(Parcel in)
-		{
-			return new Fraction(in.readInt(), in.readInt());
-		}
-
-		@Override
-		public Fraction[] newArray(int size)
-		{
-			return new Fraction[size];
-		}
-	};
-
 	private void init(int integer, int numerator, int denominator)
 	{
 		if(denominator == 0)
@@ -438,106 +534,99 @@ public class Fraction extends Number implements Comparable<Number>, Parcelable
 		if(integer != 0 && numerator < 0)
 			throw new NumberFormatException("Numerator must not be negative if integer is non-zero");
 
-		// set mNumerator, even though we divide it by the GCD later, so as to pass the
-		// original argument of this function to findGCD
 		if(integer >= 0)
-			mNumerator = integer * denominator + numerator;
+			setReduced((long) integer * denominator + numerator, denominator);
 		else
-			mNumerator = integer * denominator - numerator;
+			setReduced((long) integer * denominator - numerator, denominator);
+	}
+
+	/**
+	 * Sets this fraction to the reduced value of <code>numerator / denominator</code>.
+	 *
+	 * @throws ArithmeticException if the reduced value does not fit into an <code>int</code>.
+	 */
+	private void setReduced(long numerator, long denominator)
+	{
+		if(denominator == 0)
+			throw new ArithmeticException("Division by zero");
 
-		// the sign, if present, has been moved to the numerator by now
-		mDenominator = Math.abs(denominator);
+		if(denominator < 0)
+		{
+			numerator = -numerator;
+			denominator = -denominator;
+		}
+
+		final long gcd = FractionAccumulator.gcd(Math.abs(numerator), denominator);
+		numerator /= gcd;
+		denominator /= gcd;
 
-		final int divisor = findGCD(Math.abs(numerator), denominator);
+		if(numerator < Integer.MIN_VALUE || numerator > Integer.MAX_VALUE || denominator > Integer.MAX_VALUE)
+			throw new ArithmeticException("Overflow: " + numerator + "/" + denominator);
 
-		mNumerator /= divisor;
-		mDenominator /= divisor;
+		mNumerator = (int) numerator;
+		mDenominator = (int) denominator;
 	}
 
-	private static <F extends Fraction> F add(F dest, Fraction other)
+	private static Fraction of(long numerator, long denominator)
 	{
-		if(other.mDenominator == 1)
-			return add(dest, other.mNumerator);
+		final Fraction result = new Fraction();
+		result.setReduced(numerator, denominator);
 
-		int numerator, denominator;
+		final int n = result.mNumerator, d = result.mDenominator;
+		if(n >= 0 && d <= MAX_CANONICAL_DENOMINATOR && n < CANONICAL[d].length)
+			return CANONICAL[d][n];
 
-		if(dest.mDenominator != other.mDenominator)
-		{
-			int lcm = findLCM(dest.mDenominator, other.mDenominator);
+		return result;
+	}
 
-			int multThis = lcm / dest.mDenominator;
-			int multOther = lcm / other.mDenominator;
+	private static int parseInt(String string, int begin, int end)
+	{
+		if(begin == end)
+			throw new NumberFormatException(string);
 
-			denominator = lcm;
-			numerator = dest.mNumerator * multThis + other.mNumerator * multOther;
-		}
-		else
+		final boolean negative = string.charAt(begin) == '-';
+		if(negative || string.charAt(begin) == '+')
 		{
-			numerator = dest.mNumerator + other.mNumerator;
-			denominator = dest.mDenominator;
+			if(++begin == end)
+				throw new NumberFormatException(string);
 		}
 
-		// this reduces the resulting fraction
-		dest.init(0, numerator, denominator);
+		long value = 0;
 
-		return dest;
-	}
+		for(int i = begin; i != end; ++i)
+		{
+			final int digit = string.charAt(i) - '0';
+			if(digit < 0 || digit > 9)
+				throw new NumberFormatException(string);
 
-	private static <F extends Fraction> F add(F dest, int n)
-	{
-		dest.mNumerator += n * dest.mDenominator;
-		return dest;
-	}
+			value = value * 10 + digit;
+			if(value > Integer.MAX_VALUE + 1L)
+				throw new NumberFormatException(string);
+		}
 
-	private static <F extends Fraction> F multiplyBy(F dest, Fraction other)
-	{
-		final int numerator = dest.mNumerator * other.mNumerator;
-		final int denominator = dest.mDenominator * dest.mNumerator;
+		if(negative)
+			value = -value;
 
-		dest.init(0, numerator, denominator);
-		return dest;
-	}
+		if(value > Integer.MAX_VALUE)
+			throw new NumberFormatException(string);
 
-	private static <F extends Fraction> F multiplyBy(F dest, int n)
-	{
-		dest.init(0, dest.mNumerator * n, dest.mDenominator);
-		return dest;
+		return (int) value;
 	}
 
-	private static <F extends Fraction> F divideBy(F dest, Fraction other)
+	private static int skipWhitespace(String string, int pos, int end)
 	{
-		final int numerator = dest.mNumerator * other.mDenominator;
-		final int denominator = dest.mDenominator * other.mNumerator;
+		while(pos < end && isWhitespace(string.charAt(pos)))
+			++pos;
 
-		dest.init(0, numerator, denominator);
-		return dest;
+		return pos;
 	}
 
-	private static <F extends Fraction> F divideBy(F dest, int n)
-	{
-		dest.init(0, dest.mNumerator, dest.mDenominator * n);
-		return dest;
+	private static boolean isSeparator(char c) {
+		return c == '/' || isWhitespace(c);
 	}
 
-	/**
-	 * Finds the lowest common multiple of two integers.
-	 */
-	private static int findLCM(int n1, int n2)
-	{
-		int product = n1 * n2;
-
-		do
-		{
-			if(n1 < n2)
-			{
-				int tmp = n1;
-				n1 = n2;
-				n2 = tmp;
-			}
-			n1 = n1 % n2;
-		} while(n1 != 0);
-
-		return product / n2;
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000b';
 	}
 
 	/**
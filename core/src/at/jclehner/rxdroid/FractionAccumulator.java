@@ -0,0 +1,319 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid;
+
+/**
+ * A mutable fraction for summing up many values without allocations.
+ * <p>
+ * Numerator and denominator are stored as <code>long</code>s and are only reduced
+ * on demand, i.e. when calling {@link #reduce()} or {@link #toFraction()}, or
+ * when the denominator grows too large. All operations check for overflows and
+ * throw an <code>ArithmeticException</code> instead of silently returning a
+ * wrong result.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author Joseph Lehner
+ */
+public final class FractionAccumulator implements Comparable<FractionAccumulator>
+{
+	/**
+	 * Denominators above this value are reduced after each operation.
+	 */
+	private static final long REDUCE_THRESHOLD = 1L << 24;
+
+	private long mNumerator = 0;
+	private long mDenominator = 1;
+
+	public FractionAccumulator() {}
+
+	public FractionAccumulator(Fraction value) {
+		set(value);
+	}
+
+	public FractionAccumulator set(Fraction value) {
+		return set(value.numerator(), value.denominator());
+	}
+
+	public FractionAccumulator set(long numerator, long denominator)
+	{
+		if(denominator == 0)
+			throw new ArithmeticException("Division by zero");
+
+		if(denominator < 0)
+		{
+			numerator = negateExact(numerator);
+			denominator = negateExact(denominator);
+		}
+
+		mNumerator = numerator;
+		mDenominator = denominator;
+		return this;
+	}
+
+	public FractionAccumulator clear()
+	{
+		mNumerator = 0;
+		mDenominator = 1;
+		return this;
+	}
+
+	public FractionAccumulator add(Fraction value) {
+		return add(value.numerator(), value.denominator());
+	}
+
+	public FractionAccumulator add(long n) {
+		return add(n, 1);
+	}
+
+	public FractionAccumulator add(FractionAccumulator other) {
+		return add(other.mNumerator, other.mDenominator);
+	}
+
+	public FractionAccumulator subtract(Fraction value) {
+		return add(negateExact(value.numerator()), value.denominator());
+	}
+
+	public FractionAccumulator subtract(long n) {
+		return add(negateExact(n), 1);
+	}
+
+	public FractionAccumulator multiplyBy(Fraction value) {
+		return multiplyBy(value.numerator(), value.denominator());
+	}
+
+	public FractionAccumulator multiplyBy(long n) {
+		return multiplyBy(n, 1);
+	}
+
+	public FractionAccumulator divideBy(Fraction value) {
+		return multiplyBy(value.denominator(), value.numerator());
+	}
+
+	public FractionAccumulator divideBy(long n) {
+		return multiplyBy(1, n);
+	}
+
+	/**
+	 * Brings numerator and denominator to their lowest terms.
+	 */
+	public FractionAccumulator reduce()
+	{
+		final long gcd = gcd(Math.abs(mNumerator), mDenominator);
+		if(gcd > 1)
+		{
+			mNumerator /= gcd;
+			mDenominator /= gcd;
+		}
+
+		return this;
+	}
+
+	public boolean isZero() {
+		return mNumerator == 0;
+	}
+
+	public boolean isNegative() {
+		return mNumerator < 0;
+	}
+
+	/**
+	 * Returns the numerator. The value is not reduced, unless {@link #reduce()} was called.
+	 */
+	public long numerator() {
+		return mNumerator;
+	}
+
+	/**
+	 * Returns the denominator. The value is not reduced, unless {@link #reduce()} was called.
+	 */
+	public long denominator() {
+		return mDenominator;
+	}
+
+	public double doubleValue() {
+		return (double) mNumerator / mDenominator;
+	}
+
+	/**
+	 * Returns the reduced value as a Fraction.
+	 *
+	 * @throws ArithmeticException if the reduced value does not fit into a Fraction.
+	 */
+	public Fraction toFraction()
+	{
+		reduce();
+
+		if(mNumerator < Integer.MIN_VALUE || mNumerator > Integer.MAX_VALUE || mDenominator > Integer.MAX_VALUE)
+			throw new ArithmeticException("Overflow: " + this);
+
+		return Fraction.valueOf((int) mNumerator, (int) mDenominator);
+	}
+
+	@Override
+	public int compareTo(FractionAccumulator other) {
+		return compare(mNumerator, mDenominator, other.mNumerator, other.mDenominator);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if(!(o instanceof FractionAccumulator))
+			return false;
+
+		return compareTo((FractionAccumulator) o) == 0;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		final long gcd = gcd(Math.abs(mNumerator), mDenominator);
+		final long n = mNumerator / gcd;
+		final long d = mDenominator / gcd;
+
+		return (int) (31 * (n ^ (n >>> 32)) + (d ^ (d >>> 32)));
+	}
+
+	@Override
+	public String toString() {
+		return mNumerator + "/" + mDenominator;
+	}
+
+	/**
+	 * Compares the values of two fractions with positive denominators.
+	 */
+	/* package */ static int compare(long n1, long d1, long n2, long d2)
+	{
+		if(d1 == d2)
+			return n1 < n2 ? -1 : (n1 == n2 ? 0 : 1);
+
+		// compare integer parts first, so the cross products below can't overflow
+		// as long as the denominators fit into an int.
+		final long i1 = floorDiv(n1, d1);
+		final long i2 = floorDiv(n2, d2);
+
+		if(i1 != i2)
+			return i1 < i2 ? -1 : 1;
+
+		final long a = multiplyExact(n1 - i1 * d1, d2);
+		final long b = multiplyExact(n2 - i2 * d2, d1);
+
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+	/* package */ static long gcd(long a, long b)
+	{
+		while(b != 0)
+		{
+			final long t = a % b;
+			a = b;
+			b = t;
+		}
+
+		return a == 0 ? 1 : a;
+	}
+
+	/* package */ static long multiplyExact(long a, long b)
+	{
+		final long r = a * b;
+		final long absA = Math.abs(a), absB = Math.abs(b);
+
+		if(((absA | absB) >>> 31) != 0)
+		{
+			if((b != 0 && r / b != a) || (a == Long.MIN_VALUE && b == -1))
+				throw new ArithmeticException("Overflow: " + a + " * " + b);
+		}
+
+		return r;
+	}
+
+	/* package */ static long addExact(long a, long b)
+	{
+		final long r = a + b;
+		if(((a ^ r) & (b ^ r)) < 0)
+			throw new ArithmeticException("Overflow: " + a + " + " + b);
+
+		return r;
+	}
+
+	private FractionAccumulator add(long numerator, long denominator)
+	{
+		if(denominator == mDenominator)
+			mNumerator = addExact(mNumerator, numerator);
+		else if(mDenominator % denominator == 0)
+			mNumerator = addExact(mNumerator, multiplyExact(numerator, mDenominator / denominator));
+		else
+		{
+			// use the LCM as the common denominator
+			final long factor = denominator / gcd(mDenominator, denominator);
+			final long otherFactor = mDenominator / (denominator / factor);
+
+			mNumerator = addExact(multiplyExact(mNumerator, factor), multiplyExact(numerator, otherFactor));
+			mDenominator = multiplyExact(mDenominator, factor);
+		}
+
+		return reduceIfNecessary();
+	}
+
+	private FractionAccumulator multiplyBy(long numerator, long denominator)
+	{
+		if(denominator == 0)
+			throw new ArithmeticException("Division by zero");
+
+		if(denominator < 0)
+		{
+			numerator = negateExact(numerator);
+			denominator = negateExact(denominator);
+		}
+
+		// cross-reduce first to keep the intermediate values small
+		final long g1 = gcd(Math.abs(mNumerator), denominator);
+		final long g2 = gcd(Math.abs(numerator), mDenominator);
+
+		mNumerator = multiplyExact(mNumerator / g1, numerator / g2);
+		mDenominator = multiplyExact(mDenominator / g2, denominator / g1);
+
+		return reduceIfNecessary();
+	}
+
+	private FractionAccumulator reduceIfNecessary()
+	{
+		if(mDenominator > REDUCE_THRESHOLD)
+			reduce();
+
+		return this;
+	}
+
+	private static long negateExact(long n)
+	{
+		if(n == Long.MIN_VALUE)
+			throw new ArithmeticException("Overflow: -" + n);
+
+		return -n;
+	}
+
+	private static long floorDiv(long x, long y)
+	{
+		final long q = x / y;
+		return (x % y != 0 && ((x ^ y) < 0)) ? q - 1 : q;
+	}
+}
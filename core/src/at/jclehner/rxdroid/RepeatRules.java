@@ -0,0 +1,144 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import at.jclehner.rxdroid.util.DateMath;
+
+/**
+ * Checks whether a repeat rule has a dose on a specific date.
+ * <p>
+ * The repeat modes are those of Drug, which, like Schedule, only wraps these
+ * functions. Day differences are whole 24h periods in the default time zone,
+ * as returned by {@link DateMath#diffDays(long, long)}.
+ *
+ * @author Joseph Lehner
+ */
+public final class RepeatRules
+{
+	public static final int REPEAT_DAILY = 0;
+	public static final int REPEAT_EVERY_N_DAYS = 1;
+	public static final int REPEAT_WEEKDAYS = 2;
+	public static final int REPEAT_AS_NEEDED = 3;
+	public static final int REPEAT_21_7 = 4; // for oral contraceptives, 21 days on, 7 off
+	public static final int REPEAT_CUSTOM = 5;
+	public static final int REPEAT_INVALID = 6;
+
+	// TODO valid arguments: 6, 8, 12, with automapping to doseTimes
+	public static final int REPEAT_EVERY_N_HOURS = REPEAT_INVALID;
+
+	/**
+	 * Returns whether a drug's repeat has a dose on the specified date.
+	 * <p>
+	 * For {@link #REPEAT_CUSTOM}, this only checks the origin and the last schedule
+	 * update; the caller must check the schedules themselves.
+	 *
+	 * @param repeatOrigin the repeat's origin, may be <code>null</code>.
+	 * @param lastScheduleUpdate the date of the last schedule change, before which
+	 *     there are no doses; may be <code>null</code>.
+	 */
+	public static boolean hasDoseOnDate(Date date, int repeatMode, long repeatArg, Date repeatOrigin,
+			Date lastScheduleUpdate)
+	{
+		if(repeatOrigin != null && date.before(repeatOrigin) && (repeatMode == REPEAT_EVERY_N_DAYS
+				|| repeatMode == REPEAT_EVERY_N_HOURS || repeatMode == REPEAT_21_7))
+			return false;
+
+		if(lastScheduleUpdate != null && date.before(lastScheduleUpdate))
+			return false;
+
+		switch(repeatMode)
+		{
+			case REPEAT_DAILY:
+			case REPEAT_AS_NEEDED:
+			case REPEAT_CUSTOM:
+				return true;
+
+			case REPEAT_EVERY_N_DAYS:
+				return isEveryNthDay(diffDays(date, repeatOrigin), repeatArg);
+
+			case REPEAT_WEEKDAYS:
+				final Calendar cal = Calendar.getInstance();
+				cal.setTime(date);
+				return isOnWeekDay(repeatArg, cal.get(Calendar.DAY_OF_WEEK));
+
+			case REPEAT_21_7:
+				return isInCycle(Math.abs(diffDays(date, repeatOrigin)), 28, 7);
+
+			default:
+				throw new IllegalStateException("Unknown repeat mode");
+		}
+	}
+
+	/**
+	 * Returns whether a date, <code>diffDays</code> days from the origin, is on an
+	 * every-n-days repeat.
+	 */
+	public static boolean isEveryNthDay(long diffDays, long n) {
+		return diffDays % n == 0;
+	}
+
+	/**
+	 * Returns whether a week day is set in a mask of ISO week day indexes.
+	 *
+	 * @param calendarWeekDay one of Calendar's week days.
+	 * @see DateMath#getIsoWeekDayIndex(int)
+	 */
+	public static boolean isOnWeekDay(long weekDayMask, int calendarWeekDay)
+	{
+		final int weekDay = DateMath.getIsoWeekDayIndex(calendarWeekDay);
+		if(weekDay == -1)
+			throw new IllegalArgumentException("Argument " + calendarWeekDay + " does not map to a valid weekday");
+
+		return (weekDayMask & 1 << weekDay) != 0;
+	}
+
+	/**
+	 * Returns whether a date, <code>diffDays</code> days from the origin, falls
+	 * on a dose day of a cycle that ends with <code>pauseDays</code> days without doses.
+	 */
+	public static boolean isInCycle(long diffDays, long cycleLength, long pauseDays) {
+		return diffDays % cycleLength < cycleLength - pauseDays;
+	}
+
+	/**
+	 * Returns whether a date is within a range, including its bounds.
+	 *
+	 * @param begin the range's begin, or <code>null</code> if unbounded.
+	 * @param end the range's end, or <code>null</code> if unbounded.
+	 */
+	public static boolean isWithinRange(Date date, Date begin, Date end)
+	{
+		if(begin != null && date.before(begin))
+			return false;
+
+		return end == null || !date.after(end);
+	}
+
+	private static long diffDays(Date date1, Date date2) {
+		return DateMath.diffDays(date1.getTime(), date2.getTime());
+	}
+
+	private RepeatRules() {}
+}
@@ -0,0 +1,138 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+
+package at.jclehner.rxdroid;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import at.jclehner.rxdroid.util.DateMath;
+
+/**
+ * Dose rules of advanced schedules.
+ * <p>
+ * The repeat modes are those of Schedule, which only wraps these functions,
+ * and whose weekday parts are selected using {@link WeekdayPart}.
+ *
+ * @author Joseph Lehner
+ */
+public final class ScheduleRules
+{
+	public static final int REPEAT_DAILY = 0;
+	public static final int REPEAT_ON_DEMAND = 1;
+	public static final int REPEAT_EVERY_N_DAYS = 2;
+	public static final int REPEAT_EVERY_6_8_12_OR_24_HOURS = 3;
+	public static final int REPEAT_WEEKDAYS = 4;
+	public static final int REPEAT_DAILY_WITH_PAUSE = 5;
+
+	public static final int MASK_REPEAT_ARG_PAUSE = 0xffff;
+	public static final int MASK_REPEAT_ARG_CYCLE_LENGTH = 0xffff0000;
+
+	/**
+	 * A part of a schedule that applies on specific weekdays.
+	 */
+	public interface WeekdayPart
+	{
+		/**
+		 * Returns a mask of ISO week day indexes.
+		 *
+		 * @see DateMath#getIsoWeekDayIndex(int)
+		 */
+		int getWeekdays();
+	}
+
+	/**
+	 * Returns whether a schedule's repeat allows a dose on the specified date.
+	 *
+	 * @param begin the schedule's begin, which is the origin of the repeat.
+	 */
+	public static boolean isDosePossibleOnDate(Date date, int repeatMode, long repeatArg, Date begin)
+	{
+		switch(repeatMode)
+		{
+			case REPEAT_DAILY:
+			case REPEAT_ON_DEMAND:
+			case REPEAT_EVERY_6_8_12_OR_24_HOURS:
+				return true;
+
+			case REPEAT_EVERY_N_DAYS:
+				return RepeatRules.isEveryNthDay(diffDays(date, begin), repeatArg);
+
+			case REPEAT_WEEKDAYS:
+				final Calendar cal = Calendar.getInstance();
+				cal.setTime(date);
+				return RepeatRules.isOnWeekDay(repeatArg, cal.get(Calendar.DAY_OF_WEEK));
+
+			case REPEAT_DAILY_WITH_PAUSE:
+				final long pauseDays = repeatArg & MASK_REPEAT_ARG_PAUSE;
+				final long cycleLength = (repeatArg & MASK_REPEAT_ARG_CYCLE_LENGTH) >> 16;
+				return RepeatRules.isInCycle(diffDays(date, begin), cycleLength, pauseDays);
+
+			default:
+				throw new IllegalArgumentException("Unknown repeat mode " + repeatMode);
+		}
+	}
+
+	/**
+	 * Returns the first part that applies on the date's week day.
+	 *
+	 * @param parts the parts to check, may be <code>null</code>.
+	 * @return the part, or <code>null</code> if none applies.
+	 */
+	public static <T extends WeekdayPart> T findPart(Date date, T[] parts)
+	{
+		if(parts == null || parts.length == 0)
+			return null;
+
+		final Calendar cal = Calendar.getInstance();
+		cal.setTime(date);
+		final int weekDay = DateMath.getIsoWeekDayIndex(cal.get(Calendar.DAY_OF_WEEK));
+
+		for(T part : parts)
+		{
+			if((part.getWeekdays() & (1 << weekDay)) != 0)
+				return part;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns whether any of the doses is not zero.
+	 */
+	public static boolean hasAnyDose(Fraction[] doses)
+	{
+		for(Fraction dose : doses)
+		{
+			if(dose != null && !dose.isZero())
+				return true;
+		}
+
+		return false;
+	}
+
+	private static long diffDays(Date date1, Date date2) {
+		return DateMath.diffDays(date1.getTime(), date2.getTime());
+	}
+
+	private ScheduleRules() {}
+}
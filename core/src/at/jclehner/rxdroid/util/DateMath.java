@@ -0,0 +1,108 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid.util;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Date arithmetic for an explicit time zone.
+ * <p>
+ * These functions have no state and no Android dependencies; DateTime wraps
+ * them for the default time zone.
+ *
+ * @author Joseph Lehner
+ */
+public final class DateMath
+{
+	public static final long MILLIS_PER_DAY = 24L * 3600 * 1000;
+
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	/**
+	 * Returns the number of days since 1970-01-01 of the day containing the
+	 * specified time, in the specified time zone.
+	 */
+	public static int toEpochDay(TimeZone tz, long timeInMillis)
+	{
+		final long local = timeInMillis + tz.getOffset(timeInMillis);
+		final long day = local / MILLIS_PER_DAY;
+
+		return (int) (local < 0 && local % MILLIS_PER_DAY != 0 ? day - 1 : day);
+	}
+
+	/**
+	 * Returns midnight of the specified epoch day, in the specified time zone.
+	 */
+	public static long getDayStart(TimeZone tz, int epochDay)
+	{
+		final Calendar utc = new GregorianCalendar(UTC);
+		utc.setTimeInMillis(epochDay * MILLIS_PER_DAY);
+
+		final Calendar local = new GregorianCalendar(tz);
+		local.clear();
+		local.set(utc.get(Calendar.YEAR), utc.get(Calendar.MONTH), utc.get(Calendar.DAY_OF_MONTH));
+
+		return local.getTimeInMillis();
+	}
+
+	/**
+	 * Returns the number of whole 24h periods from one time to another.
+	 * <p>
+	 * Across a DST change, this is one less than the difference of the
+	 * epoch days.
+	 */
+	public static long diffDays(long fromMillis, long toMillis) {
+		return (toMillis - fromMillis) / MILLIS_PER_DAY;
+	}
+
+	/**
+	 * Returns the wall-clock offset from midnight, in milliseconds.
+	 */
+	public static long getOffsetFromMidnight(Calendar time)
+	{
+		final int hour = time.get(Calendar.HOUR_OF_DAY);
+		final int minute = time.get(Calendar.MINUTE);
+		final int second = time.get(Calendar.SECOND);
+		final int millis = time.get(Calendar.MILLISECOND);
+
+		return millis + 1000 * (hour * 3600 + minute * 60 + second);
+	}
+
+	/**
+	 * Maps one of Calendar's week days to its ISO index.
+	 *
+	 * @return <code>0</code> for <code>Calendar.MONDAY</code>, up to <code>6</code>
+	 *     for <code>Calendar.SUNDAY</code>, or <code>-1</code> if the argument
+	 *     is not a week day.
+	 */
+	public static int getIsoWeekDayIndex(int calendarWeekDay)
+	{
+		if(calendarWeekDay < Calendar.SUNDAY || calendarWeekDay > Calendar.SATURDAY)
+			return -1;
+
+		return (calendarWeekDay + 5) % 7;
+	}
+
+	private DateMath() {}
+}
@@ -0,0 +1,275 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A registry of runtime counters and histograms.
+ * <p>
+ * Metrics are meant to be obtained once and kept in a <code>static final</code>
+ * field, so that updating them does not involve a lookup. Updating a metric does
+ * not allocate, and does nothing but check a flag while metrics are disabled;
+ * callers should nevertheless check {@link #isEnabled()} before measuring a
+ * duration, to avoid the calls to <code>System.nanoTime()</code>.
+ * <p>
+ * Histograms use exponential buckets, so percentiles are only accurate to
+ * within a factor of two, which is sufficient to spot outliers.
+ *
+ * @see Trace
+ * @author Joseph Lehner
+ */
+public final class Metrics
+{
+	private static volatile boolean sEnabled = false;
+
+	private static final TreeMap<String, Counter> sCounters = new TreeMap<String, Counter>();
+	private static final TreeMap<String, Histogram> sHistograms = new TreeMap<String, Histogram>();
+	private static final TreeMap<String, Gauge> sGauges = new TreeMap<String, Gauge>();
+
+	/**
+	 * A value that is maintained elsewhere and only read when creating a report.
+	 */
+	public interface Gauge
+	{
+		long getValue();
+	}
+
+	public static final class Counter
+	{
+		private final AtomicLong mValue = new AtomicLong();
+
+		private Counter() {}
+
+		public void inc()
+		{
+			if(sEnabled)
+				mValue.incrementAndGet();
+		}
+
+		public void add(long n)
+		{
+			if(sEnabled)
+				mValue.addAndGet(n);
+		}
+
+		public long get() {
+			return mValue.get();
+		}
+	}
+
+	public static final class Histogram
+	{
+		/**
+		 * Bucket <code>0</code> holds zero, bucket <code>i</code> all values
+		 * in <code>[2^(i-1), 2^i)</code>, and the last bucket all larger values.
+		 */
+		private static final int BUCKET_COUNT = 32;
+
+		private final boolean mIsDuration;
+		private final long[] mBuckets = new long[BUCKET_COUNT];
+		private long mCount = 0;
+		private long mSum = 0;
+		private long mMax = 0;
+
+		private Histogram(boolean isDuration) {
+			mIsDuration = isDuration;
+		}
+
+		public void record(long value)
+		{
+			if(!sEnabled)
+				return;
+
+			if(value < 0)
+				value = 0;
+
+			final int bucket = Math.min(64 - Long.numberOfLeadingZeros(value), BUCKET_COUNT - 1);
+
+			synchronized(this)
+			{
+				++mBuckets[bucket];
+				++mCount;
+				mSum += value;
+
+				if(value > mMax)
+					mMax = value;
+			}
+		}
+
+		/**
+		 * Records a duration, in microseconds.
+		 */
+		public void recordNanos(long nanos) {
+			record(nanos / 1000);
+		}
+
+		public void record(Timer timer) {
+			recordNanos(timer.elapsedNanos());
+		}
+
+		public synchronized long getCount() {
+			return mCount;
+		}
+
+		/**
+		 * Returns the upper bound of the bucket containing the specified percentile.
+		 */
+		public synchronized long getPercentile(int percentile)
+		{
+			if(mCount == 0)
+				return 0;
+
+			final long rank = Math.max((long) Math.ceil(percentile / 100.0 * mCount), 1);
+			long seen = 0;
+
+			for(int i = 0; i != BUCKET_COUNT - 1; ++i)
+			{
+				seen += mBuckets[i];
+				if(seen >= rank)
+					return Math.min(i == 0 ? 0 : (1L << i) - 1, mMax);
+			}
+
+			return mMax;
+		}
+
+		@Override
+		public synchronized String toString()
+		{
+			if(mCount == 0)
+				return "n=0";
+
+			return "n=" + mCount + ", avg=" + format(mSum / mCount) + ", p50<=" + format(getPercentile(50)) +
+					", p90<=" + format(getPercentile(90)) + ", p99<=" + format(getPercentile(99)) +
+					", max=" + format(mMax);
+		}
+
+		synchronized void reset()
+		{
+			for(int i = 0; i != BUCKET_COUNT; ++i)
+				mBuckets[i] = 0;
+
+			mCount = mSum = mMax = 0;
+		}
+
+		private String format(long value)
+		{
+			if(!mIsDuration)
+				return Long.toString(value);
+			else if(value < 1000)
+				return value + "us";
+
+			return (value / 1000) + "." + ((value % 1000) / 100) + "ms";
+		}
+	}
+
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		sEnabled = enabled;
+	}
+
+	/**
+	 * Returns the counter of the specified name, creating it if necessary.
+	 */
+	public static synchronized Counter counter(String name)
+	{
+		Counter counter = sCounters.get(name);
+		if(counter == null)
+		{
+			counter = new Counter();
+			sCounters.put(name, counter);
+		}
+
+		return counter;
+	}
+
+	/**
+	 * Returns the histogram of the specified name, creating it if necessary.
+	 */
+	public static Histogram histogram(String name) {
+		return getHistogram(name, false);
+	}
+
+	/**
+	 * Returns the histogram of durations of the specified name, creating it if necessary.
+	 */
+	public static Histogram timer(String name) {
+		return getHistogram(name, true);
+	}
+
+	public static synchronized void registerGauge(String name, Gauge gauge) {
+		sGauges.put(name, gauge);
+	}
+
+	/**
+	 * Resets all counters and histograms. Gauges are not affected.
+	 */
+	public static synchronized void reset()
+	{
+		for(Counter counter : sCounters.values())
+			counter.mValue.set(0);
+
+		for(Histogram histogram : sHistograms.values())
+			histogram.reset();
+	}
+
+	/**
+	 * Returns a report of all metrics, one per line, sorted by name.
+	 */
+	public static synchronized String dump()
+	{
+		final StringBuilder sb = new StringBuilder();
+
+		if(!sEnabled)
+			sb.append("(disabled)\n");
+
+		for(Map.Entry<String, Counter> e : sCounters.entrySet())
+			sb.append(e.getKey()).append(": ").append(e.getValue().get()).append('\n');
+
+		for(Map.Entry<String, Gauge> e : sGauges.entrySet())
+			sb.append(e.getKey()).append(": ").append(e.getValue().getValue()).append('\n');
+
+		for(Map.Entry<String, Histogram> e : sHistograms.entrySet())
+			sb.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+
+		return sb.toString();
+	}
+
+	private static synchronized Histogram getHistogram(String name, boolean isDuration)
+	{
+		Histogram histogram = sHistograms.get(name);
+		if(histogram == null)
+		{
+			histogram = new Histogram(isDuration);
+			sHistograms.put(name, histogram);
+		}
+
+		return histogram;
+	}
+
+	private Metrics() {}
+}
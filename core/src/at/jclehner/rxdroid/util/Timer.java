@@ -21,22 +21,28 @@
 
 package at.jclehner.rxdroid.util;
 
-import android.os.SystemClock;
-
 public class Timer
 {
-	private long mBegin;
+	private long mBeginNanos;
 
 	public Timer() {
 		restart();
 	}
 
-	public void restart() {
-		mBegin = SystemClock.uptimeMillis();
+	public void restart()
+	{
+		mBeginNanos = System.nanoTime();
 	}
 
 	public long elapsed() {
-		return SystemClock.uptimeMillis() - mBegin;
+		return elapsedNanos() / 1000000;
+	}
+
+	/**
+	 * Returns the elapsed time in nanoseconds, for measuring short intervals.
+	 */
+	public long elapsedNanos() {
+		return System.nanoTime() - mBeginNanos;
 	}
 
 	public double elapsedSeconds() {
@@ -0,0 +1,220 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid.util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Lightweight tracing of named spans.
+ * <p>
+ * The durations of the last {@link #CAPACITY} spans of each name are kept in
+ * a ring buffer, from which percentiles are computed on demand. Recording a
+ * span does not allocate, apart from the first span of a name.
+ * <p>
+ * Names are dot-separated, starting with the component, e.g.
+ * <code>db.load.Drug</code>.
+ *
+ * @author Joseph Lehner
+ */
+public final class Trace
+{
+	/**
+	 * Number of durations kept for each span name.
+	 */
+	public static final int CAPACITY = 128;
+
+	private static final TreeMap<String, Buffer> sBuffers = new TreeMap<String, Buffer>();
+
+	/**
+	 * A summary of the durations recorded for a span name, in microseconds.
+	 */
+	public static final class Summary
+	{
+		public final String name;
+		/**
+		 * The total number of recorded spans, including the ones no longer in the buffer.
+		 */
+		public final long count;
+		public final long p50;
+		public final long p90;
+		public final long p99;
+		public final long max;
+
+		private Summary(String name, long count, long[] sorted)
+		{
+			this.name = name;
+			this.count = count;
+			p50 = percentile(sorted, 50);
+			p90 = percentile(sorted, 90);
+			p99 = percentile(sorted, 99);
+			max = sorted[sorted.length - 1];
+		}
+
+		@Override
+		public String toString() {
+			return name + ": n=" + count + ", p50=" + format(p50) + ", p90=" + format(p90) + ", p99=" + format(p99) +
+					", max=" + format(max);
+		}
+	}
+
+	private static final class Buffer
+	{
+		final long[] micros = new long[CAPACITY];
+		long count = 0;
+
+		void add(long value) {
+			micros[(int) (count++ % CAPACITY)] = value;
+		}
+
+		long[] toSortedArray()
+		{
+			final int size = (int) Math.min(count, CAPACITY);
+			final long[] sorted = new long[size];
+			System.arraycopy(micros, 0, sorted, 0, size);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+
+	/**
+	 * Records a span that began when <code>timer</code> was last (re)started.
+	 */
+	public static void record(String name, Timer timer) {
+		recordNanos(name, timer.elapsedNanos());
+	}
+
+	public static void recordMillis(String name, long millis) {
+		recordNanos(name, millis * 1000000);
+	}
+
+	public static synchronized void recordNanos(String name, long nanos)
+	{
+		Buffer buffer = sBuffers.get(name);
+		if(buffer == null)
+		{
+			buffer = new Buffer();
+			sBuffers.put(name, buffer);
+		}
+
+		buffer.add(nanos / 1000);
+	}
+
+	/**
+	 * Returns the summaries of all span names, sorted by name.
+	 */
+	public static synchronized List<Summary> getSummaries()
+	{
+		final List<Summary> summaries = new ArrayList<Summary>(sBuffers.size());
+
+		for(String name : sBuffers.keySet())
+		{
+			final Buffer buffer = sBuffers.get(name);
+			summaries.add(new Summary(name, buffer.count, buffer.toSortedArray()));
+		}
+
+		return summaries;
+	}
+
+	public static synchronized void clear() {
+		sBuffers.clear();
+	}
+
+	/**
+	 * Returns all summaries, one per line.
+	 */
+	public static String dump()
+	{
+		final StringBuilder sb = new StringBuilder();
+
+		for(Summary summary : getSummaries())
+			sb.append(summary).append('\n');
+
+		return sb.toString();
+	}
+
+	/**
+	 * Writes all summaries to a file, preceded by a header line, e.g. the app's version.
+	 * <p>
+	 * The output is tab-separated, with durations in microseconds, so dumps of
+	 * different releases can easily be compared.
+	 */
+	public static void dumpToFile(File file, String header) throws IOException
+	{
+		final List<Summary> summaries = getSummaries();
+		Writer writer = null;
+
+		try
+		{
+			writer = new FileWriter(file);
+			writer.write("# " + header + "\n");
+			writer.write("# " + new Date() + "\n");
+			writer.write("name\tcount\tp50\tp90\tp99\tmax\n");
+
+			for(Summary s : summaries)
+				writer.write(s.name + "\t" + s.count + "\t" + s.p50 + "\t" + s.p90 + "\t" + s.p99 + "\t" + s.max + "\n");
+
+			writer.close();
+			writer = null;
+		}
+		finally
+		{
+			if(writer != null)
+			{
+				try
+				{
+					writer.close();
+				}
+				catch(IOException e)
+				{
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a percentile of a sorted array, using the nearest-rank method.
+	 */
+	/* package */ static long percentile(long[] sorted, int percentile)
+	{
+		final int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(rank, 1) - 1];
+	}
+
+	private static String format(long micros)
+	{
+		if(micros < 1000)
+			return micros + "us";
+
+		return (micros / 1000) + "." + ((micros % 1000) / 100) + "ms";
+	}
+
+	private Trace() {}
+}
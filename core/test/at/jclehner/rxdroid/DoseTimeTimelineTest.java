@@ -0,0 +1,114 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import at.jclehner.rxdroid.DoseTimeTimeline.Boundary;
+
+/**
+ * Uses the same dose times as the app's PreferencesTest, with
+ * TIME_NOON disabled.
+ *
+ * @author Joseph Lehner
+ */
+public class DoseTimeTimelineTest
+{
+	private static final long HOUR = 3600 * 1000;
+
+	// Schedule's dose time constants, which are not available in core
+	private static final int TIME_MORNING = 0;
+	private static final int TIME_EVENING = 2;
+	private static final int TIME_NIGHT = 3;
+	private static final int TIME_INVALID = DoseTimeTimeline.TIME_INVALID;
+
+	private final DoseTimeTimeline mTimeline = new DoseTimeTimeline(
+			new long[] { 6 * HOUR, -1, 18 * HOUR, 23 * HOUR },
+			new long[] { 10 * HOUR, -1, 21 * HOUR, HOUR + HOUR / 2 }
+	);
+
+	@Test
+	public void testLookups()
+	{
+		final long[][] testCases = {
+				// offset, active, active day offset, next, next day offset
+				{ 0, TIME_NIGHT, -1, TIME_MORNING, 0 },
+				{ 2 * HOUR, TIME_INVALID, 0, TIME_MORNING, 0 },
+				{ 6 * HOUR, TIME_MORNING, 0, TIME_EVENING, 0 },
+				{ 10 * HOUR, TIME_INVALID, 0, TIME_EVENING, 0 },
+				{ 21 * HOUR, TIME_INVALID, 0, TIME_NIGHT, 0 },
+				{ 23 * HOUR, TIME_NIGHT, 0, TIME_MORNING, 1 }
+		};
+
+		for(long[] testCase : testCases)
+		{
+			final long offset = testCase[0];
+
+			assertEquals(testCase[1], mTimeline.getActiveDoseTime(offset));
+			assertEquals(testCase[2], mTimeline.getActiveDayOffset(offset));
+			assertEquals(testCase[3], mTimeline.getNextDoseTime(offset));
+			assertEquals(testCase[4], mTimeline.getNextDayOffset(offset));
+		}
+	}
+
+	@Test
+	public void testNextBoundaries()
+	{
+		final Calendar time = new GregorianCalendar(TimeZone.getTimeZone("Europe/Vienna"));
+		time.clear();
+		time.set(2013, Calendar.MARCH, 30, 22, 0, 0);
+
+		final List<Boundary> boundaries = mTimeline.getNextBoundaries(time, 3);
+		assertEquals(3, boundaries.size());
+
+		assertBoundary(boundaries.get(0), TIME_NIGHT, false, 30, 30, 23);
+		assertBoundary(boundaries.get(1), TIME_NIGHT, true, 30, 31, 1);
+		assertBoundary(boundaries.get(2), TIME_MORNING, false, 31, 31, 6);
+
+		// DST begins on 2013-03-31 at 02:00, so TIME_MORNING begins only 3.5h
+		// after TIME_NIGHT's end.
+		assertEquals(3 * HOUR + HOUR / 2, boundaries.get(2).timeInMillis - boundaries.get(1).timeInMillis);
+	}
+
+	private static void assertBoundary(Boundary b, int doseTime, boolean isEnd, int dateDay, int day, int hour)
+	{
+		final Calendar cal = new GregorianCalendar(TimeZone.getTimeZone("Europe/Vienna"));
+
+		assertEquals(doseTime, b.doseTime);
+		assertEquals(isEnd, b.isEnd);
+
+		cal.setTime(b.date);
+		assertEquals(dateDay, cal.get(Calendar.DAY_OF_MONTH));
+		assertEquals(0, cal.get(Calendar.HOUR_OF_DAY));
+
+		cal.setTimeInMillis(b.timeInMillis);
+		assertEquals(day, cal.get(Calendar.DAY_OF_MONTH));
+		assertEquals(hour, cal.get(Calendar.HOUR_OF_DAY));
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+
+package at.jclehner.rxdroid;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import org.junit.Test;
+
+public class DoseTotalsTest
+{
+	private static final Fraction[] DOSES = {
+		new Fraction(1), new Fraction(1, 2), Fraction.ZERO, new Fraction(1, 2)
+	};
+
+	@Test
+	public void testAddTotalDose()
+	{
+		final FractionAccumulator total = new FractionAccumulator();
+		final Regimen daily = new Regimen(RepeatRules.REPEAT_DAILY, 0, null);
+
+		DoseTotals.addTotalDose(daily, null, total);
+		assertEquals(new Fraction(2), total.toFraction());
+
+		DoseTotals.addTotalDose(daily, date(2013, Calendar.JUNE, 3), total);
+		assertEquals(new Fraction(4), total.toFraction());
+
+		DoseTotals.addTotalDose(new Regimen(RepeatRules.REPEAT_AS_NEEDED, 0, null), null, total);
+		assertEquals(new Fraction(4), total.toFraction());
+	}
+
+	@Test
+	public void testSkipsDaysWithoutDoses()
+	{
+		final FractionAccumulator total = new FractionAccumulator();
+		final Date origin = date(2013, Calendar.JUNE, 3);
+		final Regimen everyThirdDay = new Regimen(RepeatRules.REPEAT_EVERY_N_DAYS, 3, origin);
+
+		DoseTotals.addTotalDose(everyThirdDay, date(2013, Calendar.JUNE, 4), total);
+		assertEquals(Fraction.ZERO, total.toFraction());
+	}
+
+	@Test
+	public void testTotalDoseInTimePeriod()
+	{
+		final Date begin = date(2013, Calendar.JUNE, 3);
+		final Date end = date(2013, Calendar.JUNE, 12);
+
+		assertEquals(new Fraction(18), DoseTotals.getTotalDoseInTimePeriod(
+				new Regimen(RepeatRules.REPEAT_DAILY, 0, null), begin, end));
+		// June 3, 6, 9 and 12
+		assertEquals(new Fraction(8), DoseTotals.getTotalDoseInTimePeriod(
+				new Regimen(RepeatRules.REPEAT_EVERY_N_DAYS, 3, begin), begin, end));
+		assertEquals(Fraction.ZERO, DoseTotals.getTotalDoseInTimePeriod(
+				new Regimen(RepeatRules.REPEAT_AS_NEEDED, 0, null), begin, end));
+	}
+
+	@Test
+	public void testSupplyDaysLeft()
+	{
+		assertEquals(5, DoseTotals.getSupplyDaysLeft(new Regimen(RepeatRules.REPEAT_DAILY, 0, null), 11));
+		assertEquals(15, DoseTotals.getSupplyDaysLeft(new Regimen(RepeatRules.REPEAT_EVERY_N_DAYS, 3, null), 10));
+		// two days a week
+		assertEquals(35, DoseTotals.getSupplyDaysLeft(new Regimen(RepeatRules.REPEAT_WEEKDAYS, 1 | 1 << 4, null), 20));
+	}
+
+	private static class Regimen implements DoseTotals.Regimen
+	{
+		private final int mRepeatMode;
+		private final long mRepeatArg;
+		private final Date mRepeatOrigin;
+
+		Regimen(int repeatMode, long repeatArg, Date repeatOrigin)
+		{
+			mRepeatMode = repeatMode;
+			mRepeatArg = repeatArg;
+			mRepeatOrigin = repeatOrigin;
+		}
+
+		@Override
+		public int getRepeatMode() {
+			return mRepeatMode;
+		}
+
+		@Override
+		public long getRepeatArg() {
+			return mRepeatArg;
+		}
+
+		@Override
+		public Date getRepeatOrigin() {
+			return mRepeatOrigin;
+		}
+
+		@Override
+		public boolean hasDoseOnDate(Date date) {
+			return RepeatRules.hasDoseOnDate(date, mRepeatMode, mRepeatArg, mRepeatOrigin, null);
+		}
+
+		@Override
+		public Fraction getDose(int doseTime) {
+			return DOSES[doseTime];
+		}
+
+		@Override
+		public Fraction getDose(int doseTime, Date date) {
+			return hasDoseOnDate(date) ? DOSES[doseTime] : Fraction.ZERO;
+		}
+	}
+
+	private static Date date(int year, int month, int day) {
+		return new GregorianCalendar(year, month, day).getTime();
+	}
+}
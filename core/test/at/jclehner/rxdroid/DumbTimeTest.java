@@ -0,0 +1,70 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DumbTimeTest
+{
+	@Test
+	public void testFromString()
+	{
+		assertEquals(new DumbTime(8, 30), DumbTime.fromString("08:30"));
+		assertEquals(new DumbTime(23, 59), DumbTime.fromString("23:59"));
+		assertEquals(8 * 3600 * 1000 + 30 * 60 * 1000, DumbTime.fromString("08:30").getMillisFromMidnight());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFromInvalidString() {
+		DumbTime.fromString("foo");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOutOfRange() {
+		new DumbTime(24L * 3600 * 1000);
+	}
+
+	@Test
+	public void testIsWithinRange()
+	{
+		final DumbTime begin = new DumbTime(22, 0);
+		final DumbTime end = new DumbTime(6, 0);
+
+		assertTrue(new DumbTime(23, 0).isWithinRange(begin, end, true));
+		assertTrue(new DumbTime(1, 0).isWithinRange(begin, end, true));
+		assertFalse(new DumbTime(12, 0).isWithinRange(begin, end, true));
+		assertFalse(new DumbTime(1, 0).isWithinRange(begin, end, false));
+		assertTrue(begin.isWithinRange(begin, end, true));
+		assertFalse(end.isWithinRange(begin, end, true));
+	}
+
+	@Test
+	public void testToString()
+	{
+		assertEquals("08:30", new DumbTime(8, 30).toString(true, false));
+		assertEquals("08:30:15", new DumbTime(8, 30, 15).toString(true, false));
+	}
+}
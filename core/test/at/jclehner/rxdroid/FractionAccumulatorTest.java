@@ -0,0 +1,150 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.Test;
+
+import at.jclehner.rxdroid.Fraction.MutableFraction;
+
+public class FractionAccumulatorTest
+{
+	private static final int ITERATIONS = 1000;
+
+	@Test
+	public void testSumMatchesExactResult()
+	{
+		final Random random = new Random(42);
+
+		for(int i = 0; i != ITERATIONS; ++i)
+		{
+			final FractionAccumulator acc = new FractionAccumulator();
+			BigInteger num = BigInteger.ZERO, den = BigInteger.ONE;
+
+			for(int k = 0; k != 50; ++k)
+			{
+				final Fraction f = randomFraction(random);
+				acc.add(f);
+
+				final BigInteger fn = BigInteger.valueOf(f.numerator());
+				final BigInteger fd = BigInteger.valueOf(f.denominator());
+
+				num = num.multiply(fd).add(fn.multiply(den));
+				den = den.multiply(fd);
+			}
+
+			final BigInteger gcd = num.gcd(den);
+			acc.reduce();
+
+			assertEquals(num.divide(gcd).longValue(), acc.numerator());
+			assertEquals(den.divide(gcd).longValue(), acc.denominator());
+		}
+	}
+
+	@Test
+	public void testMatchesFraction()
+	{
+		final Random random = new Random(23);
+
+		for(int i = 0; i != ITERATIONS; ++i)
+		{
+			final Fraction a = randomFraction(random);
+			final Fraction b = randomFraction(random);
+
+			assertEquals(a.plus(b), new FractionAccumulator(a).add(b).toFraction());
+			assertEquals(a.minus(b), new FractionAccumulator(a).subtract(b).toFraction());
+			assertEquals(a.times(b), new FractionAccumulator(a).multiplyBy(b).toFraction());
+
+			if(!b.isZero())
+				assertEquals(a.dividedBy(b), new FractionAccumulator(a).divideBy(b).toFraction());
+
+			assertEquals(Integer.signum(a.compareTo(b)),
+					Integer.signum(new FractionAccumulator(a).compareTo(new FractionAccumulator(b))));
+		}
+	}
+
+	@Test
+	public void testMutableFraction()
+	{
+		final MutableFraction f = new MutableFraction(new Fraction(1, 2));
+
+		assertEquals(new Fraction(1, 3), f.multiplyBy(new Fraction(2, 3)));
+		assertEquals(new Fraction(5, 6), f.add(new Fraction(1, 2)));
+		assertEquals(new Fraction(5, 12), f.divideBy(2));
+		assertEquals(new Fraction(-7, 12), f.subtract(1));
+	}
+
+	@Test
+	public void testOverflow()
+	{
+		try
+		{
+			new FractionAccumulator().add(Long.MAX_VALUE).add(1);
+			fail("No exception on overflow");
+		}
+		catch(ArithmeticException e)
+		{
+			// expected
+		}
+
+		try
+		{
+			new FractionAccumulator().add(Integer.MAX_VALUE).add(1).toFraction();
+			fail("No exception on overflow");
+		}
+		catch(ArithmeticException e)
+		{
+			// expected
+		}
+
+		// used to overflow in compareTo
+		assertTrue(new Fraction(Integer.MAX_VALUE, 1).compareTo(new Fraction(Integer.MAX_VALUE - 1, 1)) > 0);
+	}
+
+	@Test
+	public void testSumMatchesFractionPlus()
+	{
+		// see FractionBenchmark for the timings
+		final Random random = new Random(1);
+		final FractionAccumulator acc = new FractionAccumulator();
+		Fraction sum = Fraction.ZERO;
+
+		for(int i = 0; i != 10000; ++i)
+		{
+			final Fraction dose = Fraction.valueOf(random.nextInt(8), 1 + random.nextInt(4));
+			sum = sum.plus(dose);
+			acc.add(dose);
+		}
+
+		assertEquals(sum, acc.toFraction());
+	}
+
+	private static Fraction randomFraction(Random random) {
+		return new Fraction(random.nextInt(201) - 100, 1 + random.nextInt(12));
+	}
+}
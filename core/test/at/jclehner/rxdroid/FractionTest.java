@@ -19,16 +19,17 @@
  *
  */
 
-package at.jclehner.rxdroid.test;
+package at.jclehner.rxdroid;
 
-import android.test.AndroidTestCase;
-import android.util.Log;
-import at.jclehner.rxdroid.Fraction;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
-public class FractionTest extends AndroidTestCase
-{
-	private static final String TAG = FractionTest.class.getSimpleName();
+import org.junit.Before;
+import org.junit.Test;
 
+public class FractionTest
+{
 	private static final String[] FRACTIONS = {
 			"1 1       /4",
 			"      2 5/ 9",
@@ -40,10 +41,12 @@ public class FractionTest extends AndroidTestCase
 			"08/07"
 	};
 
-	public FractionTest() {
+	@Before
+	public void setUp() {
 		Fraction.setDisplayMixedNumbers(false);
 	}
 
+	@Test
 	public void testDecode()
 	{
 		final String[] expected = {
@@ -61,6 +64,7 @@ public class FractionTest extends AndroidTestCase
 			assertEquals(expected[i], Fraction.valueOf(FRACTIONS[i]).toString());
 	}
 
+	@Test
 	public void testDecodeWithInvalidStrings()
 	{
 		final String[] invalid = {
@@ -87,6 +91,7 @@ public class FractionTest extends AndroidTestCase
 
 	}
 
+	@Test
 	public void testPlus()
 	{
 		final Fraction f1 = new Fraction(1, 4);
@@ -106,11 +111,11 @@ public class FractionTest extends AndroidTestCase
 			Fraction f2 = Fraction.valueOf(FRACTIONS[i]);
 			Fraction result = f1.plus(f2);
 
-			Log.d(TAG, f1 + " + " + f2 + " = " + result);
-			assertEqualsAsString(expected[i], result);
+			assertEquals(f1 + " + " + f2, expected[i], result.toString());
 		}
 	}
 
+	@Test
 	public void testMinus()
 	{
 		final Fraction f1 = new Fraction(1, 4);
@@ -130,11 +135,11 @@ public class FractionTest extends AndroidTestCase
 			Fraction f2 = Fraction.valueOf(FRACTIONS[i]);
 			Fraction result = f1.minus(f2);
 
-			Log.d(TAG, f1 + " - " + f2 + " = " + result);
-			assertEqualsAsString(expected[i], result);
+			assertEquals(f1 + " - " + f2, expected[i], result.toString());
 		}
 	}
 
+	@Test
 	public void testNegate()
 	{
 		final String[] expected = {
@@ -152,6 +157,7 @@ public class FractionTest extends AndroidTestCase
 			assertEqualsAsString(expected[i], Fraction.valueOf(FRACTIONS[i]).negate());
 	}
 
+	@Test
 	public void testCompare()
 	{
 		final String[][] allFractions = {
@@ -197,6 +203,17 @@ public class FractionTest extends AndroidTestCase
 		}
 	}
 
+	@Test
+	public void testCanonicalInstances()
+	{
+		assertSame(Fraction.valueOf(1, 2), Fraction.valueOf(2, 4));
+		assertSame(Fraction.valueOf(2, 1), Fraction.valueOf("2"));
+		assertSame(Fraction.ZERO, Fraction.valueOf(0, 3));
+
+		assertEquals(new Fraction(-1, 2), Fraction.valueOf(-1, 2));
+		assertEquals(new Fraction(17, 3), Fraction.valueOf(17, 3));
+	}
+
 	//public void testToString() {
 	//    //fail("Not yet implemented");
 	//}
@@ -0,0 +1,117 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import org.junit.Test;
+
+public class RepeatRulesTest
+{
+	private static final int MONDAY = 1;
+	private static final int FRIDAY = 1 << 4;
+
+	@Test
+	public void testEveryNthDay()
+	{
+		final Date origin = date(2013, Calendar.JUNE, 3);
+
+		assertTrue(hasDose(date(2013, Calendar.JUNE, 3), RepeatRules.REPEAT_EVERY_N_DAYS, 3, origin));
+		assertFalse(hasDose(date(2013, Calendar.JUNE, 4), RepeatRules.REPEAT_EVERY_N_DAYS, 3, origin));
+		assertTrue(hasDose(date(2013, Calendar.JUNE, 9), RepeatRules.REPEAT_EVERY_N_DAYS, 3, origin));
+		// no doses before the origin
+		assertFalse(hasDose(date(2013, Calendar.MAY, 31), RepeatRules.REPEAT_EVERY_N_DAYS, 3, origin));
+	}
+
+	@Test
+	public void testWeekDays()
+	{
+		// 2013-06-03 is a Monday
+		assertTrue(hasDose(date(2013, Calendar.JUNE, 3), RepeatRules.REPEAT_WEEKDAYS, MONDAY | FRIDAY, null));
+		assertFalse(hasDose(date(2013, Calendar.JUNE, 4), RepeatRules.REPEAT_WEEKDAYS, MONDAY | FRIDAY, null));
+		assertTrue(hasDose(date(2013, Calendar.JUNE, 7), RepeatRules.REPEAT_WEEKDAYS, MONDAY | FRIDAY, null));
+		assertFalse(hasDose(date(2013, Calendar.JUNE, 9), RepeatRules.REPEAT_WEEKDAYS, MONDAY | FRIDAY, null));
+	}
+
+	@Test
+	public void test21_7()
+	{
+		final Date origin = date(2013, Calendar.JUNE, 1);
+
+		assertTrue(hasDose(date(2013, Calendar.JUNE, 1), RepeatRules.REPEAT_21_7, 0, origin));
+		assertTrue(hasDose(date(2013, Calendar.JUNE, 21), RepeatRules.REPEAT_21_7, 0, origin));
+		assertFalse(hasDose(date(2013, Calendar.JUNE, 22), RepeatRules.REPEAT_21_7, 0, origin));
+		assertFalse(hasDose(date(2013, Calendar.JUNE, 28), RepeatRules.REPEAT_21_7, 0, origin));
+		assertTrue(hasDose(date(2013, Calendar.JUNE, 29), RepeatRules.REPEAT_21_7, 0, origin));
+	}
+
+	@Test
+	public void testLastScheduleUpdate()
+	{
+		final Date update = date(2013, Calendar.JUNE, 5);
+
+		assertFalse(RepeatRules.hasDoseOnDate(date(2013, Calendar.JUNE, 4), RepeatRules.REPEAT_DAILY, 0, null, update));
+		assertTrue(RepeatRules.hasDoseOnDate(date(2013, Calendar.JUNE, 5), RepeatRules.REPEAT_DAILY, 0, null, update));
+		assertTrue(RepeatRules.hasDoseOnDate(date(2013, Calendar.JUNE, 5), RepeatRules.REPEAT_CUSTOM, 0, null, update));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testInvalidRepeatMode() {
+		hasDose(date(2013, Calendar.JUNE, 3), RepeatRules.REPEAT_INVALID, 0, null);
+	}
+
+	@Test
+	public void testIsWithinRange()
+	{
+		final Date begin = date(2013, Calendar.JUNE, 1);
+		final Date end = date(2013, Calendar.JUNE, 30);
+
+		assertTrue(RepeatRules.isWithinRange(begin, begin, end));
+		assertTrue(RepeatRules.isWithinRange(end, begin, end));
+		assertFalse(RepeatRules.isWithinRange(date(2013, Calendar.JULY, 1), begin, end));
+		assertTrue(RepeatRules.isWithinRange(date(2013, Calendar.JULY, 1), begin, null));
+		assertFalse(RepeatRules.isWithinRange(date(2013, Calendar.MAY, 31), begin, null));
+		assertTrue(RepeatRules.isWithinRange(date(2013, Calendar.MAY, 31), null, end));
+	}
+
+	@Test
+	public void testIsInCycle()
+	{
+		assertTrue(RepeatRules.isInCycle(0, 28, 7));
+		assertTrue(RepeatRules.isInCycle(20, 28, 7));
+		assertFalse(RepeatRules.isInCycle(21, 28, 7));
+		assertTrue(RepeatRules.isInCycle(28, 28, 7));
+	}
+
+	private static boolean hasDose(Date date, int repeatMode, long repeatArg, Date repeatOrigin) {
+		return RepeatRules.hasDoseOnDate(date, repeatMode, repeatArg, repeatOrigin, null);
+	}
+
+	private static Date date(int year, int month, int day) {
+		return new GregorianCalendar(year, month, day).getTime();
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+
+package at.jclehner.rxdroid;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import org.junit.Test;
+
+public class ScheduleRulesTest
+{
+	private static final int MONDAY = 1;
+	private static final int FRIDAY = 1 << 4;
+
+	@Test
+	public void testEveryNthDay()
+	{
+		final Date begin = date(2013, Calendar.JUNE, 3);
+
+		assertTrue(isDosePossible(begin, ScheduleRules.REPEAT_EVERY_N_DAYS, 2, begin));
+		assertFalse(isDosePossible(date(2013, Calendar.JUNE, 4), ScheduleRules.REPEAT_EVERY_N_DAYS, 2, begin));
+		assertTrue(isDosePossible(date(2013, Calendar.JUNE, 5), ScheduleRules.REPEAT_EVERY_N_DAYS, 2, begin));
+	}
+
+	@Test
+	public void testWeekDays()
+	{
+		// 2013-06-03 is a Monday
+		final Date begin = date(2013, Calendar.JUNE, 1);
+
+		assertTrue(isDosePossible(date(2013, Calendar.JUNE, 3), ScheduleRules.REPEAT_WEEKDAYS, MONDAY, begin));
+		assertFalse(isDosePossible(date(2013, Calendar.JUNE, 4), ScheduleRules.REPEAT_WEEKDAYS, MONDAY, begin));
+	}
+
+	@Test
+	public void testDaily()
+	{
+		final Date begin = date(2013, Calendar.JUNE, 1);
+
+		assertTrue(isDosePossible(begin, ScheduleRules.REPEAT_DAILY, 0, begin));
+		assertTrue(isDosePossible(date(2013, Calendar.JUNE, 2), ScheduleRules.REPEAT_ON_DEMAND, 0, begin));
+		assertTrue(isDosePossible(begin, ScheduleRules.REPEAT_DAILY_WITH_PAUSE, (28 << 16) | 7, begin));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidRepeatMode() {
+		isDosePossible(date(2013, Calendar.JUNE, 3), 42, 0, date(2013, Calendar.JUNE, 3));
+	}
+
+	@Test
+	public void testFindPart()
+	{
+		final Part monday = new Part(MONDAY);
+		final Part friday = new Part(FRIDAY);
+		final Part[] parts = { monday, friday };
+
+		assertSame(monday, ScheduleRules.findPart(date(2013, Calendar.JUNE, 3), parts));
+		assertSame(friday, ScheduleRules.findPart(date(2013, Calendar.JUNE, 7), parts));
+		assertNull(ScheduleRules.findPart(date(2013, Calendar.JUNE, 4), parts));
+		assertNull(ScheduleRules.findPart(date(2013, Calendar.JUNE, 3), (Part[]) null));
+	}
+
+	@Test
+	public void testHasAnyDose()
+	{
+		assertFalse(ScheduleRules.hasAnyDose(new Fraction[] { Fraction.ZERO, null, Fraction.ZERO }));
+		assertTrue(ScheduleRules.hasAnyDose(new Fraction[] { Fraction.ZERO, new Fraction(1, 2) }));
+	}
+
+	private static class Part implements ScheduleRules.WeekdayPart
+	{
+		private final int mWeekdays;
+
+		Part(int weekdays) {
+			mWeekdays = weekdays;
+		}
+
+		@Override
+		public int getWeekdays() {
+			return mWeekdays;
+		}
+	}
+
+	private static boolean isDosePossible(Date date, int repeatMode, long repeatArg, Date begin) {
+		return ScheduleRules.isDosePossibleOnDate(date, repeatMode, repeatArg, begin);
+	}
+
+	private static Date date(int year, int month, int day) {
+		return new GregorianCalendar(year, month, day).getTime();
+	}
+}
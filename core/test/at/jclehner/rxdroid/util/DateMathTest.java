@@ -0,0 +1,105 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class DateMathTest
+{
+	private static final TimeZone VIENNA = TimeZone.getTimeZone("Europe/Vienna");
+	private static final TimeZone LOS_ANGELES = TimeZone.getTimeZone("America/Los_Angeles");
+
+	@Test
+	public void testToEpochDay()
+	{
+		assertEquals(0, DateMath.toEpochDay(TimeZone.getTimeZone("UTC"), 0));
+		assertEquals(-1, DateMath.toEpochDay(TimeZone.getTimeZone("UTC"), -1));
+		// 1970-01-01, 01:00 in Vienna is midnight UTC
+		assertEquals(0, DateMath.toEpochDay(VIENNA, 0));
+		assertEquals(-1, DateMath.toEpochDay(LOS_ANGELES, 0));
+
+		assertEquals(15794, DateMath.toEpochDay(VIENNA, millis(VIENNA, 2013, Calendar.MARCH, 30, 0)));
+		assertEquals(15794, DateMath.toEpochDay(VIENNA, millis(VIENNA, 2013, Calendar.MARCH, 30, 23)));
+		assertEquals(15795, DateMath.toEpochDay(VIENNA, millis(VIENNA, 2013, Calendar.MARCH, 31, 0)));
+	}
+
+	@Test
+	public void testRoundTrip()
+	{
+		for(TimeZone tz : new TimeZone[] { VIENNA, LOS_ANGELES })
+		{
+			for(int epochDay = 15700; epochDay != 16100; ++epochDay)
+			{
+				final long dayStart = DateMath.getDayStart(tz, epochDay);
+				assertEquals(epochDay, DateMath.toEpochDay(tz, dayStart));
+				assertEquals(epochDay, DateMath.toEpochDay(tz, dayStart + DateMath.MILLIS_PER_DAY - 3600 * 1000 - 1));
+				assertEquals(0, DateMath.getOffsetFromMidnight(calendar(tz, dayStart)));
+			}
+		}
+	}
+
+	@Test
+	public void testAcrossDstChange()
+	{
+		final long begin = millis(VIENNA, 2013, Calendar.MARCH, 30, 0);
+		final long end = millis(VIENNA, 2013, Calendar.MARCH, 31, 0);
+		final long inDst = millis(VIENNA, 2013, Calendar.APRIL, 30, 0);
+
+		assertEquals(1, DateMath.toEpochDay(VIENNA, end) - DateMath.toEpochDay(VIENNA, begin));
+		assertEquals(31, DateMath.toEpochDay(VIENNA, inDst) - DateMath.toEpochDay(VIENNA, begin));
+
+		// the 24h difference is one day short
+		assertEquals(30, DateMath.diffDays(begin, inDst));
+		assertEquals(end, DateMath.getDayStart(VIENNA, DateMath.toEpochDay(VIENNA, end)));
+	}
+
+	@Test
+	public void testIsoWeekDayIndex()
+	{
+		assertEquals(0, DateMath.getIsoWeekDayIndex(Calendar.MONDAY));
+		assertEquals(5, DateMath.getIsoWeekDayIndex(Calendar.SATURDAY));
+		assertEquals(6, DateMath.getIsoWeekDayIndex(Calendar.SUNDAY));
+		assertEquals(-1, DateMath.getIsoWeekDayIndex(0));
+		assertEquals(-1, DateMath.getIsoWeekDayIndex(8));
+	}
+
+	private static long millis(TimeZone tz, int year, int month, int day, int hour)
+	{
+		final Calendar cal = new GregorianCalendar(tz);
+		cal.clear();
+		cal.set(year, month, day, hour, 0, 0);
+		return cal.getTimeInMillis();
+	}
+
+	private static Calendar calendar(TimeZone tz, long timeInMillis)
+	{
+		final Calendar cal = new GregorianCalendar(tz);
+		cal.setTimeInMillis(timeInMillis);
+		return cal;
+	}
+}
@@ -19,13 +19,15 @@
  *
  */
 
-package at.jclehner.rxdroid.test;
+package at.jclehner.rxdroid.util;
 
-import android.test.AndroidTestCase;
-import at.jclehner.rxdroid.util.Hasher;
+import static org.junit.Assert.fail;
 
-public class HasherTest extends AndroidTestCase
+import org.junit.Test;
+
+public class HasherTest
 {
+	@Test
 	public void testHasher()
 	{
 		Alice alice = new Alice(3, 0, "foobar");
@@ -0,0 +1,89 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricsTest
+{
+	@Before
+	public void setUp()
+	{
+		Metrics.setEnabled(true);
+		Metrics.reset();
+	}
+
+	@After
+	public void tearDown() {
+		Metrics.setEnabled(false);
+	}
+
+	@Test
+	public void testCounter()
+	{
+		final Metrics.Counter counter = Metrics.counter("test.counter");
+		assertSame(counter, Metrics.counter("test.counter"));
+
+		counter.inc();
+		counter.add(41);
+		assertEquals(42, counter.get());
+
+		Metrics.setEnabled(false);
+		counter.inc();
+		assertEquals(42, counter.get());
+	}
+
+	@Test
+	public void testHistogram()
+	{
+		final Metrics.Histogram histogram = Metrics.histogram("test.histogram");
+
+		for(int i = 1; i <= 100; ++i)
+			histogram.record(i);
+
+		assertEquals(100, histogram.getCount());
+
+		// percentiles are bucket upper bounds, accurate to within a factor of two
+		final long p50 = histogram.getPercentile(50);
+		assertTrue("p50=" + p50, p50 >= 50 && p50 < 100);
+		assertEquals(100, histogram.getPercentile(99));
+		assertEquals(1, histogram.getPercentile(0));
+	}
+
+	@Test
+	public void testDisabledHistogram()
+	{
+		final Metrics.Histogram histogram = Metrics.timer("test.timer");
+
+		Metrics.setEnabled(false);
+		histogram.recordNanos(1000000);
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(50));
+	}
+}
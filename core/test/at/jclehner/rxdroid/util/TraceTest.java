@@ -0,0 +1,89 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TraceTest
+{
+	@Before
+	public void setUp() {
+		Trace.clear();
+	}
+
+	@Test
+	public void testPercentiles()
+	{
+		for(int i = 100; i >= 1; --i)
+			Trace.recordNanos("test", i * 1000L);
+
+		final Trace.Summary s = getSummary("test");
+
+		assertEquals(100, s.count);
+		assertEquals(50, s.p50);
+		assertEquals(90, s.p90);
+		assertEquals(99, s.p99);
+		assertEquals(100, s.max);
+	}
+
+	@Test
+	public void testRingBuffer()
+	{
+		// the first half should be overwritten
+		for(int i = 0; i != 2 * Trace.CAPACITY; ++i)
+			Trace.recordNanos("test", (i < Trace.CAPACITY ? 1000000 : 1) * 1000L);
+
+		final Trace.Summary s = getSummary("test");
+
+		assertEquals(2 * Trace.CAPACITY, s.count);
+		assertEquals(1, s.max);
+	}
+
+	@Test
+	public void testSingleValue()
+	{
+		Trace.recordMillis("test", 3);
+
+		final Trace.Summary s = getSummary("test");
+		assertEquals(3000, s.p50);
+		assertEquals(3000, s.p99);
+	}
+
+	private static Trace.Summary getSummary(String name)
+	{
+		final List<Trace.Summary> summaries = Trace.getSummaries();
+		for(Trace.Summary s : summaries)
+		{
+			if(s.name.equals(name))
+				return s;
+		}
+
+		fail("No summary for " + name);
+		return null;
+	}
+}
@@ -25,6 +25,7 @@ import java.lang.reflect.Method;
 import java.util.WeakHashMap;
 
 import android.util.Log;
+import at.jclehner.rxdroid.util.Metrics;
 import at.jclehner.rxdroid.util.Util;
 import at.jclehner.rxdroid.util.WrappedCheckedException;
 
@@ -40,6 +41,20 @@ public class EventDispatcher<T>
 	private static final String TAG = EventDispatcher.class.getSimpleName();
 	private static final boolean LOGV = false;
 
+	private static final Metrics.Histogram METRIC_FANOUT = Metrics.histogram("events.post.fanout");
+	private static final Metrics.Histogram METRIC_DURATION = Metrics.timer("events.post.duration");
+
+	/**
+	 * An event that delivers itself to a receiver of type <code>R</code>.
+	 * <p>
+	 * Using {@link EventDispatcher#post(Class, Event)} avoids the reflective
+	 * method lookups of {@link EventDispatcher#post(String, Object...)}.
+	 */
+	public interface Event<R>
+	{
+		void dispatchTo(R receiver);
+	}
+
 	private final WeakHashMap<Object, Void> mReceivers =
 			new WeakHashMap<Object, Void>();
 
@@ -55,14 +70,52 @@ public class EventDispatcher<T>
 		mReceivers.remove(eventHandler);
 	}
 
+	/**
+	 * Posts an event to all receivers that are instances of <code>receiverType</code>.
+	 * <p>
+	 * Receivers may safely register or unregister from within the event handler.
+	 */
+	public <R> void post(Class<R> receiverType, Event<R> event)
+	{
+		final long begin = Metrics.isEnabled() ? System.nanoTime() : 0;
+		final Object[] receivers;
+
+		synchronized(this) {
+			receivers = mReceivers.keySet().toArray();
+		}
+
+		if(LOGV) Log.v(TAG, "post: " + receiverType.getSimpleName() + ": " + receivers.length + " potential receivers");
+
+		int fanout = 0;
+
+		for(Object receiver : receivers)
+		{
+			if(receiver != null && receiverType.isInstance(receiver))
+			{
+				event.dispatchTo(receiverType.cast(receiver));
+				++fanout;
+			}
+		}
+
+		if(begin != 0)
+		{
+			METRIC_DURATION.recordNanos(System.nanoTime() - begin);
+			METRIC_FANOUT.record(fanout);
+		}
+	}
+
 	public void post(String eventName, Object... args) {
 		post(eventName, Reflect.getTypes(args), args);
 	}
 
 	public synchronized void post(String eventName, Class<?>[] argTypes, Object... args)
 	{
+		final long begin = Metrics.isEnabled() ? System.nanoTime() : 0;
+
 		if(LOGV) Log.v(TAG, "post: event=" + eventName + ": " + mReceivers.size() + " potential receivers");
 
+		int fanout = 0;
+
 		for(Object receiver : mReceivers.keySet())
 		{
 			final Method m = Reflect.getMethod(receiver.getClass(), eventName, argTypes);
@@ -72,6 +125,8 @@ public class EventDispatcher<T>
 				continue;
 			}
 
+			++fanout;
+
 			try
 			{
 				Reflect.invokeMethod(m, receiver, args);
@@ -82,5 +137,11 @@ public class EventDispatcher<T>
 				Log.w(TAG, "Failed to dispatch event " + receiver.getClass().getSimpleName() + "." + m.getName(), e);
 			}
 		}
+
+		if(begin != 0)
+		{
+			METRIC_DURATION.recordNanos(System.nanoTime() - begin);
+			METRIC_FANOUT.record(fanout);
+		}
 	}
 }
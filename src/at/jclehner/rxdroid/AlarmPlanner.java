@@ -0,0 +1,255 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import at.jclehner.rxdroid.Settings.DoseTimeInfo;
+import at.jclehner.rxdroid.db.Database;
+import at.jclehner.rxdroid.db.Drug;
+import at.jclehner.rxdroid.util.DateTime;
+
+/**
+ * Determines when NotificationReceiver's next alarm should go off.
+ * <p>
+ * Dose time boundaries at which no drug has a dose are skipped, as the
+ * notification wouldn't change anyway, unless there are due or missed doses:
+ * the next boundary may then turn due doses into missed ones, or, at the
+ * end of the day, clear the missed ones. Alarm repetitions are also only
+ * scheduled while there are due or missed doses.
+ *
+ * @author Joseph Lehner
+ */
+/* package */ final class AlarmPlanner
+{
+	/**
+	 * The maximum number of boundaries to look ahead; one week with four dose times.
+	 */
+	private static final int MAX_BOUNDARIES = 7 * 2 * 4;
+
+	private static final Object LOCK_WAKEUPS = new Object();
+
+	/**
+	 * A planned alarm.
+	 */
+	static final class Alarm
+	{
+		final long triggerAtMillis;
+		final Date date;
+		final int doseTime;
+		final boolean isDoseTimeEnd;
+		final boolean isRepetition;
+
+		/**
+		 * The time of the dose time boundary, which may be later than
+		 * {@link #triggerAtMillis} for repetitions.
+		 */
+		final long boundaryMillis;
+
+		private Alarm(long triggerAtMillis, DoseTimeTimeline.Boundary boundary, boolean isRepetition) {
+			this(triggerAtMillis, boundary.date, boundary.doseTime, boundary.isEnd, isRepetition, boundary.timeInMillis);
+		}
+
+		private Alarm(long triggerAtMillis, Date date, int doseTime, boolean isDoseTimeEnd, boolean isRepetition,
+				long boundaryMillis)
+		{
+			this.triggerAtMillis = triggerAtMillis;
+			this.date = date;
+			this.doseTime = doseTime;
+			this.isDoseTimeEnd = isDoseTimeEnd;
+			this.isRepetition = isRepetition;
+			this.boundaryMillis = boundaryMillis;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if(!(o instanceof Alarm))
+				return false;
+
+			final Alarm other = (Alarm) o;
+
+			return triggerAtMillis == other.triggerAtMillis && date.equals(other.date) &&
+					doseTime == other.doseTime && isDoseTimeEnd == other.isDoseTimeEnd &&
+					isRepetition == other.isRepetition && boundaryMillis == other.boundaryMillis;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (triggerAtMillis ^ (triggerAtMillis >>> 32));
+		}
+	}
+
+	/**
+	 * Returns the next alarm, or <code>null</code> if no alarm is required.
+	 *
+	 * @param repeatMillis The alarm repetition interval, or <code>0</code>.
+	 */
+	static Alarm getNextAlarm(DoseTimeInfo dtInfo, long repeatMillis)
+	{
+		final long now = dtInfo.currentTime().getTimeInMillis();
+		final List<DoseTimeTimeline.Boundary> boundaries =
+				Settings.getDoseTimeTimeline().getNextBoundaries(dtInfo.currentTime(), MAX_BOUNDARIES);
+
+		if(boundaries.isEmpty())
+			return null;
+
+		final boolean hasPendingDoses = hasPendingDoses();
+		DoseTimeTimeline.Boundary next = null;
+
+		if(hasPendingDoses)
+			next = boundaries.get(0);
+		else
+		{
+			final List<Drug> drugs = getDrugsWithReminders();
+
+			for(DoseTimeTimeline.Boundary boundary : boundaries)
+			{
+				if(hasDoses(drugs, boundary.date, boundary.doseTime))
+				{
+					next = boundary;
+					break;
+				}
+			}
+
+			// If there's nothing to do within a week, check again afterwards
+			if(next == null)
+				next = boundaries.get(boundaries.size() - 1);
+		}
+
+		if(repeatMillis > 0 && hasPendingDoses)
+		{
+			// Repetitions are aligned to the active date's midnight
+			final long base = dtInfo.activeDate().getTime();
+			final long repetition = base + ((now - base) / repeatMillis + 1) * repeatMillis;
+
+			if(repetition < next.timeInMillis)
+				return new Alarm(repetition, next, true);
+		}
+
+		return new Alarm(next.timeInMillis, next, false);
+	}
+
+	/**
+	 * Returns the alarm following a repetition, without accessing the database.
+	 * <p>
+	 * This assumes that nothing has changed since <code>last</code> was planned.
+	 */
+	static Alarm getNextRepetition(Alarm last, long repeatMillis, long now)
+	{
+		long triggerAtMillis = last.triggerAtMillis;
+		while(triggerAtMillis <= now)
+			triggerAtMillis += repeatMillis;
+
+		if(triggerAtMillis < last.boundaryMillis)
+		{
+			return new Alarm(triggerAtMillis, last.date, last.doseTime, last.isDoseTimeEnd, true,
+					last.boundaryMillis);
+		}
+
+		return new Alarm(last.boundaryMillis, last.date, last.doseTime, last.isDoseTimeEnd, false,
+				last.boundaryMillis);
+	}
+
+	/**
+	 * Records that an alarm has woken up the device.
+	 */
+	static void onWakeup()
+	{
+		final int today = DateTime.toEpochDay(DateTime.today());
+
+		synchronized(LOCK_WAKEUPS)
+		{
+			final int day = Settings.getInt(Settings.Keys.WAKEUP_DAY, -1);
+			int count = Settings.getInt(Settings.Keys.WAKEUP_COUNT, 0);
+
+			if(day != today)
+			{
+				Settings.putInt(Settings.Keys.WAKEUP_COUNT_PREVIOUS, day == today - 1 ? count : 0);
+				Settings.putInt(Settings.Keys.WAKEUP_DAY, today);
+				count = 0;
+			}
+
+			Settings.putInt(Settings.Keys.WAKEUP_COUNT, count + 1);
+		}
+	}
+
+	/**
+	 * Returns the number of alarm wake-ups today, and on the previous day.
+	 */
+	static int[] getWakeupCounts()
+	{
+		final int today = DateTime.toEpochDay(DateTime.today());
+
+		synchronized(LOCK_WAKEUPS)
+		{
+			final int day = Settings.getInt(Settings.Keys.WAKEUP_DAY, -1);
+			final int count = Settings.getInt(Settings.Keys.WAKEUP_COUNT, 0);
+
+			if(day == today)
+				return new int[] { count, Settings.getInt(Settings.Keys.WAKEUP_COUNT_PREVIOUS, 0) };
+			else if(day == today - 1)
+				return new int[] { 0, count };
+
+			return new int[] { 0, 0 };
+		}
+	}
+
+	/**
+	 * Returns the drugs whose doses are reminded of, as in ReminderState.
+	 */
+	private static List<Drug> getDrugsWithReminders()
+	{
+		final List<Drug> drugs = new ArrayList<Drug>();
+
+		for(Drug drug : Database.getAll(Drug.class))
+		{
+			if(!drug.isActive() || drug.hasAutoDoseEvents() || drug.getRepeatMode() == Drug.REPEAT_AS_NEEDED)
+				continue;
+
+			drugs.add(drug);
+		}
+
+		return drugs;
+	}
+
+	private static boolean hasDoses(List<Drug> drugs, Date date, int doseTime)
+	{
+		for(Drug drug : drugs)
+		{
+			if(!drug.getDose(doseTime, date).isZero())
+				return true;
+		}
+
+		return false;
+	}
+
+	private static boolean hasPendingDoses()
+	{
+		final ReminderState state = ReminderState.get();
+		return state.dueDoseCount != 0 || state.missedDoseCount != 0;
+	}
+
+	private AlarmPlanner() {}
+}
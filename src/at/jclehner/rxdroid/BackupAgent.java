@@ -67,6 +67,9 @@ public class BackupAgent extends BackupAgentHelper
 			return;
 		}
 
+		// make sure that all preferences are on disk
+		Settings.flush();
+
 		synchronized(Database.LOCK_DATA)
 		{
 			Log.i(TAG, "Backing up...");
@@ -0,0 +1,439 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+import at.jclehner.rxdroid.DrugListActivity.DrugComparator;
+import at.jclehner.rxdroid.DrugListActivity.DrugFilter;
+import at.jclehner.rxdroid.Fraction.MutableFraction;
+import at.jclehner.rxdroid.db.Database;
+import at.jclehner.rxdroid.db.DoseEvent;
+import at.jclehner.rxdroid.db.Drug;
+import at.jclehner.rxdroid.db.Entries;
+import at.jclehner.rxdroid.ui.DrugOverviewAdapter;
+import at.jclehner.rxdroid.util.Constants;
+import at.jclehner.rxdroid.util.DateTime;
+import at.jclehner.rxdroid.util.Timer;
+import at.jclehner.rxdroid.util.Trace;
+
+/**
+ * The drugs displayed by DrugListActivity for a given patient and date.
+ * <p>
+ * Apart from the sorted and filtered drug lists, a model contains everything
+ * that DrugOverviewAdapter needs to bind a drug's views, so that models can be
+ * built in a background thread and swiping to another date only has to bind
+ * views. Models are cached until the database changes, until the date changes,
+ * or until {@link #invalidateAll()} is called.
+ *
+ * @author Joseph Lehner
+ */
+/* package */ final class DayModel implements DrugOverviewAdapter.DayInfo
+{
+	private static final String TAG = DayModel.class.getSimpleName();
+	private static final boolean LOGV = BuildConfig.DEBUG;
+
+	private static final int MAX_CACHED = 8;
+
+	/**
+	 * Number of days before and after the current date to prefetch.
+	 * <p>
+	 * The ViewPager already holds the pages adjacent to the current one, so
+	 * the models two days away are the ones required by the next swipe.
+	 */
+	private static final int PREFETCH_DAYS = 2;
+
+	final int patientId;
+	final Date date;
+
+	/**
+	 * All of the patient's drugs, sorted using a {@link DrugComparator}.
+	 */
+	final List<Drug> drugs;
+
+	/**
+	 * All drugs from {@link #drugs} matching a {@link DrugFilter}.
+	 */
+	final List<Drug> filteredDrugs;
+
+	private final int mDbVersion;
+	private final Date mToday;
+
+	private final HashMap<Integer, DrugInfo> mInfos;
+
+	/**
+	 * The precomputed view state of a drug.
+	 */
+	private static final class DrugInfo
+	{
+		final Fraction[] takenDoses = new Fraction[Constants.DOSE_TIMES.length];
+		final int[] intakeCounts = new int[Constants.DOSE_TIMES.length];
+
+		boolean hasMissedDoses;
+		boolean isCurrentSupplyVisible;
+	}
+
+	@SuppressWarnings("serial")
+	private static final LinkedHashMap<String, DayModel> sCache = new LinkedHashMap<String, DayModel>(MAX_CACHED, 0.75f, true) {
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, DayModel> eldest) {
+			return size() > MAX_CACHED;
+		}
+	};
+
+	private static int sCacheGeneration = 0;
+
+	// The keys of the models that are about to be prefetched. Guarded by sCache.
+	private static final HashSet<String> sPrefetching = new HashSet<String>();
+
+	private static final ExecutorService PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			final Thread thread = new Thread(r, "DayModel.prefetch");
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	// Guarded by sCache
+	private static SortedDrugs sSortedDrugs = null;
+
+	/**
+	 * A patient's drugs, sorted using a {@link DrugComparator}, which only
+	 * depends on the drugs' schedules.
+	 */
+	private static final class SortedDrugs
+	{
+		final int patientId;
+		final Date today;
+		final List<Drug> drugs;
+
+		SortedDrugs(int patientId, Date today, List<Drug> drugs)
+		{
+			this.patientId = patientId;
+			this.today = today;
+			this.drugs = drugs;
+		}
+	}
+
+	/**
+	 * Returns the model for the specified patient and date, building it if necessary.
+	 */
+	static DayModel get(int patientId, Date date)
+	{
+		final String key = getKey(patientId, date);
+		final int generation;
+
+		synchronized(sCache)
+		{
+			final DayModel model = sCache.get(key);
+			if(model != null && model.isValid())
+				return model;
+
+			generation = sCacheGeneration;
+		}
+
+		final DayModel model = new DayModel(patientId, date);
+
+		synchronized(sCache)
+		{
+			// don't cache a model that was built from stale data
+			if(generation == sCacheGeneration && model.mDbVersion == Database.getVersion())
+				sCache.put(key, model);
+		}
+
+		return model;
+	}
+
+	/**
+	 * Sorts the patient's drugs for the next model of that patient.
+	 * <p>
+	 * Sorting does not depend on the DoseEvents, so this may be called once
+	 * the database has been preloaded, while the DoseEvents are being loaded.
+	 *
+	 * @see Database#preload(android.content.Context)
+	 */
+	static void prepare(int patientId)
+	{
+		final Timer t = new Timer();
+		final List<Drug> drugs = new ArrayList<Drug>();
+
+		for(Drug drug : Database.getAll(Drug.class))
+		{
+			if(drug.getPatientId() == patientId)
+				drugs.add(drug);
+		}
+
+		Collections.sort(drugs, new DrugComparator());
+
+		synchronized(sCache) {
+			sSortedDrugs = new SortedDrugs(patientId, DateTime.today(), drugs);
+		}
+
+		Trace.record("daymodel.prepare", t);
+	}
+
+	/**
+	 * Builds the models for the specified patient and dates in a background thread.
+	 * <p>
+	 * Models are built one after another; a model that is already about to be
+	 * built is not queued again.
+	 */
+	static void prefetch(final int patientId, final Date... dates)
+	{
+		for(final Date date : dates)
+		{
+			final String key = getKey(patientId, date);
+
+			synchronized(sCache)
+			{
+				if(!sPrefetching.add(key))
+					continue;
+			}
+
+			PREFETCH_EXECUTOR.execute(new Runnable() {
+
+				@Override
+				public void run()
+				{
+					try
+					{
+						final Timer t = LOGV ? new Timer() : null;
+						get(patientId, date);
+						if(LOGV) Log.v(TAG, "prefetch: patient " + patientId + ", " + DateTime.toDateString(date) + ": " + t);
+					}
+					finally
+					{
+						synchronized(sCache) {
+							sPrefetching.remove(key);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Builds the models for the days around the specified date in a background thread.
+	 */
+	static void prefetchNeighbors(int patientId, Date date)
+	{
+		final List<Date> dates = new ArrayList<Date>(2 * PREFETCH_DAYS);
+
+		synchronized(sCache)
+		{
+			for(int i = 1; i <= PREFETCH_DAYS; ++i)
+			{
+				for(int sign = 1; sign >= -1; sign -= 2)
+				{
+					final Date neighbor = DateTime.add(date, Calendar.DAY_OF_MONTH, sign * i);
+					final DayModel model = sCache.get(getKey(patientId, neighbor));
+
+					if(model == null || !model.isValid())
+						dates.add(neighbor);
+				}
+			}
+		}
+
+		if(!dates.isEmpty())
+			prefetch(patientId, dates.toArray(new Date[dates.size()]));
+	}
+
+	static void invalidateAll()
+	{
+		synchronized(sCache)
+		{
+			sCache.clear();
+			sSortedDrugs = null;
+			++sCacheGeneration;
+		}
+	}
+
+	private DayModel(int patientId, Date date)
+	{
+		this.patientId = patientId;
+		this.date = date;
+
+		final Timer t = new Timer();
+
+		mDbVersion = Database.getVersion();
+		mToday = DateTime.today();
+
+		final List<Drug> all = Entries.getAllDrugs(patientId);
+		if(!takeSortedDrugs(patientId, all))
+			Collections.sort(all, new DrugComparator());
+
+		final List<Drug> filtered = new ArrayList<Drug>(all.size());
+		final DrugFilter filter = new DrugFilter(date);
+
+		mInfos = new HashMap<Integer, DrugInfo>(all.size());
+
+		for(Drug drug : all)
+		{
+			if(filter.matches(drug))
+				filtered.add(drug);
+
+			mInfos.put(drug.getId(), computeInfo(drug));
+		}
+
+		drugs = Collections.unmodifiableList(all);
+		filteredDrugs = Collections.unmodifiableList(filtered);
+
+		Trace.record("daymodel.build", t);
+	}
+
+	@Override
+	public boolean hasMissedDoses(Drug drug)
+	{
+		final DrugInfo info = getInfo(drug);
+		if(info != null)
+			return info.hasMissedDoses;
+
+		return isToday() && Entries.hasMissingDosesBeforeDate(drug, date);
+	}
+
+	@Override
+	public boolean isCurrentSupplyVisible(Drug drug)
+	{
+		final DrugInfo info = getInfo(drug);
+		if(info != null)
+			return info.isCurrentSupplyVisible;
+
+		return computeIsCurrentSupplyVisible(drug);
+	}
+
+	@Override
+	public Fraction getTakenDose(Drug drug, int doseTime)
+	{
+		final DrugInfo info = getInfo(drug);
+		if(info != null)
+			return info.takenDoses[doseTime];
+
+		final MutableFraction dose = new MutableFraction();
+		for(DoseEvent event : Entries.findDoseEvents(drug, date, doseTime))
+			dose.add(event.getDose());
+
+		return dose;
+	}
+
+	@Override
+	public int getIntakeCount(Drug drug, int doseTime)
+	{
+		final DrugInfo info = getInfo(drug);
+		if(info != null)
+			return info.intakeCounts[doseTime];
+
+		return Entries.countDoseEvents(drug, date, doseTime);
+	}
+
+	private boolean isValid() {
+		return mDbVersion == Database.getVersion() && mToday.equals(DateTime.today());
+	}
+
+	private boolean isToday() {
+		return mToday.equals(date);
+	}
+
+	/**
+	 * Returns the drug's precomputed state, or <code>null</code> if it is unknown or stale.
+	 */
+	private DrugInfo getInfo(Drug drug) {
+		return isValid() ? mInfos.get(drug.getId()) : null;
+	}
+
+	private DrugInfo computeInfo(Drug drug)
+	{
+		final DrugInfo info = new DrugInfo();
+
+		final MutableFraction[] doses = new MutableFraction[info.takenDoses.length];
+		for(int i = 0; i != doses.length; ++i)
+			doses[i] = new MutableFraction();
+
+		// a single pass over the day's events instead of one per dose time
+		for(DoseEvent event : Entries.findDoseEvents(drug, date, null))
+		{
+			final int doseTime = event.getDoseTime();
+			doses[doseTime].add(event.getDose());
+			++info.intakeCounts[doseTime];
+		}
+
+		for(int i = 0; i != doses.length; ++i)
+			info.takenDoses[i] = doses[i].isZero() ? Fraction.ZERO : new Fraction(doses[i]);
+
+		info.hasMissedDoses = isToday() && Entries.hasMissingDosesBeforeDate(drug, date);
+		info.isCurrentSupplyVisible = computeIsCurrentSupplyVisible(drug);
+
+		return info;
+	}
+
+	private boolean computeIsCurrentSupplyVisible(Drug drug)
+	{
+		if(isToday())
+			return drug.getRefillSize() != 0 || !drug.getCurrentSupply().isZero();
+
+		return date.after(mToday);
+	}
+
+	/**
+	 * Replaces the contents of <code>drugs</code> with the drugs sorted by
+	 * {@link #prepare(int)}, if these are still the same.
+	 */
+	private static boolean takeSortedDrugs(int patientId, List<Drug> drugs)
+	{
+		final SortedDrugs sorted;
+
+		synchronized(sCache)
+		{
+			sorted = sSortedDrugs;
+			sSortedDrugs = null;
+		}
+
+		if(sorted == null || sorted.patientId != patientId || !sorted.today.equals(DateTime.today()))
+			return false;
+
+		if(sorted.drugs.size() != drugs.size() || !sorted.drugs.containsAll(drugs))
+			return false;
+
+		drugs.clear();
+		drugs.addAll(sorted.drugs);
+		return true;
+	}
+
+	private static String getKey(int patientId, Date date) {
+		return patientId + ":" + date.getTime();
+	}
+}
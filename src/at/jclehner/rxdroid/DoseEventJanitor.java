@@ -21,6 +21,7 @@
 
 package at.jclehner.rxdroid;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
@@ -36,6 +37,8 @@ import at.jclehner.rxdroid.db.Patient;
 import at.jclehner.rxdroid.db.Schedule;
 import at.jclehner.rxdroid.util.Constants;
 import at.jclehner.rxdroid.util.DateTime;
+import at.jclehner.rxdroid.util.Timer;
+import at.jclehner.rxdroid.util.Trace;
 
 public enum DoseEventJanitor implements
 		NotificationReceiver.OnDoseTimeChangeListener,
@@ -69,19 +72,40 @@ public enum DoseEventJanitor implements
 
 		SplashScreenActivity.setStatusMessage(R.string._title_db_status_creating_intakes);
 
+		final Timer t = new Timer();
+
 		for(Drug drug : Database.getAll(Drug.class))
 			createAutoDoseEvents(drug);
 
-		////////////////////////////////////
-
-		SplashScreenActivity.setStatusMessage(R.string._title_db_status_discarding_intakes);
+		Trace.record("janitor.autoDoses", t);
+	}
 
+	/**
+	 * Deletes all dose events that are past the maximum history age.
+	 * <p>
+	 * The dose events are collected in the calling thread, but deleted in the
+	 * main thread, as the UI may be accessing them.
+	 */
+	public static void discardOldDoseEvents()
+	{
+		final Timer t = new Timer();
 		final Date today = DateTime.today();
 
 		final List<DoseEvent> events = Database.getAll(DoseEvent.class);
-//		final ArrayList<Integer> idsToDelete = new ArrayList<Integer>();
-		final int oldIntakeCount = events.size();
-		int deleteCount = 0;
+		final ArrayList<DoseEvent> expired = new ArrayList<DoseEvent>();
+		int oldIntakeCount = events.size();
+
+		// Older events are not cached, but kept in each drug's history
+		final Date oldestPossible = Settings.getOldestPossibleHistoryDate(today);
+		if(oldestPossible != null)
+		{
+			for(Drug drug : Database.getAll(Drug.class))
+			{
+				final List<DoseEvent> history = Entries.findDoseEventHistoryBefore(drug, oldestPossible);
+				oldIntakeCount += drug.getDoseEventHistory().size();
+				events.addAll(history);
+			}
+		}
 
 		Date oldest = null, newest = null;
 
@@ -97,33 +121,40 @@ public enum DoseEventJanitor implements
 				if(newest == null || date.after(newest))
 					newest = date;
 
-				++deleteCount;
-				Database.delete(intake, Database.FLAG_DONT_NOTIFY_LISTENERS);
-
-				//intake.getDrug().setLastDosesClearedDate(date);
-
-//				idsToDelete.add(intake.getId());
+				expired.add(intake);
 			}
 		}
 
-//		Database.deleteByIds(intake.class, idsToDelete);
-
+		final int deleteCount = expired.size();
 		final int deletedPercentage = (int) (deleteCount == 0 ? 0 : (deleteCount * 100.0) / oldIntakeCount);
 
-		Log.i(TAG, "Deleted " + deleteCount + " entries (~" + deletedPercentage + "%); oldest: " +
+		Log.i(TAG, "Deleting " + deleteCount + " entries (~" + deletedPercentage + "%); oldest: " +
 				(oldest == null ? "N/A" : DateTime.toDateString(oldest)) + ", newest: " +
 				(oldest == null ? "N/A" : DateTime.toDateString(newest)));
 
-		if(newest != null)
-		{
-			// the day after the most recent dose event that was just deleted is the oldest possible
-			// date for any dose event.
-			newest = DateTime.add(newest, Calendar.DAY_OF_MONTH, 1);
+		Trace.record("janitor.discard.scan", t);
 
-			final Date oldestPossibleDoseEventTime = Settings.getDate(Keys.OLDEST_POSSIBLE_DOSE_EVENT_TIME);
-			if(oldestPossibleDoseEventTime == null || newest.after(oldestPossibleDoseEventTime))
-				Settings.putDate(Keys.OLDEST_POSSIBLE_DOSE_EVENT_TIME, newest);
-		}
+		if(newest == null)
+			return;
+
+		// the day after the most recent dose event that is deleted is the oldest possible
+		// date for any dose event.
+		newest = DateTime.add(newest, Calendar.DAY_OF_MONTH, 1);
+
+		final Date oldestPossibleDoseEventTime = Settings.getDate(Keys.OLDEST_POSSIBLE_DOSE_EVENT_TIME);
+		if(oldestPossibleDoseEventTime == null || newest.after(oldestPossibleDoseEventTime))
+			Settings.putDate(Keys.OLDEST_POSSIBLE_DOSE_EVENT_TIME, newest);
+
+		RxDroid.runInMainThread(new Runnable() {
+
+			@Override
+			public void run()
+			{
+				final Timer t = new Timer();
+				Database.deleteAll(DoseEvent.class, expired);
+				Trace.record("janitor.discard.delete", t);
+			}
+		});
 	}
 
 	public static void registerSelf()
@@ -39,12 +39,12 @@ import android.widget.FrameLayout;
 import android.widget.ImageView;
 import android.widget.TextView;
 import at.jclehner.rxdroid.Fraction.MutableFraction;
-import at.jclehner.rxdroid.db.Database;
 import at.jclehner.rxdroid.db.Database.OnChangeListener;
 import at.jclehner.rxdroid.db.Drug;
 import at.jclehner.rxdroid.db.Entries;
 import at.jclehner.rxdroid.db.Entry;
 import at.jclehner.rxdroid.db.DoseEvent;
+import at.jclehner.rxdroid.db.ListenerRegistry;
 import at.jclehner.rxdroid.util.DateTime;
 import at.jclehner.rxdroid.util.Util;
 
@@ -75,6 +75,8 @@ public class DoseView extends FrameLayout implements OnChangeListener
 	private Date mDate;
 	private int mIntakeCount = 0;
 
+	private boolean mIsAttached = false;
+
 	private MutableFraction mDisplayDose;
 
 	private int mStatus = STATUS_INDETERMINATE;
@@ -181,22 +183,33 @@ public class DoseView extends FrameLayout implements OnChangeListener
 		if(date == null || drug == null)
 			throw new NullPointerException();
 
-		mDate = date;
-		mDrug = drug;
-
-		//mDose = getDose();
-
-		mDisplayDose = new MutableFraction();
+		final MutableFraction takenDose = new MutableFraction();
 
-		List<DoseEvent> events = Entries.findDoseEvents(mDrug, mDate, mDoseTime);
+		final List<DoseEvent> events = Entries.findDoseEvents(drug, date, mDoseTime);
 		for(DoseEvent intake : events)
 		{
-			mDisplayDose.add(intake.getDose());
+			takenDose.add(intake.getDose());
 			if(LOGV) Log.v(TAG, intake.toString());
 		}
 
-		mIntakeCount = events.size();
+		setDoseFromDrugAndDate(date, drug, takenDose, events.size());
+	}
+
+	/**
+	 * Like {@link #setDoseFromDrugAndDate(Date, Drug)}, but uses a precomputed
+	 * taken dose and intake count instead of querying the database.
+	 */
+	public void setDoseFromDrugAndDate(Date date, Drug drug, Fraction takenDose, int intakeCount)
+	{
+		if(date == null || drug == null)
+			throw new NullPointerException();
 
+		mDate = date;
+		mDrug = drug;
+		mDisplayDose = new MutableFraction(takenDose);
+		mIntakeCount = intakeCount;
+
+		updateRegistration();
 		updateView();
 	}
 
@@ -312,8 +325,8 @@ public class DoseView extends FrameLayout implements OnChangeListener
 
 		changeBackground(0);
 
-		if(mDrug != null)
-			Database.registerEventListener(this);
+		mIsAttached = true;
+		updateRegistration();
 	}
 
 	@Override
@@ -322,7 +335,9 @@ public class DoseView extends FrameLayout implements OnChangeListener
 		super.onDetachedFromWindow();
 
 		changeBackground(0);
-		Database.unregisterEventListener(this);
+
+		mIsAttached = false;
+		ListenerRegistry.unregister(this);
 	}
 
 	@Override
@@ -342,6 +357,17 @@ public class DoseView extends FrameLayout implements OnChangeListener
 		setPadding(0, 0, 0, 0);
 	}
 
+	/**
+	 * Registers for changes to the current drug, date and dose time, if attached.
+	 */
+	private void updateRegistration()
+	{
+		if(mIsAttached && mDrug != null)
+			ListenerRegistry.register(this, mDrug.getId(), mDate, mDoseTime);
+		else
+			ListenerRegistry.unregister(this);
+	}
+
 	private boolean isApplicableDoseEvent(DoseEvent intake)
 	{
 		if(intake.getDrugId() != mDrug.getId())
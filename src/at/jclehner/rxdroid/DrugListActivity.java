@@ -22,7 +22,6 @@
 package at.jclehner.rxdroid;
 
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
@@ -57,6 +56,7 @@ import android.view.View.OnLongClickListener;
 import android.view.ViewConfiguration;
 import android.view.ViewGroup;
 import android.view.ViewStub;
+import android.view.ViewTreeObserver.OnPreDrawListener;
 import android.widget.DatePicker;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -74,11 +74,14 @@ import at.jclehner.rxdroid.db.Entries;
 import at.jclehner.rxdroid.db.Entry;
 import at.jclehner.rxdroid.db.Patient;
 import at.jclehner.rxdroid.db.Schedule;
+import at.jclehner.rxdroid.db.SupplyProjection;
 import at.jclehner.rxdroid.ui.DrugOverviewAdapter;
 import at.jclehner.rxdroid.util.CollectionUtils;
 import at.jclehner.rxdroid.util.Components;
 import at.jclehner.rxdroid.util.DateTime;
 import at.jclehner.rxdroid.util.ShowcaseViews;
+import at.jclehner.rxdroid.util.Timer;
+import at.jclehner.rxdroid.util.Trace;
 import at.jclehner.rxdroid.util.Util;
 import at.jclehner.rxdroid.widget.AutoDragSortListView;
 import at.jclehner.rxdroid.widget.DrugSupplyMonitor;
@@ -109,6 +112,7 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 	private static final int DIALOG_INFO = 0;
 
 	public static final String EXTRA_DATE = "date";
+	public static final String EXTRA_PATIENT_ID = "patient_id";
 	public static final String EXTRA_STARTED_FROM_NOTIFICATION = "started_from_notification";
 
 	public static final int TAG_DRUG_ID = R.id.tag_drug_id;
@@ -149,6 +153,20 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 		//mPager.setOnPageChangeListener(mPageListener);
 		mPager.setOffscreenPageLimit(1);
 
+		if(StartupPipeline.isWaitingForFirstFrame())
+		{
+			mPager.getViewTreeObserver().addOnPreDrawListener(new OnPreDrawListener() {
+
+				@Override
+				public boolean onPreDraw()
+				{
+					mPager.getViewTreeObserver().removeOnPreDrawListener(this);
+					StartupPipeline.onFirstFrame();
+					return true;
+				}
+			});
+		}
+
 		//startNotificationService();
 		NotificationReceiver.rescheduleAlarmsAndUpdateNotification(true);
 
@@ -170,7 +188,10 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 		Date date = null;
 
 		if(intent != null)
+		{
 			date = (Date) intent.getSerializableExtra(EXTRA_DATE);
+			mCurrentPatientId = intent.getIntExtra(EXTRA_PATIENT_ID, mCurrentPatientId);
+		}
 
 		if(date == null)
 			date = Settings.getActiveDate();
@@ -267,7 +288,10 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 			}
 			case R.id.menuitem_patient:
 			{
-
+				final PatientSelectorDialog dialog = PatientSelectorDialog.newInstance(mCurrentPatientId);
+				dialog.setOnSelectOrDeletePatientListener(mPatientListener);
+				dialog.show(getSupportFragmentManager(), "patient_selector");
+				return true;
 			}
 			case R.id.menuitem_add:
 			{
@@ -498,6 +522,8 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 			return new ViewStub(this);
 		}
 
+		final Timer t = new Timer();
+
 		final View v = getLayoutInflater().inflate(R.layout.drug_list_fragment, null);
 		final AutoDragSortListView listView = (AutoDragSortListView) v.findViewById(android.R.id.list);
 		final TextView emptyView = (TextView) v.findViewById(android.R.id.empty);
@@ -506,10 +532,10 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 
 		if(LOGV) Log.d(TAG, "makeView: date=" + DateTime.toDateString(date));
 
-		final List<Drug> drugs = Entries.getAllDrugs(mCurrentPatientId);
-		Collections.sort(drugs, new DrugComparator());
+		final DayModel model = DayModel.get(mCurrentPatientId, date);
+		final List<Drug> drugs = model.drugs;
 
-		updateListAdapter(listView, date, drugs);
+		updateListAdapter(listView, date, model);
 
 
 		final String text;
@@ -561,6 +587,8 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 		listView.setEmptyView(emptyView);
 		listView.setDragHandleId(R.id.drug_icon);
 
+		Trace.record("pager.makeView", t);
+
 		return v;
 	}
 
@@ -670,7 +698,9 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 	private static final int PAGER_SCROLL = 1;
 	private static final int PAGER_INIT = 1 << 1;
 
-	private void invalidateViewPager() {
+	private void invalidateViewPager()
+	{
+		DayModel.invalidateAll();
 		setDate(mCurrentDate, PAGER_INIT);
 	}
 
@@ -691,6 +721,9 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 
 		mCurrentDate = date;
 		getIntent().putExtra(EXTRA_DATE, date);
+		getIntent().putExtra(EXTRA_PATIENT_ID, mCurrentPatientId);
+
+		DayModel.prefetchNeighbors(mCurrentPatientId, date);
 
 		if((flags & PAGER_INIT) != 0)
 		{
@@ -796,7 +829,7 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 		return DateTime.isToday(mCurrentDate);
 	}
 
-	private void updateListAdapter(DragSortListView listView, Date date, List<Drug> drugs)
+	private void updateListAdapter(DragSortListView listView, Date date, DayModel model)
 	{
 		if(listView == null)
 		{
@@ -804,14 +837,11 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 			return;
 		}
 
-		if(drugs == null)
-		{
-			drugs = Database.getAll(Drug.class);
-			Collections.sort(drugs);
-		}
+		final DrugOverviewAdapter adapter = new DrugOverviewAdapter(this, model.drugs, date);
+		adapter.setDayInfo(model);
 
-		final DrugOverviewAdapter adapter = new DrugOverviewAdapter(this, drugs, date);
-		adapter.setFilter(mShowingAll ? null : new DrugFilter(date));
+		if(!mShowingAll)
+			adapter.setFilteredItems(model.filteredDrugs);
 
 		listView.setAdapter(adapter);
 	}
@@ -892,12 +922,18 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 
 	static class DrugFilter implements CollectionUtils.Filter<Drug>
 	{
-		final boolean mShowSupplyMonitors = Settings.getBoolean(Settings.Keys.SHOW_SUPPLY_MONITORS, false);
+		final boolean mShowSupplyMonitors = Settings.snapshot().showSupplyMonitors;
 
 		private Date mFilterDate;
+		// Shared with the notification, so both agree on today's drugs
+		private ReminderState mReminderState;
 
-		public DrugFilter(Date date) {
+		public DrugFilter(Date date)
+		{
 			mFilterDate = date;
+
+			if(date != null && DateTime.isToday(date))
+				mReminderState = ReminderState.get();
 		}
 
 		@Override
@@ -908,7 +944,7 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 
 			if(drug.hasAutoDoseEvents())
 			{
-				if(Entries.hasLowSupplies(drug))
+				if(hasLowSupplies(drug))
 					return true;
 
 				return mShowSupplyMonitors;
@@ -920,17 +956,31 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 			if(Entries.countDoseEvents(drug, mFilterDate, null) != 0)
 				return true;
 
-			if(Entries.hasLowSupplies(drug))
+			if(hasLowSupplies(drug))
 				return true;
 
-			if(DateTime.isToday(mFilterDate) && Entries.hasMissingDosesBeforeDate(drug, mFilterDate))
-				return true;
+			if(mReminderState != null)
+			{
+				if(mReminderState.getDrugsWithMissedDoses().contains(drug))
+					return true;
+
+				if(Entries.hasMissingDosesBeforeDate(drug, mFilterDate))
+					return true;
+			}
 
 			if(!drug.hasDoseOnDate(mFilterDate))
 				return false;
 
 			return true;
 		}
+
+		private boolean hasLowSupplies(Drug drug)
+		{
+			if(mReminderState != null)
+				return mReminderState.getDrugsWithLowSupplies().contains(drug);
+
+			return SupplyProjection.hasLowSupplies(drug);
+		}
 	}
 
 	interface OnClickAndLongClickListener extends OnClickListener, OnLongClickListener {};
@@ -1057,11 +1107,31 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 		}
 	};
 
+	private final PatientSelectorDialog.OnSelectOrDeletePatientListener mPatientListener =
+			new PatientSelectorDialog.OnSelectOrDeletePatientListener() {
+
+		@Override
+		public void onSelectPatient(Patient patient)
+		{
+			mCurrentPatientId = patient.getId();
+			setDate(mCurrentDate, PAGER_INIT);
+		}
+
+		@Override
+		public void onDeletePatient(Patient patient)
+		{
+			// TODO
+		}
+	};
+
 	private final OnDoseTimeChangeListener mDoseTimeListener = new OnDoseTimeChangeListener() {
 
 		@Override
 		public void onDoseTimeBegin(Date date, int doseTime)
 		{
+			// the drugs' sort order depends on the active dose time
+			DayModel.invalidateAll();
+
 			if(!date.equals(mCurrentDate))
 				setDate(date, PAGER_INIT);
 		}
@@ -1091,7 +1161,7 @@ public class DrugListActivity extends SherlockFragmentActivity implements OnLong
 				mDate = dtInfo.nextDoseTimeDate();
 			}
 
-			mSmartSortEnabled = Settings.getBoolean(Keys.USE_SMART_SORT, false);
+			mSmartSortEnabled = Settings.snapshot().useSmartSort;
 		}
 
 		@Override
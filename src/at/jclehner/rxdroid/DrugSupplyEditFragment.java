@@ -88,7 +88,7 @@ public class DrugSupplyEditFragment extends DialogFragment
 		final Fraction value;
 
 		if(icicle != null)
-			value = icicle.getParcelable("value");
+			value = (Fraction) icicle.getSerializable("value");
 		else
 			value = drug.getCurrentSupply();
 
@@ -104,7 +104,7 @@ public class DrugSupplyEditFragment extends DialogFragment
 
 		FractionInputDialog dialog = getDialog();
 		if(dialog != null)
-			savedInstanceState.putParcelable("value", dialog.getValue());
+			savedInstanceState.putSerializable("value", dialog.getValue());
 	}
 
 	@Override
@@ -21,11 +21,16 @@
 
 package at.jclehner.rxdroid;
 
-import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
-
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.annotation.TargetApi;
 import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -35,6 +40,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Looper;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationCompat.BigTextStyle;
 import android.support.v4.app.NotificationCompat.InboxStyle;
@@ -44,10 +50,12 @@ import at.jclehner.androidutils.EventDispatcher;
 import at.jclehner.rxdroid.Settings.DoseTimeInfo;
 import at.jclehner.rxdroid.db.Database;
 import at.jclehner.rxdroid.db.Drug;
-import at.jclehner.rxdroid.db.Entries;
 import at.jclehner.rxdroid.db.Schedule;
 import at.jclehner.rxdroid.preferences.TimePeriodPreference.TimePeriod;
 import at.jclehner.rxdroid.util.DateTime;
+import at.jclehner.rxdroid.util.Metrics;
+import at.jclehner.rxdroid.util.Timer;
+import at.jclehner.rxdroid.util.Trace;
 import at.jclehner.rxdroid.util.Util;
 
 public class NotificationReceiver extends BroadcastReceiver
@@ -61,6 +69,24 @@ public class NotificationReceiver extends BroadcastReceiver
 
 	private static final Class<?>[] EVENT_HANDLER_ARG_TYPES = { Date.class, int.class };
 
+	/**
+	 * The time after which the system considers a broadcast receiver unresponsive.
+	 */
+	private static final long RECEIVER_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * If processing a broadcast has taken longer than this, work that isn't
+	 * needed for the notification is deferred until after the broadcast.
+	 */
+	private static final long TIME_BUDGET_MILLIS = RECEIVER_TIMEOUT_MILLIS / 2;
+
+	private static final long EVENT_TIMEOUT_MILLIS = 2000;
+
+	private static final Metrics.Counter METRIC_REFRESHES = Metrics.counter("notification.refresh");
+	private static final Metrics.Counter METRIC_POSTED = Metrics.counter("notification.posted");
+	private static final Metrics.Counter METRIC_UNCHANGED = Metrics.counter("notification.unchanged");
+	private static final Metrics.Counter METRIC_REPEATED = Metrics.counter("notification.repeated");
+
 	public interface OnDoseTimeChangeListener
 	{
 		void onDoseTimeBegin(Date date, int doseTime);
@@ -81,11 +107,44 @@ public class NotificationReceiver extends BroadcastReceiver
 	private Context mContext;
 	private AlarmManager mAlarmMgr;
 
-	private List<Drug> mAllDrugs;
-
 	private boolean mDoPostSilent = false;
 	private boolean mForceUpdate = false;
 
+	private boolean mIsAlarmRepetition = false;
+	private boolean mIsAlarm = false;
+
+	private static final AtomicBoolean sIsPlanUpdatePending = new AtomicBoolean(false);
+
+	// The dose time event to post, if any
+	private String mEventName;
+	private Date mEventDate;
+	private int mEventDoseTime;
+
+	// The model posted while processing this broadcast
+	private NotificationModel mPostedModel;
+	private NotificationCompat.Builder mPostedBuilder;
+	private boolean mPostedIsLowSupplyNotification;
+	private boolean mIsNotificationUnchanged;
+
+	// The model of the notification that is currently shown, if any
+	private static volatile NotificationModel sShownModel;
+
+	// The most recent notification, along with the state it was built from
+	private static volatile LastNotification sLastNotification;
+
+	private static volatile String sLastTimings = "";
+
+	// The alarm that is currently scheduled, as far as this process knows
+	private static AlarmPlanner.Alarm sArmedAlarm;
+
+	private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "NotificationReceiver");
+		}
+	});
+
 	private static final EventDispatcher<OnDoseTimeChangeListener> sEventMgr =
 			new EventDispatcher<OnDoseTimeChangeListener>();
 
@@ -103,8 +162,10 @@ public class NotificationReceiver extends BroadcastReceiver
 		if(intent == null)
 			return;
 
+		final PhaseTimer timer = new PhaseTimer();
+
 		Settings.init();
-		Database.init();
+		METRIC_REFRESHES.inc();
 
 		final boolean isAlarmRepetition = intent.getBooleanExtra(EXTRA_IS_ALARM_REPETITION, false);
 
@@ -115,9 +176,11 @@ public class NotificationReceiver extends BroadcastReceiver
 			{
 				final Date date = (Date) intent.getSerializableExtra(EXTRA_DATE);
 				final boolean isDoseTimeEnd = intent.getBooleanExtra(EXTRA_IS_DOSE_TIME_END, false);
-				final String eventName = isDoseTimeEnd ? "onDoseTimeEnd" : "onDoseTimeBegin";
 
-				sEventMgr.post(eventName, EVENT_HANDLER_ARG_TYPES, date, doseTime);
+				// Posted once the database is loaded, as the listeners use it
+				mEventName = isDoseTimeEnd ? "onDoseTimeEnd" : "onDoseTimeBegin";
+				mEventDate = date;
+				mEventDoseTime = doseTime;
 			}
 		}
 
@@ -125,19 +188,293 @@ public class NotificationReceiver extends BroadcastReceiver
 		mAlarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
 		mDoPostSilent = intent.getBooleanExtra(EXTRA_SILENT, false);
 		mForceUpdate = isAlarmRepetition ? true : intent.getBooleanExtra(EXTRA_FORCE_UPDATE, false);
-		mAllDrugs = Database.getAll(Drug.class);
+		mIsAlarmRepetition = isAlarmRepetition;
+
+		// Only alarms, as opposed to broadcasts sent after data changes, have a dose time
+		mIsAlarm = intent.hasExtra(EXTRA_DOSE_TIME);
+		if(mIsAlarm)
+			AlarmPlanner.onWakeup();
+
+		timer.endPhase("main");
+
+		if(Version.SDK_IS_PRE_HONEYCOMB)
+			process(timer);
+		else
+			processAsync(timer);
+	}
+
+	/**
+	 * Returns the phase timings of the most recent broadcast, for diagnostic purposes.
+	 */
+	public static String getLastTimings() {
+		return sLastTimings;
+	}
+
+	@TargetApi(11)
+	private void processAsync(final PhaseTimer timer)
+	{
+		final PendingResult result = goAsync();
+
+		// Broadcasts are processed one after another, as they were in the main thread
+		EXECUTOR.execute(new Runnable() {
+
+			@Override
+			public void run()
+			{
+				try
+				{
+					process(timer);
+				}
+				finally
+				{
+					result.finish();
+				}
+			}
+		});
+	}
+
+	private void process(PhaseTimer timer)
+	{
+		if(mIsAlarmRepetition && repeatLastNotification())
+		{
+			timer.endPhase("repeat");
+			flushSettings(timer);
+			logTimings(timer);
+			return;
+		}
+
+		if(!Database.isLoaded())
+		{
+			// Loading the database may take a while after the process was
+			// killed, so post the planned notification, or the last one, in
+			// the meantime. The notification is updated once the database
+			// is loaded.
+			if(!postPlannedNotification())
+				postProvisionalNotification();
+
+			timer.endPhase("plan");
+
+			Database.init();
+			timer.endPhase("db");
+		}
+
+		if(mEventName != null)
+		{
+			postDoseTimeEvent();
+			timer.endPhase("event");
+		}
 
 		rescheduleAlarms();
+		timer.endPhase("alarms");
+
 		updateCurrentNotifications();
+		timer.endPhase("notification");
+
+		// After a data change, the plan is rebuilt once the broadcast has been
+		// handled, as there may be more changes to come
+		if(mIsAlarm && timer.total() < TIME_BUDGET_MILLIS)
+		{
+			ReminderPlan.update(mContext);
+			timer.endPhase("update-plan");
+		}
+		else
+		{
+			if(!mIsAlarm)
+				ReminderPlan.invalidate(mContext);
+
+			updatePlanLater();
+		}
+
+		flushSettings(timer);
+		logTimings(timer);
 	}
 
-	private void rescheduleAlarms()
+	/**
+	 * Posts the dose time event in the main thread, as most listeners are
+	 * activities, and waits until it has been handled.
+	 */
+	private void postDoseTimeEvent()
+	{
+		final Runnable r = new Runnable() {
+
+			@Override
+			public void run() {
+				sEventMgr.post(mEventName, EVENT_HANDLER_ARG_TYPES, mEventDate, mEventDoseTime);
+			}
+		};
+
+		if(Looper.myLooper() == Looper.getMainLooper())
+		{
+			r.run();
+			return;
+		}
+
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		RxDroid.runInMainThread(new Runnable() {
+
+			@Override
+			public void run()
+			{
+				try
+				{
+					r.run();
+				}
+				finally
+				{
+					latch.countDown();
+				}
+			}
+		});
+
+		try
+		{
+			if(!latch.await(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+				Log.w(TAG, "postDoseTimeEvent: timed out");
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Updates the reminder plan after the current broadcast has been processed.
+	 */
+	/**
+	 * Writes the state changed by this broadcast, e.g. the wakeup counters, as
+	 * the process may be killed once the broadcast has been handled.
+	 */
+	private static void flushSettings(PhaseTimer timer)
+	{
+		Settings.flush();
+		timer.endPhase("flush");
+	}
+
+	/**
+	 * Updates the plan after the current broadcast. Requests made before the
+	 * update has started are coalesced.
+	 */
+	private void updatePlanLater()
+	{
+		if(!sIsPlanUpdatePending.compareAndSet(false, true))
+			return;
+
+		final Context context = mContext.getApplicationContext();
+
+		EXECUTOR.execute(new Runnable() {
+
+			@Override
+			public void run()
+			{
+				sIsPlanUpdatePending.set(false);
+				ReminderPlan.update(context);
+			}
+		});
+	}
+
+	/**
+	 * Alerts the user again using the last notification, if nothing has changed
+	 * since it was posted.
+	 */
+	private boolean repeatLastNotification()
+	{
+		final LastNotification last = sLastNotification;
+		if(last == null || !Database.isLoaded())
+			return false;
+
+		final DoseTimeInfo dtInfo = Settings.getDoseTimeInfo();
+		final boolean isActiveDoseTime = dtInfo.activeDoseTime() != Schedule.TIME_INVALID;
+		final Date date = isActiveDoseTime ? dtInfo.activeDate() : dtInfo.nextDoseTimeDate();
+		final int doseTime = isActiveDoseTime ? dtInfo.activeDoseTime() : dtInfo.nextDoseTime();
+
+		if(!last.state.isValidFor(date, doseTime, isActiveDoseTime))
+			return false;
+
+		final long alarmRepeatMins = Settings.getStringAsInt(Settings.Keys.ALARM_REPEAT, 0);
+		final long alarmRepeatMillis = alarmRepeatMins == -1 ? 10000 : alarmRepeatMins * 60000;
+
+		synchronized(NotificationReceiver.class)
+		{
+			if(sArmedAlarm == null || alarmRepeatMillis <= 0)
+				return false;
+
+			final AlarmPlanner.Alarm next =
+					AlarmPlanner.getNextRepetition(sArmedAlarm, alarmRepeatMillis, System.currentTimeMillis());
+
+			if(scheduleAlarm(next, true))
+				sArmedAlarm = next;
+		}
+
+		synchronized(last)
+		{
+			final int mode = last.isLowSupplyNotification ? NOTIFICATION_FORCE_SILENT : NOTIFICATION_FORCE_UPDATE;
+
+			last.builder.setOnlyAlertOnce(false);
+			setAlerts(last.builder, mode);
+			getNotificationManager().notify(R.id.notification, last.builder.build());
+		}
+
+		METRIC_REPEATED.inc();
+
+		return true;
+	}
+
+	private void logTimings(PhaseTimer timer)
 	{
-		cancelAllAlarms();
-		scheduleNextAlarms();
+		final long total = timer.total();
+		Trace.recordMillis("receiver.total", total);
+		sLastTimings = timer.toString() + "; total=" + total + "ms (" +
+				(100 * total / RECEIVER_TIMEOUT_MILLIS) + "% of " + RECEIVER_TIMEOUT_MILLIS + "ms)";
+
+		if(total > RECEIVER_TIMEOUT_MILLIS / 2)
+			Log.w(TAG, "process: " + sLastTimings);
+		else if(LOGV)
+			Log.v(TAG, "process: " + sLastTimings);
+	}
+
+	private boolean postPlannedNotification()
+	{
+		final DoseTimeInfo dtInfo = Settings.getDoseTimeInfo();
+		final Date date = dtInfo.activeDoseTime() != Schedule.TIME_INVALID ?
+				dtInfo.activeDate() : dtInfo.nextDoseTimeDate();
+
+		final ReminderPlan.Entry entry = ReminderPlan.find(mContext, dtInfo);
+		if(entry == null)
+			return false;
+
+		postNotification(date, entry.dueDoseCount, entry.missedDoseCount, entry.lowSupplyDrugCount,
+				entry.firstLowSupplyDrugName, entry.secondLowSupplyDrugName, getNotificationMode());
+
+		return true;
+	}
+
+	/**
+	 * Posts the last notification's text again, without alerting the user.
+	 */
+	private void postProvisionalNotification()
+	{
+		final String message = Settings.getString(Settings.Keys.LAST_MSG, "");
+		if(message.length() == 0)
+			return;
+
+		final String title = Settings.getString(Settings.Keys.LAST_MSG_TITLE, getString(R.string._title_notification_doses));
+		final Date date = Settings.getActiveDate(DateTime.nowCalendar());
+
+		final NotificationCompat.Builder builder = new NotificationCompat.Builder(mContext);
+		builder.setContentTitle(title);
+		builder.setContentIntent(createDrugListIntent(date));
+		builder.setContentText(message);
+		builder.setSmallIcon(R.drawable.ic_stat_normal);
+		builder.setOngoing(true);
+		builder.setWhen(0);
+		builder.setOnlyAlertOnce(true);
+
+		getNotificationManager().notify(R.id.notification, builder.build());
+		sShownModel = null;
 	}
 
-	private void scheduleNextAlarms()
+	private void rescheduleAlarms()
 	{
 		if(Settings.getDoseTimeBegin(Drug.TIME_MORNING) == null)
 		{
@@ -147,12 +484,25 @@ public class NotificationReceiver extends BroadcastReceiver
 
 		if(LOGV) Log.i(TAG, "Scheduling next alarms...");
 
-		final DoseTimeInfo dtInfo = Settings.getDoseTimeInfo();
+		final long alarmRepeatMins = Settings.getStringAsInt(Settings.Keys.ALARM_REPEAT, 0);
+		final long alarmRepeatMillis = alarmRepeatMins == -1 ? 10000 : alarmRepeatMins * 60000;
 
-		if(dtInfo.activeDoseTime() != Schedule.TIME_INVALID)
-			scheduleNextBeginOrEndAlarm(dtInfo, true);
-		else
-			scheduleNextBeginOrEndAlarm(dtInfo, false);
+		final AlarmPlanner.Alarm alarm = AlarmPlanner.getNextAlarm(Settings.getDoseTimeInfo(), alarmRepeatMillis);
+
+		synchronized(NotificationReceiver.class)
+		{
+			if(alarm == null)
+			{
+				cancelAllAlarms();
+				sArmedAlarm = null;
+			}
+			else if(alarm.equals(sArmedAlarm) && alarm.triggerAtMillis > System.currentTimeMillis())
+			{
+				if(LOGV) Log.v(TAG, "Next alarm is unchanged");
+			}
+			else if(scheduleAlarm(alarm, alarmRepeatMillis > 0))
+				sArmedAlarm = alarm;
+		}
 	}
 
 	private void updateCurrentNotifications()
@@ -172,65 +522,36 @@ public class NotificationReceiver extends BroadcastReceiver
 		else
 			isActiveDoseTime = true;
 
-		final int mode;
+		updateNotification(date, doseTime, isActiveDoseTime, getNotificationMode());
+	}
 
+	private int getNotificationMode()
+	{
 		if(mForceUpdate)
-			mode = NOTIFICATION_FORCE_UPDATE;
+			return NOTIFICATION_FORCE_UPDATE;
 		else if(mDoPostSilent)
-			mode = NOTIFICATION_FORCE_SILENT;
-		else
-			mode = NOTIFICATION_NORMAL;
+			return NOTIFICATION_FORCE_SILENT;
 
-		updateNotification(date, doseTime, isActiveDoseTime, mode);
+		return NOTIFICATION_NORMAL;
 	}
 
-	private void scheduleNextBeginOrEndAlarm(DoseTimeInfo dtInfo, boolean scheduleEnd)
+	private boolean scheduleAlarm(AlarmPlanner.Alarm alarm, boolean isRepeatEnabled)
 	{
-		final int doseTime = scheduleEnd ? dtInfo.activeDoseTime() : dtInfo.nextDoseTime();
-		final Calendar time = dtInfo.currentTime();
-		final Date doseTimeDate = scheduleEnd ? dtInfo.activeDate() : dtInfo.nextDoseTimeDate();
-
 		final Bundle alarmExtras = new Bundle();
-		alarmExtras.putSerializable(EXTRA_DATE, doseTimeDate);
-		alarmExtras.putInt(EXTRA_DOSE_TIME, doseTime);
-		alarmExtras.putBoolean(EXTRA_IS_DOSE_TIME_END, scheduleEnd);
+		alarmExtras.putSerializable(EXTRA_DATE, alarm.date);
+		alarmExtras.putInt(EXTRA_DOSE_TIME, alarm.doseTime);
+		alarmExtras.putBoolean(EXTRA_IS_DOSE_TIME_END, alarm.isDoseTimeEnd);
 		alarmExtras.putBoolean(EXTRA_SILENT, false);
 
-		long offset;
-
-		if(scheduleEnd)
-			offset = Settings.getMillisUntilDoseTimeEnd(time, doseTime);
-		else
-			offset = Settings.getMillisUntilDoseTimeBegin(time, doseTime);
-
-		long triggerAtMillis = time.getTimeInMillis() + offset;
-
-		final long alarmRepeatMins = Settings.getStringAsInt(Settings.Keys.ALARM_REPEAT, 0);
-		final long alarmRepeatMillis = alarmRepeatMins == -1 ? 10000 : alarmRepeatMins * 60000;
-
-		if(alarmRepeatMillis > 0)
-		{
+		if(isRepeatEnabled)
 			alarmExtras.putBoolean(EXTRA_FORCE_UPDATE, true);
 
-			final long base = dtInfo.activeDate().getTime();
-			int i = 0;
-
-			while(base + (i * alarmRepeatMillis) < time.getTimeInMillis())
-				++i;
-
-			// We must tell the receiver whether the alarm is an actual dose time's
-			// end or begin, or merely a repetition.
-
-			final long triggerAtMillisWithRepeatedAlarm = base + i * alarmRepeatMillis;
-			if(triggerAtMillisWithRepeatedAlarm < triggerAtMillis)
-			{
-				triggerAtMillis = triggerAtMillisWithRepeatedAlarm;
-				alarmExtras.putBoolean(EXTRA_IS_ALARM_REPETITION, true);
-			}
-
-			//triggerAtMillis = base + (i * alarmRepeatMillis);
-		}
+		// We must tell the receiver whether the alarm is an actual dose time's
+		// end or begin, or merely a repetition.
+		if(alarm.isRepetition)
+			alarmExtras.putBoolean(EXTRA_IS_ALARM_REPETITION, true);
 
+		final long triggerAtMillis = alarm.triggerAtMillis;
 		final long triggerDiffFromNow = triggerAtMillis - System.currentTimeMillis();
 		if(triggerDiffFromNow < 0)
 		{
@@ -239,22 +560,24 @@ public class NotificationReceiver extends BroadcastReceiver
 			else
 			{
 				Log.w(TAG, "Alarm time is in the past. Ignoring...");
-				return;
+				return false;
 			}
 		}
 
-		if(alarmExtras.getBoolean(EXTRA_IS_ALARM_REPETITION))
+		if(alarm.isRepetition)
 			Log.i(TAG, "Scheduling next alarm for " + DateTime.toString(triggerAtMillis));
 		else
 		{
-			Log.i(TAG, "Scheduling " + (scheduleEnd ? "end" : "begin") + " of doseTime " +
-					doseTime + " on date " + DateTime.toDateString(doseTimeDate) + " for " +
+			Log.i(TAG, "Scheduling " + (alarm.isDoseTimeEnd ? "end" : "begin") + " of doseTime " +
+					alarm.doseTime + " on date " + DateTime.toDateString(alarm.date) + " for " +
 					DateTime.toString(triggerAtMillis));
 		}
 
 		Log.i(TAG, "Alarm will go off in " + Util.millis(triggerDiffFromNow));
 
+		// Replaces any previously scheduled alarm, as the PendingIntents are equal
 		mAlarmMgr.set(AlarmManager.RTC_WAKEUP, triggerAtMillis, createOperation(alarmExtras));
+		return true;
 	}
 
 	private void cancelAllAlarms() {
@@ -284,11 +607,30 @@ public class NotificationReceiver extends BroadcastReceiver
 
 	public void updateNotification(Date date, int doseTime, boolean isActiveDoseTime, int mode)
 	{
-		final List<Drug> drugsWithLowSupplies = new ArrayList<Drug>();
-		final int lowSupplyDrugCount = getDrugsWithLowSupplies(date, doseTime, drugsWithLowSupplies);
-		final int missedDoseCount = getDrugsWithMissedDoses(date, doseTime, isActiveDoseTime, null);
-		final int dueDoseCount = isActiveDoseTime ? getDrugsWithDueDoses(date, doseTime, null) : 0;
+		final ReminderState state = ReminderState.get(date, doseTime, isActiveDoseTime);
+		final List<Drug> drugsWithLowSupplies = state.getDrugsWithLowSupplies();
+		final int lowSupplyDrugCount = drugsWithLowSupplies.size();
+
+		mPostedBuilder = null;
+		mIsNotificationUnchanged = false;
+
+		postNotification(date, state.dueDoseCount, state.missedDoseCount, lowSupplyDrugCount,
+				lowSupplyDrugCount > 0 ? drugsWithLowSupplies.get(0).getName() : null,
+				lowSupplyDrugCount > 1 ? drugsWithLowSupplies.get(1).getName() : null, mode);
 
+		final LastNotification last = sLastNotification;
+
+		if(mPostedBuilder != null)
+			sLastNotification = new LastNotification(state, mPostedBuilder, mPostedIsLowSupplyNotification);
+		else if(mIsNotificationUnchanged && last != null)
+			sLastNotification = new LastNotification(state, last.builder, last.isLowSupplyNotification);
+		else
+			sLastNotification = null;
+	}
+
+	private void postNotification(Date date, int dueDoseCount, int missedDoseCount, int lowSupplyDrugCount,
+			String firstLowSupplyDrugName, String secondLowSupplyDrugName, int mode)
+	{
 		int titleResId = R.string._title_notification_doses;
 		int icon = R.drawable.ic_stat_normal;
 
@@ -318,7 +660,7 @@ public class NotificationReceiver extends BroadcastReceiver
 		if(lowSupplyDrugCount != 0)
 		{
 			final String msg;
-			final String first = drugsWithLowSupplies.get(0).getName();
+			final String first = firstLowSupplyDrugName;
 
 			icon = R.drawable.ic_stat_exclamation;
 			isShowingLowSupplyNotification = sb.length() == 0;
@@ -328,7 +670,7 @@ public class NotificationReceiver extends BroadcastReceiver
 				msg = getString(R.string._qmsg_low_supply_single, first);
 			else
 			{
-				final String second = drugsWithLowSupplies.get(1).getName();
+				final String second = secondLowSupplyDrugName;
 				msg = RxDroid.getQuantityString(R.plurals._qmsg_low_supply_multiple, lowSupplyDrugCount - 1, first, second);
 			}
 
@@ -350,15 +692,6 @@ public class NotificationReceiver extends BroadcastReceiver
 			priority = NotificationCompat.PRIORITY_HIGH;
 
 		final String message = sb.toString();
-		final int currentHash = message.hashCode();
-		final int lastHash = Settings.getInt(Settings.Keys.LAST_MSG_HASH);
-
-		if(message.length() == 0)
-		{
-			getNotificationManager().cancel(R.id.notification);
-			return;
-		}
-
 		final StringBuilder source = new StringBuilder();
 
 //		final InboxStyle inboxStyle = new InboxStyle();
@@ -378,8 +711,39 @@ public class NotificationReceiver extends BroadcastReceiver
 			}
 		}
 
+		final String title = getString(titleResId);
+
+		// The rendered strings are compared, rather than the counts, as they
+		// also depend on the locale and on settings such as scrambled names.
+		final NotificationModel model = new NotificationModel(date, title, message,
+				lineCount > 1 ? source.toString() : null, isShowingLowSupplyNotification);
+
+		// Nothing to do if the notification is already shown, unless we're supposed
+		// to alert the user again.
+		if(model.equals(mPostedModel) || (mode != NOTIFICATION_FORCE_UPDATE && model.equals(sShownModel)))
+		{
+			if(LOGV) Log.v(TAG, "postNotification: unchanged");
+			METRIC_UNCHANGED.inc();
+			mIsNotificationUnchanged = true;
+			return;
+		}
+
+		final int currentHash = message.hashCode();
+		final int lastHash = Settings.getInt(Settings.Keys.LAST_MSG_HASH);
+
+		if(message.length() == 0)
+		{
+			if(Settings.getString(Settings.Keys.LAST_MSG, "").length() != 0)
+				Settings.putString(Settings.Keys.LAST_MSG, "");
+
+			getNotificationManager().cancel(R.id.notification);
+			mPostedModel = model;
+			sShownModel = model;
+			return;
+		}
+
 		final NotificationCompat.Builder builder = new NotificationCompat.Builder(mContext);
-		builder.setContentTitle(getString(titleResId));
+		builder.setContentTitle(title);
 		builder.setContentIntent(createDrugListIntent(date));
 		builder.setContentText(message);
 		builder.setTicker(getString(R.string._msg_new_notification));
@@ -409,7 +773,15 @@ public class NotificationReceiver extends BroadcastReceiver
 		if(mode == NOTIFICATION_FORCE_UPDATE || currentHash != lastHash)
 		{
 			builder.setOnlyAlertOnce(false);
-			Settings.putInt(Settings.Keys.LAST_MSG_HASH, currentHash);
+
+			// Only needed after the process was restarted, so there's
+			// no need to write the values unless they've changed.
+			if(currentHash != lastHash)
+			{
+				Settings.putInt(Settings.Keys.LAST_MSG_HASH, currentHash);
+				Settings.putString(Settings.Keys.LAST_MSG, message);
+				Settings.putString(Settings.Keys.LAST_MSG_TITLE, title);
+			}
 		}
 		else
 			builder.setOnlyAlertOnce(true);
@@ -417,8 +789,22 @@ public class NotificationReceiver extends BroadcastReceiver
 
 		// Prevents low supplies from constantly annoying the user with
 		// notification's sound and/or vibration if alarms are repeated.
-		if(isShowingLowSupplyNotification)
-			mode = NOTIFICATION_FORCE_SILENT;
+		setAlerts(builder, isShowingLowSupplyNotification ? NOTIFICATION_FORCE_SILENT : mode);
+
+		getNotificationManager().notify(R.id.notification, builder.build());
+		METRIC_POSTED.inc();
+
+		mPostedModel = model;
+		sShownModel = model;
+		mPostedBuilder = builder;
+		mPostedIsLowSupplyNotification = isShowingLowSupplyNotification;
+	}
+
+	private void setAlerts(NotificationCompat.Builder builder, int mode)
+	{
+		// reset, in case the builder is being reused
+		builder.setSound(null);
+		builder.setLights(0, 0, 0);
 
 		int defaults = 0;
 
@@ -480,90 +866,113 @@ public class NotificationReceiver extends BroadcastReceiver
 			defaults |= Notification.DEFAULT_VIBRATE;
 
 		builder.setDefaults(defaults);
+	}
 
-		getNotificationManager().notify(R.id.notification, builder.build());
+	private String getString(int resId, Object... formatArgs) {
+		return mContext.getString(resId, formatArgs);
 	}
 
-	private int getDrugsWithDueDoses(Date date, int doseTime, List<Drug> outDrugs)
+	private NotificationManager getNotificationManager() {
+		return (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
+	}
+
+	/* package */ static void rescheduleAlarmsAndUpdateNotification(boolean silent) {
+		rescheduleAlarmsAndUpdateNotification(null, silent);
+	}
+
+	/* package */ static void rescheduleAlarmsAndUpdateNotification(Context context, boolean silent)
+	{
+		if(context == null)
+			context = RxDroid.getContext();
+		final Intent intent = new Intent(context, NotificationReceiver.class);
+		intent.setAction(Intent.ACTION_MAIN);
+		intent.putExtra(NotificationReceiver.EXTRA_SILENT, silent);
+		context.sendBroadcast(intent);
+	}
+
+	/**
+	 * Records the duration of each phase of processing a broadcast.
+	 */
+	private static final class PhaseTimer
 	{
-		int count = 0;
+		private final Timer mTotal = new Timer();
+		private final Timer mPhase = new Timer();
+		private final StringBuilder mPhases = new StringBuilder();
 
-		for(Drug drug: mAllDrugs)
+		void endPhase(String name)
 		{
-			final Fraction dose = drug.getDose(doseTime, date);
-
-			if(!drug.isActive() || dose.isZero() || drug.hasAutoDoseEvents() || drug.getRepeatMode() == Drug.REPEAT_AS_NEEDED)
-				continue;
+			if(mPhases.length() != 0)
+				mPhases.append(", ");
 
-			if(Entries.countDoseEvents(drug, date, doseTime) == 0)
-			{
-				++count;
+			mPhases.append(name + "=" + mPhase.elapsed() + "ms");
+			Trace.record("receiver." + name, mPhase);
+			mPhase.restart();
+		}
 
-				if(outDrugs != null)
-					outDrugs.add(drug);
-			}
+		long total() {
+			return mTotal.elapsed();
 		}
 
-		return count;
+		@Override
+		public String toString() {
+			return mPhases.toString();
+		}
 	}
 
-	private int getDrugsWithMissedDoses(Date date, int activeOrNextDoseTime, boolean isActiveDoseTime, List<Drug> outDrugs)
+	private static final class LastNotification
 	{
-		final int end;
+		final ReminderState state;
+		final NotificationCompat.Builder builder;
+		final boolean isLowSupplyNotification;
 
-		if(!isActiveDoseTime && activeOrNextDoseTime == Drug.TIME_MORNING)
+		LastNotification(ReminderState state, NotificationCompat.Builder builder, boolean isLowSupplyNotification)
 		{
-			date = DateTime.add(date, Calendar.DAY_OF_MONTH, -1);
-			end = Drug.TIME_INVALID;
+			this.state = state;
+			this.builder = builder;
+			this.isLowSupplyNotification = isLowSupplyNotification;
 		}
-		else
-			end = activeOrNextDoseTime;
-
-		int count = 0;
-
-		for(int doseTime = Schedule.TIME_MORNING; doseTime != end; ++doseTime)
-			count += getDrugsWithDueDoses(date, doseTime, outDrugs);
-
-		return count;
 	}
 
-	private int getDrugsWithLowSupplies(Date date, int doseTime, List<Drug> outDrugs)
+	/**
+	 * The contents of a notification, as shown to the user.
+	 */
+	private static final class NotificationModel
 	{
-		int count = 0;
+		private final Date mDate;
+		private final String mTitle;
+		private final String mText;
+		private final String mBigText;
+		private final boolean mIsLowSupplyNotification;
 
-		for(Drug drug : mAllDrugs)
+		NotificationModel(Date date, String title, String text, String bigText, boolean isLowSupplyNotification)
 		{
-			if(Entries.hasLowSupplies(drug))
-			{
-				++count;
-
-				if(outDrugs != null)
-					outDrugs.add(drug);
-			}
+			mDate = date;
+			mTitle = title;
+			mText = text;
+			mBigText = bigText;
+			mIsLowSupplyNotification = isLowSupplyNotification;
 		}
 
-		return count;
-	}
+		@Override
+		public boolean equals(Object o)
+		{
+			if(!(o instanceof NotificationModel))
+				return false;
 
-	private String getString(int resId, Object... formatArgs) {
-		return mContext.getString(resId, formatArgs);
-	}
+			final NotificationModel other = (NotificationModel) o;
 
-	private NotificationManager getNotificationManager() {
-		return (NotificationManager) mContext.getSystemService(Context.NOTIFICATION_SERVICE);
-	}
+			return mDate.equals(other.mDate) && mTitle.equals(other.mTitle) &&
+					mText.equals(other.mText) && equals(mBigText, other.mBigText) &&
+					mIsLowSupplyNotification == other.mIsLowSupplyNotification;
+		}
 
-	/* package */ static void rescheduleAlarmsAndUpdateNotification(boolean silent) {
-		rescheduleAlarmsAndUpdateNotification(null, silent);
-	}
+		@Override
+		public int hashCode() {
+			return mDate.hashCode() ^ mText.hashCode();
+		}
 
-	/* package */ static void rescheduleAlarmsAndUpdateNotification(Context context, boolean silent)
-	{
-		if(context == null)
-			context = RxDroid.getContext();
-		final Intent intent = new Intent(context, NotificationReceiver.class);
-		intent.setAction(Intent.ACTION_MAIN);
-		intent.putExtra(NotificationReceiver.EXTRA_SILENT, silent);
-		context.sendBroadcast(intent);
+		private static boolean equals(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
 	}
 }
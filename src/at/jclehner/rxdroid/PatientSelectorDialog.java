@@ -119,6 +119,17 @@ public class PatientSelectorDialog extends DialogFragment
 		mAdapter = new Adapter();
 		mActivePatientId = getArguments().getInt(ARG_PATIENT_ID);
 
+		// Warm up the model of the most likely selection while the user decides
+		for(int i = 0; i != mAdapter.getCount(); ++i)
+		{
+			final Patient p = mAdapter.getItem(i);
+			if(p.getId() != mActivePatientId)
+			{
+				DayModel.prefetch(p.getId(), Settings.getActiveDate());
+				break;
+			}
+		}
+
 		final AlertDialog.Builder ab = new AlertDialog.Builder(getActivity());
 		ab.setTitle(R.string._title_patient);
 		ab.setAdapter(mAdapter, mDialogListener);
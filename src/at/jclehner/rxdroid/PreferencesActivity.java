@@ -22,8 +22,10 @@
 package at.jclehner.rxdroid;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
@@ -62,6 +64,8 @@ import at.jclehner.rxdroid.db.Schedule;
 //import at.jclehner.rxdroid.ui.LayoutTestActivity;
 import at.jclehner.rxdroid.util.CollectionUtils;
 import at.jclehner.rxdroid.util.DateTime;
+import at.jclehner.rxdroid.util.Metrics;
+import at.jclehner.rxdroid.util.Trace;
 import at.jclehner.rxdroid.util.Util;
 
 import com.actionbarsherlock.view.Menu;
@@ -74,12 +78,13 @@ public class PreferencesActivity extends PreferenceActivityBase implements
 	private static final String TAG = PreferencesActivity.class.getSimpleName();
 
 	private static final String[] KEEP_DISABLED = {
-		Settings.Keys.VERSION, Settings.Keys.DB_STATS
+		Settings.Keys.VERSION
 	};
 
 	private static final String[] REGISTER_CLICK_LISTENER = {
 		Keys.LICENSES,
-		Keys.VERSION
+		Keys.VERSION,
+		Keys.DB_STATS
 	};
 
 	private static final String[] REGISTER_CHANGE_LISTENER = {
@@ -277,6 +282,11 @@ public class PreferencesActivity extends PreferenceActivityBase implements
 			showDialog(R.id.licenses_dialog);
 			return true;
 		}
+		else if(Settings.Keys.DB_STATS.equals(key))
+		{
+			showDialog(R.id.trace_dialog);
+			return true;
+		}
 		else if(Settings.Keys.VERSION.equals(key))
 		{
 			final Intent intent = new Intent(Intent.ACTION_SEND);
@@ -391,6 +401,22 @@ public class PreferencesActivity extends PreferenceActivityBase implements
 
 			return ab.create();
 		}
+		else if(id == R.id.trace_dialog)
+		{
+			final AlertDialog.Builder ab = new AlertDialog.Builder(this);
+			ab.setTitle(R.string._title_db_stats);
+			ab.setMessage("");
+			ab.setPositiveButton(android.R.string.ok, null);
+			ab.setNeutralButton(R.string._btn_save, new OnClickListener() {
+
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					dumpTrace();
+				}
+			});
+
+			return ab.create();
+		}
 		else if(id == R.id.preference_reset_dialog)
 		{
 			final AlertDialog.Builder ab= new AlertDialog.Builder(this);
@@ -413,6 +439,15 @@ public class PreferencesActivity extends PreferenceActivityBase implements
 		return super.onCreateDialog(id);
 	}
 
+	@Override
+	protected void onPrepareDialog(int id, Dialog dialog)
+	{
+		if(id == R.id.trace_dialog)
+			((AlertDialog) dialog).setMessage(getTraceText());
+		else
+			super.onPrepareDialog(id, dialog);
+	}
+
 	@Override
 	protected Intent getHomeButtonIntent()
 	{
@@ -426,6 +461,64 @@ public class PreferencesActivity extends PreferenceActivityBase implements
 		return true;
 	}
 
+	private String getTraceText()
+	{
+		final StringBuilder sb = new StringBuilder(Trace.dump());
+		final int[] wakeups = AlarmPlanner.getWakeupCounts();
+
+		sb.append("\nAlarm wake-ups: " + wakeups[0] + " today, " + wakeups[1] + " yesterday");
+		sb.append("\nLast alarm: " + NotificationReceiver.getLastTimings());
+		sb.append("\n\n" + Metrics.dump());
+
+		return sb.toString();
+	}
+
+	private void dumpTrace()
+	{
+		final String filename = "trace-" + System.currentTimeMillis() + ".txt";
+
+		// the external storage may not be writable without a permission
+		for(File dir : new File[] { getExternalFilesDir(null), getFilesDir() })
+		{
+			if(dir == null)
+				continue;
+
+			final File file = new File(dir, filename);
+
+			try
+			{
+				Trace.dumpToFile(file, Version.get(Version.FORMAT_FULL));
+				appendMetrics(file);
+				Toast.makeText(this, getString(R.string._toast_trace_saved, file), Toast.LENGTH_LONG).show();
+				return;
+			}
+			catch(IOException e)
+			{
+				Log.w(TAG, "dumpTrace: " + file, e);
+			}
+		}
+
+		Toast.makeText(this, R.string._toast_trace_not_saved, Toast.LENGTH_SHORT).show();
+	}
+
+	private static void appendMetrics(File file) throws IOException
+	{
+		Writer writer = null;
+
+		try
+		{
+			writer = new FileWriter(file, true);
+			writer.write("\n# metrics\n");
+			writer.write(Metrics.dump());
+			writer.close();
+			writer = null;
+		}
+		finally
+		{
+			Util.closeQuietly(writer);
+		}
+	}
+
 	private void updateLowSupplyThresholdPreferenceSummary()
 	{
 		Preference p = findPreference(Settings.Keys.LOW_SUPPLY_THRESHOLD);
@@ -0,0 +1,296 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import android.content.Context;
+import android.util.Log;
+import at.jclehner.rxdroid.Settings.DoseTimeInfo;
+import at.jclehner.rxdroid.db.Database;
+import at.jclehner.rxdroid.db.Drug;
+import at.jclehner.rxdroid.db.Schedule;
+import at.jclehner.rxdroid.util.DateTime;
+import at.jclehner.rxdroid.util.Timer;
+import at.jclehner.rxdroid.util.Trace;
+import at.jclehner.rxdroid.util.Util;
+
+/**
+ * The notification contents at the upcoming dose time boundaries.
+ * <p>
+ * The plan is computed from the database and stored in a small binary file,
+ * so that NotificationReceiver can post a notification without loading the
+ * database first. It assumes that the data does not change until a boundary
+ * is reached; every change causes NotificationReceiver to invalidate the plan,
+ * and to update it once the broadcast has been handled.
+ *
+ * @author Joseph Lehner
+ */
+/* package */ final class ReminderPlan
+{
+	private static final String TAG = ReminderPlan.class.getSimpleName();
+	private static final boolean LOGV = BuildConfig.DEBUG;
+
+	private static final String FILENAME = "reminder_plan";
+	private static final int MAGIC = 0x52785031; // "RxP1"
+
+	/**
+	 * Number of boundaries to plan for; about three days with four dose times.
+	 */
+	private static final int BOUNDARY_COUNT = 24;
+
+	private static volatile int sDbVersion = -1;
+	private static Settings.Snapshot sSettings;
+	private static long sValidUntil = 0;
+
+	/**
+	 * The notification contents for a dose time.
+	 */
+	static final class Entry
+	{
+		final long date;
+		final int doseTime;
+		final boolean isActiveDoseTime;
+		final int dueDoseCount;
+		final int missedDoseCount;
+		final int lowSupplyDrugCount;
+		final String firstLowSupplyDrugName;
+		final String secondLowSupplyDrugName;
+
+		private Entry(ReminderState state)
+		{
+			date = state.date.getTime();
+			doseTime = state.doseTime;
+			isActiveDoseTime = state.isActiveDoseTime;
+			dueDoseCount = state.dueDoseCount;
+			missedDoseCount = state.missedDoseCount;
+
+			final List<Drug> drugs = state.getDrugsWithLowSupplies();
+			lowSupplyDrugCount = drugs.size();
+			firstLowSupplyDrugName = lowSupplyDrugCount > 0 ? drugs.get(0).getName() : null;
+			secondLowSupplyDrugName = lowSupplyDrugCount > 1 ? drugs.get(1).getName() : null;
+		}
+
+		private Entry(DataInputStream in) throws IOException
+		{
+			date = in.readLong();
+			doseTime = in.readByte();
+			isActiveDoseTime = in.readBoolean();
+			dueDoseCount = in.readInt();
+			missedDoseCount = in.readInt();
+			lowSupplyDrugCount = in.readInt();
+			firstLowSupplyDrugName = readString(in);
+			secondLowSupplyDrugName = readString(in);
+		}
+
+		private void writeTo(DataOutputStream out) throws IOException
+		{
+			out.writeLong(date);
+			out.writeByte(doseTime);
+			out.writeBoolean(isActiveDoseTime);
+			out.writeInt(dueDoseCount);
+			out.writeInt(missedDoseCount);
+			out.writeInt(lowSupplyDrugCount);
+			writeString(out, firstLowSupplyDrugName);
+			writeString(out, secondLowSupplyDrugName);
+		}
+	}
+
+	/**
+	 * Returns the planned notification contents for the specified dose time info,
+	 * or <code>null</code> if there is no matching plan entry.
+	 * <p>
+	 * This method does not access the database.
+	 */
+	static Entry find(Context context, DoseTimeInfo dtInfo)
+	{
+		final Date date;
+		final int doseTime;
+		final boolean isActiveDoseTime = dtInfo.activeDoseTime() != Schedule.TIME_INVALID;
+
+		if(isActiveDoseTime)
+		{
+			date = dtInfo.activeDate();
+			doseTime = dtInfo.activeDoseTime();
+		}
+		else
+		{
+			date = dtInfo.nextDoseTimeDate();
+			doseTime = dtInfo.nextDoseTime();
+		}
+
+		DataInputStream in = null;
+
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(getFile(context))));
+			if(in.readInt() != MAGIC)
+				return null;
+
+			final int count = in.readInt();
+			for(int i = 0; i != count; ++i)
+			{
+				final Entry entry = new Entry(in);
+				if(entry.date == date.getTime() && entry.doseTime == doseTime && entry.isActiveDoseTime == isActiveDoseTime)
+					return entry;
+			}
+		}
+		catch(FileNotFoundException e)
+		{
+			// no plan yet
+		}
+		catch(IOException e)
+		{
+			Log.w(TAG, "find", e);
+		}
+		finally
+		{
+			Util.closeQuietly(in);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Recomputes the plan if the database or the settings have changed, or if
+	 * the plan is about to expire. The database must be loaded.
+	 */
+	static synchronized void update(Context context)
+	{
+		if(sDbVersion == Database.getVersion() && sSettings == Settings.snapshot() &&
+				System.currentTimeMillis() < sValidUntil)
+			return;
+
+		final Timer t = new Timer();
+
+		sDbVersion = Database.getVersion();
+		sSettings = Settings.snapshot();
+
+		// Not using ReminderState.get(), which would replace the cached state
+		// that NotificationReceiver just used
+		final List<Entry> entries = new ArrayList<Entry>();
+		entries.add(new Entry(get(Settings.getDoseTimeInfo())));
+
+		final List<DoseTimeTimeline.Boundary> boundaries =
+				Settings.getDoseTimeTimeline().getNextBoundaries(DateTime.nowCalendar(), BOUNDARY_COUNT);
+
+		for(DoseTimeTimeline.Boundary boundary : boundaries)
+		{
+			final Calendar time = new GregorianCalendar();
+			time.setTimeInMillis(boundary.timeInMillis);
+			entries.add(new Entry(get(Settings.getDoseTimeInfo(time))));
+		}
+
+		// Recompute once half of the plan has been used up
+		sValidUntil = boundaries.isEmpty() ? 0 : boundaries.get(boundaries.size() / 2).timeInMillis;
+
+		try
+		{
+			write(context, entries);
+		}
+		catch(IOException e)
+		{
+			Log.w(TAG, "update", e);
+			sDbVersion = -1;
+		}
+
+		Trace.record("reminder.plan", t);
+		if(LOGV) Log.v(TAG, "update: " + entries.size() + " entries; " + t);
+	}
+
+	/**
+	 * Deletes the plan, so that {@link #find(Context, DoseTimeInfo)} won't use
+	 * it until it has been recomputed.
+	 */
+	static void invalidate(Context context)
+	{
+		sDbVersion = -1;
+
+		if(!getFile(context).delete() && LOGV)
+			Log.v(TAG, "invalidate: no plan");
+	}
+
+	private static ReminderState get(DoseTimeInfo dtInfo)
+	{
+		if(dtInfo.activeDoseTime() != Schedule.TIME_INVALID)
+			return ReminderState.compute(dtInfo.activeDate(), dtInfo.activeDoseTime(), true);
+
+		return ReminderState.compute(dtInfo.nextDoseTimeDate(), dtInfo.nextDoseTime(), false);
+	}
+
+	private static void write(Context context, List<Entry> entries) throws IOException
+	{
+		final File file = getFile(context);
+		final File tmpFile = new File(file.getPath() + ".tmp");
+
+		DataOutputStream out = null;
+
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(entries.size());
+
+			for(Entry entry : entries)
+				entry.writeTo(out);
+
+			out.close();
+			out = null;
+
+			if(!tmpFile.renameTo(file))
+				throw new IOException("Failed to rename " + tmpFile + " to " + file);
+		}
+		finally
+		{
+			Util.closeQuietly(out);
+		}
+	}
+
+	private static File getFile(Context context) {
+		return new File(context.getFilesDir(), FILENAME);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		final String str = in.readUTF();
+		return str.length() != 0 ? str : null;
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		out.writeUTF(str != null ? str : "");
+	}
+
+	private ReminderPlan() {}
+}
@@ -0,0 +1,213 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import android.util.Log;
+import at.jclehner.rxdroid.db.Database;
+import at.jclehner.rxdroid.db.Drug;
+import at.jclehner.rxdroid.db.Entries;
+import at.jclehner.rxdroid.db.Schedule;
+import at.jclehner.rxdroid.util.DateTime;
+import at.jclehner.rxdroid.util.Timer;
+import at.jclehner.rxdroid.util.Trace;
+
+/**
+ * Due and missed doses, and drugs with low supplies, at a given dose time.
+ * <p>
+ * All values are computed in a single pass over all drugs. Instances are
+ * immutable; the most recently computed state is reused until the database
+ * or the settings change.
+ *
+ * @author Joseph Lehner
+ */
+public final class ReminderState
+{
+	private static final String TAG = ReminderState.class.getSimpleName();
+	private static final boolean LOGV = BuildConfig.DEBUG;
+
+	private static volatile ReminderState sLastState;
+
+	public final Date date;
+	public final int doseTime;
+	public final boolean isActiveDoseTime;
+
+	/**
+	 * The number of doses not yet taken at the active dose time.
+	 */
+	public final int dueDoseCount;
+
+	/**
+	 * The number of doses not taken at preceding dose times.
+	 */
+	public final int missedDoseCount;
+
+	private final List<Drug> mDrugsWithDueDoses;
+	private final List<Drug> mDrugsWithMissedDoses;
+	private final List<Drug> mDrugsWithLowSupplies;
+
+	private final int mDbVersion;
+	private final Settings.Snapshot mSettings;
+
+	/**
+	 * Returns the state at the given dose time.
+	 *
+	 * @param date The date of the dose time.
+	 * @param doseTime The active dose time, or the next one if <code>isActiveDoseTime</code> is <code>false</code>.
+	 */
+	public static ReminderState get(Date date, int doseTime, boolean isActiveDoseTime)
+	{
+		final ReminderState last = sLastState;
+		if(last != null && last.isValidFor(date, doseTime, isActiveDoseTime))
+			return last;
+
+		final Timer t = new Timer();
+		final ReminderState state = new ReminderState(date, doseTime, isActiveDoseTime);
+		Trace.record("reminder.state", t);
+		if(LOGV) Log.v(TAG, "get: " + t);
+
+		sLastState = state;
+		return state;
+	}
+
+	/**
+	 * Like {@link #get(Date, int, boolean)}, but always computes a new state,
+	 * leaving the cached one untouched.
+	 */
+	/* package */ static ReminderState compute(Date date, int doseTime, boolean isActiveDoseTime) {
+		return new ReminderState(date, doseTime, isActiveDoseTime);
+	}
+
+	/**
+	 * Returns the state at the current dose time, or the next one.
+	 */
+	public static ReminderState get()
+	{
+		final Settings.DoseTimeInfo dtInfo = Settings.getDoseTimeInfo();
+
+		if(dtInfo.activeDoseTime() != Schedule.TIME_INVALID)
+			return get(dtInfo.activeDate(), dtInfo.activeDoseTime(), true);
+
+		return get(dtInfo.nextDoseTimeDate(), dtInfo.nextDoseTime(), false);
+	}
+
+	public List<Drug> getDrugsWithDueDoses() {
+		return mDrugsWithDueDoses;
+	}
+
+	/**
+	 * Returns the drugs with missed doses. Each drug is only listed once,
+	 * regardless of the number of missed doses.
+	 */
+	public List<Drug> getDrugsWithMissedDoses() {
+		return mDrugsWithMissedDoses;
+	}
+
+	public List<Drug> getDrugsWithLowSupplies() {
+		return mDrugsWithLowSupplies;
+	}
+
+	private ReminderState(Date date, int doseTime, boolean isActiveDoseTime)
+	{
+		// Read before accessing the database, so a concurrent change will cause
+		// this state to be considered stale.
+		mDbVersion = Database.getVersion();
+		mSettings = Settings.snapshot();
+
+		this.date = date;
+		this.doseTime = doseTime;
+		this.isActiveDoseTime = isActiveDoseTime;
+
+		// Missed doses are those of all dose times before the active (or next) one.
+		// If the next dose time is TIME_MORNING, these are all of the previous day's.
+		final Date missedDate;
+		final int missedEnd;
+
+		if(!isActiveDoseTime && doseTime == Schedule.TIME_MORNING)
+		{
+			missedDate = DateTime.add(date, Calendar.DAY_OF_MONTH, -1);
+			missedEnd = Schedule.TIME_INVALID;
+		}
+		else
+		{
+			missedDate = date;
+			missedEnd = doseTime;
+		}
+
+		final List<Drug> due = new ArrayList<Drug>();
+		final List<Drug> missed = new ArrayList<Drug>();
+		final List<Drug> lowSupplies = new ArrayList<Drug>();
+
+		int missedDoseCount = 0;
+
+		for(Drug drug : Database.getAll(Drug.class))
+		{
+			if(Entries.hasLowSupplies(drug))
+				lowSupplies.add(drug);
+
+			if(!drug.isActive() || drug.hasAutoDoseEvents() || drug.getRepeatMode() == Drug.REPEAT_AS_NEEDED)
+				continue;
+
+			// missedDate and date only differ if there are no due doses
+			final int taken = Entries.getDoseTimesWithEvents(drug, missedDate);
+			int missedCount = 0;
+
+			for(int t = Schedule.TIME_MORNING; t != missedEnd; ++t)
+			{
+				if((taken & (1 << t)) == 0 && !drug.getDose(t, missedDate).isZero())
+					++missedCount;
+			}
+
+			if(missedCount != 0)
+			{
+				missedDoseCount += missedCount;
+				missed.add(drug);
+			}
+
+			if(isActiveDoseTime && (taken & (1 << doseTime)) == 0 && !drug.getDose(doseTime, date).isZero())
+				due.add(drug);
+		}
+
+		this.dueDoseCount = due.size();
+		this.missedDoseCount = missedDoseCount;
+
+		mDrugsWithDueDoses = Collections.unmodifiableList(due);
+		mDrugsWithMissedDoses = Collections.unmodifiableList(missed);
+		mDrugsWithLowSupplies = Collections.unmodifiableList(lowSupplies);
+	}
+
+	/**
+	 * Returns <code>true</code> if this state was computed for the specified
+	 * dose time, and neither the database nor the settings have changed since.
+	 */
+	/* package */ boolean isValidFor(Date date, int doseTime, boolean isActiveDoseTime)
+	{
+		return this.doseTime == doseTime && this.isActiveDoseTime == isActiveDoseTime &&
+				this.date.equals(date) && mDbVersion == Database.getVersion() &&
+				mSettings == Settings.snapshot();
+	}
+}
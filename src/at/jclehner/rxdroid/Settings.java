@@ -23,11 +23,17 @@ package at.jclehner.rxdroid;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import android.app.Activity;
 import android.content.Context;
@@ -36,6 +42,7 @@ import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.pm.ActivityInfo;
 import android.content.res.Configuration;
 import android.os.Build;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import at.jclehner.rxdroid.db.Database;
@@ -45,6 +52,8 @@ import at.jclehner.rxdroid.preferences.TimePeriodPreference.TimePeriod;
 import at.jclehner.rxdroid.util.CollectionUtils;
 import at.jclehner.rxdroid.util.Constants;
 import at.jclehner.rxdroid.util.DateTime;
+import at.jclehner.rxdroid.util.Metrics;
+import at.jclehner.rxdroid.util.Timer;
 import at.jclehner.rxdroid.util.WrappedCheckedException;
 
 public final class Settings
@@ -72,6 +81,7 @@ public final class Settings
 		public static final String DONATE = key(R.string.key_donate);
 		public static final String REPEAT_ALARM = key(R.string.key_repeat_alarm);
 		public static final String DB_STATS = key(R.string.key_db_stats);
+		public static final String COLLECT_METRICS = key(R.string.key_collect_metrics);
 		public static final String COMPACT_ACTION_BAR = key(R.string.key_compact_action_bar);
 		public static final String NOTIFICATION_LIGHT_COLOR = key(R.string.key_notification_light_color);
 		public static final String QUIET_HOURS = key(R.string.key_quiet_hours);
@@ -92,6 +102,11 @@ public final class Settings
 		public static final String LOG_SHOW_MISSED = "log_show_missed";
 		public static final String LOG_IS_ALL_COLLAPSED = "log_is_all_collapsed";
 		public static final String HAS_FRACTIONS_IN_ANY_SCHEDULE = "has_fractions_in_any_schedule";
+		public static final String LAST_MSG = "last_msg";
+		public static final String LAST_MSG_TITLE = "last_msg_title";
+		public static final String WAKEUP_DAY = "wakeup_day";
+		public static final String WAKEUP_COUNT = "wakeup_count";
+		public static final String WAKEUP_COUNT_PREVIOUS = "wakeup_count_previous";
 	}
 
 	public static class Enums
@@ -125,6 +140,115 @@ public final class Settings
 
 	private static SharedPreferences sSharedPrefs = null;
 
+	/**
+	 * Marks a preference as removed in {@link #sPendingWrites}.
+	 */
+	private static final Object REMOVED = new Object();
+	private static final Object LOCK_FLUSH = new Object();
+
+	private static final HashMap<String, Object> sPendingWrites = new HashMap<String, Object>();
+	private static boolean sIsFlushScheduled = false;
+
+	// The number of change notifications still expected for each key changed by
+	// flush(), for telling them apart from changes made by others, e.g. the
+	// preference UI. Counting them, rather than remembering the flushed values,
+	// also works if a key is flushed again before the first notification has
+	// arrived. Guarded by sPendingWrites.
+	private static final HashMap<String, Integer> sFlushedKeys = new HashMap<String, Integer>();
+
+	/**
+	 * Prior to API level 9, SharedPreferences.Editor.commit() calls the change
+	 * listeners in the committing thread.
+	 */
+	private static final boolean COMMIT_NOTIFIES_IN_CALLING_THREAD = Build.VERSION.SDK_INT < 9;
+	private static final long FLUSH_TIMEOUT_MILLIS = 2000;
+
+	private static volatile Snapshot sSnapshot = null;
+	private static volatile int sSnapshotGeneration = 0;
+
+	/**
+	 * An immutable view of frequently used settings.
+	 * <p>
+	 * Values are parsed once, so reading them is cheap. A Snapshot is rebuilt
+	 * lazily after any preference has changed.
+	 *
+	 * @see Settings#snapshot()
+	 */
+	public static final class Snapshot
+	{
+		public final int lowSupplyThreshold;
+		public final int historySize;
+		public final boolean scrambleNames;
+		public final boolean showSupplyMonitors;
+		public final boolean usePrettyFractions;
+		public final boolean useSmartSort;
+		public final boolean hasWrappingDoseTimeNight;
+
+		private final DumbTime[] mDoseTimeBegins = new DumbTime[DOSE_TIME_KEYS.length];
+		private final DumbTime[] mDoseTimeEnds = new DumbTime[DOSE_TIME_KEYS.length];
+		private final long[] mTrueDoseTimeEndOffsets = new long[DOSE_TIME_KEYS.length];
+		private final DoseTimeTimeline mTimeline;
+
+		private Snapshot()
+		{
+			lowSupplyThreshold = getStringAsInt(Keys.LOW_SUPPLY_THRESHOLD, 10);
+			historySize = getStringAsInt(Keys.HISTORY_SIZE, 2);
+			scrambleNames = getBoolean(Keys.SCRAMBLE_NAMES, false);
+			showSupplyMonitors = getBoolean(Keys.SHOW_SUPPLY_MONITORS, false);
+			usePrettyFractions = getBoolean(Keys.USE_PRETTY_FRACTIONS, false);
+			useSmartSort = getBoolean(Keys.USE_SMART_SORT, false);
+
+			final long[] beginOffsets = new long[DOSE_TIME_KEYS.length];
+			final long[] endOffsets = new long[DOSE_TIME_KEYS.length];
+
+			for(int doseTime = 0; doseTime != DOSE_TIME_KEYS.length; ++doseTime)
+			{
+				final TimePeriod p = getTimePeriodPreference(doseTime);
+				if(p == null)
+				{
+					beginOffsets[doseTime] = -1;
+					continue;
+				}
+
+				mDoseTimeBegins[doseTime] = p.begin();
+				mDoseTimeEnds[doseTime] = p.end();
+
+				final long beginOffset = p.begin().getMillisFromMidnight();
+				long endOffset = p.end().getMillisFromMidnight();
+
+				if(endOffset < beginOffset)
+					endOffset += Constants.MILLIS_PER_DAY;
+
+				mTrueDoseTimeEndOffsets[doseTime] = endOffset;
+
+				beginOffsets[doseTime] = beginOffset;
+				endOffsets[doseTime] = p.end().getMillisFromMidnight();
+			}
+
+			mTimeline = new DoseTimeTimeline(beginOffsets, endOffsets);
+
+			final int night = Drug.TIME_NIGHT;
+			hasWrappingDoseTimeNight = mDoseTimeEnds[night] != null &&
+					mDoseTimeEnds[night].getMillisFromMidnight() != mTrueDoseTimeEndOffsets[night];
+		}
+
+		public DumbTime getDoseTimeBegin(int doseTime) {
+			return mDoseTimeBegins[doseTime];
+		}
+
+		public DumbTime getDoseTimeEnd(int doseTime) {
+			return mDoseTimeEnds[doseTime];
+		}
+
+		public long getTrueDoseTimeEndOffset(int doseTime) {
+			return mTrueDoseTimeEndOffsets[doseTime];
+		}
+
+		public DoseTimeTimeline getTimeline() {
+			return mTimeline;
+		}
+	}
+
 	public static synchronized void init()
 	{
 		if(sSharedPrefs == null)
@@ -141,14 +265,51 @@ public final class Settings
 			}
 
 			registerOnChangeListener(sBackupNotifier);
+			registerOnChangeListener(sSnapshotInvalidator);
+			registerOnChangeListener(sMetricsSwitch);
+			registerOnChangeListener(sExternalChangeTracker);
+
+			Metrics.setEnabled(getBoolean(Keys.COLLECT_METRICS, false));
 
 			fixSettings();
 			migrateSettings();
 		}
 	}
 
-	public static void clear() {
-		sSharedPrefs.edit().clear().commit();
+	public static void clear()
+	{
+		synchronized(LOCK_FLUSH)
+		{
+			synchronized(sPendingWrites)
+			{
+				sPendingWrites.clear();
+				sFlushedKeys.clear();
+			}
+
+			sSharedPrefs.edit().clear().commit();
+		}
+	}
+
+	/**
+	 * Returns the current settings snapshot, building it if necessary.
+	 */
+	public static Snapshot snapshot()
+	{
+		Snapshot snapshot = sSnapshot;
+		if(snapshot == null)
+		{
+			final int generation = sSnapshotGeneration;
+			snapshot = new Snapshot();
+
+			// don't publish a snapshot if a preference was changed while building it
+			synchronized(Snapshot.class)
+			{
+				if(generation == sSnapshotGeneration)
+					sSnapshot = snapshot;
+			}
+		}
+
+		return snapshot;
 	}
 
 	public static void registerOnChangeListener(OnSharedPreferenceChangeListener l) {
@@ -168,11 +329,11 @@ public final class Settings
 	}
 
 	public static Set<String> getStringSet(String key) {
-		return stringToStringSet(sSharedPrefs.getString(key, null));
+		return stringToStringSet(getString(key, null));
 	}
 
 	public static void putStringSet(String key, Set<String> set) {
-		sSharedPrefs.edit().putString(key, stringSetToString(set)).commit();
+		putPending(key, stringSetToString(set));
 	}
 
 	public static void putStringSetEntry(String key, String entry)
@@ -186,7 +347,12 @@ public final class Settings
 		return getStringSet(key).contains(entry);
 	}
 
-	public static String getString(String key, String defValue) {
+	public static String getString(String key, String defValue)
+	{
+		final Object value = getPending(key);
+		if(value != null)
+			return value != REMOVED ? (String) value : defValue;
+
 		return sSharedPrefs.getString(key, defValue);
 	}
 
@@ -195,7 +361,7 @@ public final class Settings
 	}
 
 	public static void putString(String key, String value) {
-		sSharedPrefs.edit().putString(key, value).commit();
+		putPending(key, value != null ? value : REMOVED);
 	}
 
 	public static Date getDate(String key)
@@ -229,15 +395,25 @@ public final class Settings
 		putString(key, sdf.format(date));
 	}
 
-	public static boolean getBoolean(String key, boolean defaultValue) {
+	public static boolean getBoolean(String key, boolean defaultValue)
+	{
+		final Object value = getPending(key);
+		if(value != null)
+			return value != REMOVED ? (Boolean) value : defaultValue;
+
 		return sSharedPrefs.getBoolean(key, defaultValue);
 	}
 
 	public static void putBoolean(String key, boolean value) {
-		sSharedPrefs.edit().putBoolean(key, value).commit();
+		putPending(key, value);
 	}
 
-	public static int getInt(String key, int defValue) {
+	public static int getInt(String key, int defValue)
+	{
+		final Object value = getPending(key);
+		if(value != null)
+			return value != REMOVED ? (Integer) value : defValue;
+
 		return sSharedPrefs.getInt(key, defValue);
 	}
 
@@ -246,12 +422,12 @@ public final class Settings
 	}
 
 	public static void putInt(String key, int value) {
-		sSharedPrefs.edit().putInt(key, value).commit();
+		putPending(key, value);
 	}
 
 	public static Date getOldestPossibleHistoryDate(Date reference)
 	{
-		final int index = getStringAsInt(Keys.HISTORY_SIZE, 2);
+		final int index = snapshot().historySize;
 
 		final int field;
 		final int value;
@@ -313,38 +489,27 @@ public final class Settings
 		return getDoseTimeEnd(doseTime).getMillisFromMidnight();
 	}
 
-	public static long getTrueDoseTimeEndOffset(int doseTime)
-	{
-		final long doseTimeBeginOffset = getDoseTimeBeginOffset(doseTime);
-		long doseTimeEndOffset = getDoseTimeEndOffset(doseTime);
-
-		if(doseTimeEndOffset < doseTimeBeginOffset)
-			doseTimeEndOffset += Constants.MILLIS_PER_DAY;
-
-		return doseTimeEndOffset;
+	public static long getTrueDoseTimeEndOffset(int doseTime) {
+		return snapshot().getTrueDoseTimeEndOffset(doseTime);
 	}
 
 	public static boolean hasWrappingDoseTimeNight() {
-		return getDoseTimeEndOffset(Drug.TIME_NIGHT) != getTrueDoseTimeEndOffset(Drug.TIME_NIGHT);
+		return snapshot().hasWrappingDoseTimeNight;
 	}
 
-	public static DumbTime getDoseTimeBegin(int doseTime)
-	{
-		final TimePeriod p = getTimePeriodPreference(doseTime);
-		return p == null ? null : p.begin();
+	public static DumbTime getDoseTimeBegin(int doseTime) {
+		return snapshot().getDoseTimeBegin(doseTime);
 	}
 
-	public static DumbTime getDoseTimeEnd(int doseTime)
-	{
-		final TimePeriod p = getTimePeriodPreference(doseTime);
-		return p == null ? null : p.end();
+	public static DumbTime getDoseTimeEnd(int doseTime) {
+		return snapshot().getDoseTimeEnd(doseTime);
 	}
 
 	public static TimePeriod getTimePeriodPreference(int doseTime)
 	{
 		final String key = DOSE_TIME_KEYS[doseTime];
 
-		String value = sSharedPrefs.getString(key, null);
+		String value = getString(key, null);
 		if(value == null)
 		{
 			final Context context = RxDroid.getContext();
@@ -416,64 +581,38 @@ public final class Settings
 
 	public static DoseTimeInfo getDoseTimeInfo(Calendar currentTime)
 	{
+		final DoseTimeTimeline timeline = getDoseTimeTimeline();
+		final long offset = DoseTimeTimeline.getOffsetFromMidnight(currentTime);
+		final Date date = DateTime.getDatePart(currentTime).getTime();
+
 		final DoseTimeInfo dtInfo = DoseTimeInfo.INSTANCES.get();
 
 		dtInfo.mCurrentTime = currentTime;
-		dtInfo.mActiveDate = getActiveDate(dtInfo.mCurrentTime);
-		dtInfo.mActiveDoseTime = getActiveDoseTime(dtInfo.mCurrentTime);
-		dtInfo.mNextDoseTime = getNextDoseTime(dtInfo.mCurrentTime);
-		dtInfo.mNextDoseTimeDate = dtInfo.mActiveDate;
-
-		if(dtInfo.mNextDoseTime == Schedule.TIME_MORNING)
-		{
-			final boolean useNextDay;
-
-			if(dtInfo.mActiveDoseTime == Schedule.TIME_INVALID)
-			{
-				// If we have a wrapping TIME_NIGHT and there is no active
-				// dose time, the time must be later than TIME_NIGHT's end,
-				// which will always be the date of the next TIME_MORNING.
-				//
-				// If TIME_NIGHT is not wrapping, we must check, whether we're
-				// after TIME_NIGHT's end but before midnight.
-
-				if(hasWrappingDoseTimeNight())
-					useNextDay = false;
-				else
-				{
-					final long offsetFromMidnight = DateTime.getOffsetFromMidnight(currentTime);
-					final long endOfNightOffset = getDoseTimeEndOffset(Schedule.TIME_NIGHT);
-
-					useNextDay = offsetFromMidnight > endOfNightOffset;
-				}
-			}
-			else if(dtInfo.mActiveDoseTime == Schedule.TIME_NIGHT)
-				useNextDay = true;
-
-			else
-			{
-				Log.w(TAG, "W00t? This was unexpected...");
-				useNextDay = false;
-			}
-
-			if(useNextDay)
-				dtInfo.mNextDoseTimeDate = DateTime.add(dtInfo.mNextDoseTimeDate, Calendar.DAY_OF_MONTH, 1);
-		}
+		dtInfo.mActiveDoseTime = timeline.getActiveDoseTime(offset);
+		dtInfo.mActiveDate = DateTime.add(date, Calendar.DAY_OF_MONTH, timeline.getActiveDayOffset(offset));
+		dtInfo.mNextDoseTime = timeline.getNextDoseTime(offset);
+		dtInfo.mNextDoseTimeDate = DateTime.add(date, Calendar.DAY_OF_MONTH, timeline.getNextDayOffset(offset));
 
 		return dtInfo;
 	}
 
+	/**
+	 * Returns the dose times, compiled for fast lookups.
+	 * <p>
+	 * The timeline is part of the current {@link Snapshot}, so it is only rebuilt
+	 * after the dose time settings have changed.
+	 */
+	public static DoseTimeTimeline getDoseTimeTimeline() {
+		return snapshot().getTimeline();
+	}
+
 	public static Date getActiveDate(Calendar time)
 	{
 		final Calendar activeDate = DateTime.getDatePartMutable(time);
-		final int activeDoseTime = getActiveDoseTime(time);
+		final int dayOffset = getDoseTimeTimeline().getActiveDayOffset(DoseTimeTimeline.getOffsetFromMidnight(time));
 
-		if(activeDoseTime == Drug.TIME_NIGHT && hasWrappingDoseTimeNight())
-		{
-			final DumbTime end = new DumbTime(getDoseTimeEndOffset(Drug.TIME_NIGHT));
-			if(DateTime.isWithinRange(time, Constants.MIDNIGHT, end))
-				activeDate.add(Calendar.DAY_OF_MONTH, -1);
-		}
+		if(dayOffset != 0)
+			activeDate.add(Calendar.DAY_OF_MONTH, dayOffset);
 
 		return activeDate.getTime();
 	}
@@ -500,53 +639,17 @@ public final class Settings
 		return getActiveDate(DateTime.nowCalendarMutable());
 	}
 
-	public static int getActiveDoseTime(Calendar time)
-	{
-		for(int doseTime : Constants.DOSE_TIMES)
-		{
-			if(DateTime.isWithinRange(time, getDoseTimeBegin(doseTime), getDoseTimeEnd(doseTime)))
-				return doseTime;
-		}
-
-		return Schedule.TIME_INVALID;
-	}
-
-	public static int getNextDoseTime(Calendar time) {
-		return getNextDoseTime(time, false);
+	public static int getActiveDoseTime(Calendar time) {
+		return getDoseTimeTimeline().getActiveDoseTime(DoseTimeTimeline.getOffsetFromMidnight(time));
 	}
 
-	public static int getNextDoseTime(Calendar time, boolean useNextDayOffsets)
+	public static int getNextDoseTime(Calendar time)
 	{
-		int retDoseTime = -1;
-		long smallestDiff = 0;
-
-		//Log.d(TAG, "getNextDoseTime: time=" + time);
-
-		for(int doseTime : Constants.DOSE_TIMES)
-		{
-			long diff = getMillisUntilDoseTimeBegin(time, doseTime);
-			if(useNextDayOffsets)
-				diff += Constants.MILLIS_PER_DAY;
+		final int doseTime = getDoseTimeTimeline().getNextDoseTime(DoseTimeTimeline.getOffsetFromMidnight(time));
+		if(doseTime == Schedule.TIME_INVALID)
+			throw new IllegalStateException("No dose times available");
 
-			//Log.d(TAG, "  diff " + diff + " for doseTime=" + doseTime);
-
-			if(diff > 0 && (smallestDiff == 0 || diff < smallestDiff))
-			{
-				smallestDiff = diff;
-				retDoseTime = doseTime;
-			}
-		}
-
-		if(retDoseTime == -1)
-		{
-			if(!useNextDayOffsets)
-				return getNextDoseTime(time, true);
-
-			throw new IllegalStateException("retDoseTime == -1");
-		}
-
-		//Log.d(TAG, "  retDoseTime=" + retDoseTime);
-		return retDoseTime;
+		return doseTime;
 	}
 
 	public static int getStringAsInt(String key, int defValue)
@@ -635,13 +738,224 @@ public final class Settings
 	}
 
 	private static void removeInternal(String key) {
-		sSharedPrefs.edit().remove(key).commit();
+		putPending(key, REMOVED);
 	}
 
-	public static boolean contains(String key) {
+	public static boolean contains(String key)
+	{
+		final Object value = getPending(key);
+		if(value != null)
+			return value != REMOVED;
+
 		return sSharedPrefs.contains(key);
 	}
 
+	/**
+	 * Writes all pending changes to disk.
+	 * <p>
+	 * Changes made using any of the <code>put*</code> functions are not written
+	 * immediately, but are collected and written in a background thread. They are
+	 * however visible to all <code>get*</code> functions right away. Call this
+	 * function if the data must be on disk, e.g. before a backup.
+	 * <p>
+	 * As the change listeners may update the UI, the changes are always written
+	 * in the main thread on API levels that notify listeners in the committing
+	 * thread.
+	 */
+	public static void flush()
+	{
+		if(COMMIT_NOTIFIES_IN_CALLING_THREAD && Looper.myLooper() != Looper.getMainLooper())
+		{
+			flushInMainThread();
+			return;
+		}
+
+		synchronized(LOCK_FLUSH)
+		{
+			final HashMap<String, Object> changes;
+
+			synchronized(sPendingWrites)
+			{
+				sIsFlushScheduled = false;
+				if(sPendingWrites.isEmpty())
+					return;
+
+				changes = new HashMap<String, Object>(sPendingWrites);
+			}
+
+			final Map<String, ?> stored = sSharedPrefs.getAll();
+			final ArrayList<String> changedKeys = new ArrayList<String>(changes.size());
+
+			final SharedPreferences.Editor editor = sSharedPrefs.edit();
+
+			for(Map.Entry<String, Object> change : changes.entrySet())
+			{
+				final String key = change.getKey();
+				final Object value = change.getValue();
+
+				if(value == REMOVED)
+					editor.remove(key);
+				else if(value instanceof String)
+					editor.putString(key, (String) value);
+				else if(value instanceof Boolean)
+					editor.putBoolean(key, (Boolean) value);
+				else if(value instanceof Integer)
+					editor.putInt(key, (Integer) value);
+				else
+					throw new IllegalStateException("Unexpected value for " + key + ": " + value);
+
+				// Listeners are only notified of actual changes
+				if(!isEqual(value, stored.get(key)))
+					changedKeys.add(key);
+			}
+
+			// must be done before committing, as listeners may be notified in this thread
+			expectNotifications(changedKeys, 1);
+
+			final Timer t = LOGV ? new Timer() : null;
+
+			if(!editor.commit())
+			{
+				Log.w(TAG, "flush: failed to write " + changes.size() + " change(s)");
+				expectNotifications(changedKeys, -1);
+			}
+
+			if(LOGV) Log.v(TAG, "flush: " + changes.size() + " change(s) in " + t);
+
+			synchronized(sPendingWrites)
+			{
+				// keep all values that have been changed again in the meantime
+				for(Map.Entry<String, Object> change : changes.entrySet())
+				{
+					if(sPendingWrites.get(change.getKey()) == change.getValue())
+						sPendingWrites.remove(change.getKey());
+				}
+			}
+		}
+	}
+
+	private static void flushInMainThread()
+	{
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		RxDroid.runInMainThread(new Runnable() {
+
+			@Override
+			public void run()
+			{
+				try
+				{
+					flush();
+				}
+				finally
+				{
+					latch.countDown();
+				}
+			}
+		});
+
+		try
+		{
+			if(!latch.await(FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+				Log.w(TAG, "flushInMainThread: timed out");
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void expectNotifications(List<String> keys, int delta)
+	{
+		synchronized(sPendingWrites)
+		{
+			for(String key : keys)
+			{
+				final Integer count = sFlushedKeys.get(key);
+				final int newCount = (count != null ? count : 0) + delta;
+
+				if(newCount > 0)
+					sFlushedKeys.put(key, newCount);
+				else
+					sFlushedKeys.remove(key);
+			}
+		}
+	}
+
+	private static boolean isEqual(Object pending, Object stored)
+	{
+		if(pending == REMOVED)
+			return stored == null;
+
+		return pending.equals(stored);
+	}
+
+	private static Object getPending(String key)
+	{
+		synchronized(sPendingWrites) {
+			return sPendingWrites.get(key);
+		}
+	}
+
+	private static void putPending(String key, Object value)
+	{
+		synchronized(sPendingWrites)
+		{
+			sPendingWrites.put(key, value);
+
+			if(!sIsFlushScheduled)
+			{
+				sIsFlushScheduled = true;
+
+				if(COMMIT_NOTIFIES_IN_CALLING_THREAD)
+					RxDroid.runInMainThread(sFlushRunnable);
+				else
+					new Thread(sFlushRunnable, "Settings.flush").start();
+			}
+		}
+
+		// the change listeners will only be notified once the change is written
+		if(!isStateKey(key))
+			invalidateSnapshot();
+	}
+
+	/**
+	 * Returns <code>true</code> if the key is used for storing internal state,
+	 * rather than a user preference.
+	 */
+	private static boolean isStateKey(String key)
+	{
+		for(String stateKey : STATE_KEYS)
+		{
+			if(stateKey.equals(key))
+				return true;
+		}
+
+		return false;
+	}
+
+	private static final String[] STATE_KEYS = {
+		Keys.LAST_MSG_HASH, Keys.LAST_MSG, Keys.LAST_MSG_TITLE,
+		Keys.WAKEUP_DAY, Keys.WAKEUP_COUNT, Keys.WAKEUP_COUNT_PREVIOUS
+	};
+
+	private static void invalidateSnapshot()
+	{
+		synchronized(Snapshot.class)
+		{
+			++sSnapshotGeneration;
+			sSnapshot = null;
+		}
+	}
+
+	private static final Runnable sFlushRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
 	private static void migrateSettings()
 	{
 		if(contains("displayed_info_ids"))
@@ -785,6 +1099,52 @@ public final class Settings
 		return prefix;
 	}
 
+	private static OnSharedPreferenceChangeListener sSnapshotInvalidator =
+			new OnSharedPreferenceChangeListener() {
+
+		@Override
+		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key)
+		{
+			if(!isStateKey(key))
+				invalidateSnapshot();
+		}
+	};
+
+	/**
+	 * Discards pending writes of preferences that were changed without using
+	 * Settings, so that flushing them does not overwrite the user's choice.
+	 */
+	private static OnSharedPreferenceChangeListener sExternalChangeTracker =
+			new OnSharedPreferenceChangeListener() {
+
+		@Override
+		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key)
+		{
+			synchronized(sPendingWrites)
+			{
+				if(sFlushedKeys.containsKey(key))
+				{
+					// written by flush()
+					expectNotifications(Collections.singletonList(key), -1);
+					return;
+				}
+
+				sPendingWrites.remove(key);
+			}
+		}
+	};
+
+	private static OnSharedPreferenceChangeListener sMetricsSwitch =
+			new OnSharedPreferenceChangeListener() {
+
+		@Override
+		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key)
+		{
+			if(Keys.COLLECT_METRICS.equals(key))
+				Metrics.setEnabled(getBoolean(Keys.COLLECT_METRICS, false));
+		}
+	};
+
 	private static OnSharedPreferenceChangeListener sBackupNotifier =
 			new OnSharedPreferenceChangeListener() {
 
@@ -798,7 +1158,7 @@ public final class Settings
 					sDoseTimeCache[index] = null;
 			}*/
 
-			if(!Keys.LAST_MSG_HASH.equals(key))
+			if(!isStateKey(key))
 				RxDroid.notifyBackupDataChanged();
 		}
 	};
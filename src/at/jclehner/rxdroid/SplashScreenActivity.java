@@ -27,18 +27,11 @@ import java.util.Date;
 import android.annotation.TargetApi;
 import android.app.AlertDialog;
 import android.app.Dialog;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.Handler;
-import android.os.Message;
-import android.support.v4.content.LocalBroadcastManager;
 import android.text.SpannableString;
 import android.text.style.RelativeSizeSpan;
 import android.text.style.UnderlineSpan;
@@ -49,6 +42,7 @@ import at.jclehner.rxdroid.db.Database;
 import at.jclehner.rxdroid.db.DatabaseHelper;
 import at.jclehner.rxdroid.db.DatabaseHelper.DatabaseError;
 import at.jclehner.rxdroid.db.Drug;
+import at.jclehner.rxdroid.db.Patient;
 import at.jclehner.rxdroid.util.DateTime;
 import at.jclehner.rxdroid.util.Util;
 import at.jclehner.rxdroid.util.WrappedCheckedException;
@@ -57,56 +51,11 @@ import com.actionbarsherlock.app.SherlockActivity;
 
 public class SplashScreenActivity extends SherlockActivity implements OnClickListener
 {
-	@SuppressWarnings("unused")
-	private static final boolean USE_MSG_HANDLER = BuildConfig.DEBUG;
-
-	public class DatabaseStatusReceiver extends BroadcastReceiver
-	{
-		public static final String EXTRA_MESSAGE = "at.jclehner.rxdroid.extra.MESSAGE";
-		public static final String EXTRA_PROGRESS = "at.jclehner.rxdroid.extra.PROGRESS";
-
-		@Override
-		public void onReceive(Context context, Intent intent)
-		{
-			if(intent == null)
-				return;
-
-			final TextView msg = (TextView) SplashScreenActivity.this.findViewById(R.id.text_loading);
-			if(msg == null)
-				return;
-
-			final int msgResId = intent.getIntExtra(EXTRA_MESSAGE, R.string._title_db_status_loading);
-			msg.setText(getString(R.string._title_database) + ": " + getString(msgResId));
-		}
-	}
-
-	public class DatabaseStatusHandler extends Handler
-	{
-		public static final int MSG_SET_TEXT = 0;
-
-		@Override
-		public void handleMessage(Message msg)
-		{
-			if(msg.what == MSG_SET_TEXT)
-			{
-				final TextView text = (TextView) findViewById(R.id.text_loading);
-				if(text != null)
-				{
-					final int textResId = msg.arg1;
-					text.setText(getString(R.string._title_database) + ": " + getString(textResId));
-					return;
-				}
-			}
-
-			super.handleMessage(msg);
-		}
-	}
-
 	private static final String TAG = SplashScreenActivity.class.getSimpleName();
 	private static final String ARG_EXCEPTION = "exception";
 
-	private final BroadcastReceiver mReceiver = new DatabaseStatusReceiver();
 	private Date mDate;
+	private int mPatientId;
 
 	private WrappedCheckedException mException = null;
 
@@ -114,12 +63,14 @@ public class SplashScreenActivity extends SherlockActivity implements OnClickLis
 	@Override
 	protected void onCreate(Bundle savedInstanceState)
 	{
+		StartupPipeline.markStart();
 		Settings.init();
 
 		setTheme(Theme.get());
 		setContentView(R.layout.loader);
 
 		mDate = Settings.getActiveDate();
+		mPatientId = getIntent().getIntExtra(DrugListActivity.EXTRA_PATIENT_ID, Patient.DEFAULT_PATIENT_ID);
 
 		final SpannableString dateString = new SpannableString(DateTime.toNativeDate(mDate));
 
@@ -143,8 +94,7 @@ public class SplashScreenActivity extends SherlockActivity implements OnClickLis
 	@Override
 	protected void onResume()
 	{
-		//registerReceiver(mReceiver, new IntentFilter(Intent.ACTION_MAIN));
-		RxDroid.getLocalBroadcastManager().registerReceiver(mReceiver, new IntentFilter(Intent.ACTION_MAIN));
+		StartupPipeline.setOnProgressListener(mProgressListener);
 		loadDatabaseAndLaunchMainActivity();
 		super.onResume();
 	}
@@ -153,7 +103,7 @@ public class SplashScreenActivity extends SherlockActivity implements OnClickLis
 	protected void onPause()
 	{
 		super.onPause();
-		RxDroid.getLocalBroadcastManager().unregisterReceiver(mReceiver);
+		StartupPipeline.setOnProgressListener(null);
 	}
 
 	@Override
@@ -175,15 +125,8 @@ public class SplashScreenActivity extends SherlockActivity implements OnClickLis
 		finish();
 	}
 
-	public static void setStatusMessage(int msgResId)
-	{
-		final Context context = RxDroid.getContext();
-		final Intent intent = new Intent(context, DatabaseStatusReceiver.class);
-		intent.setAction(Intent.ACTION_MAIN);
-		intent.putExtra(DatabaseStatusReceiver.EXTRA_MESSAGE, msgResId);
-
-		LocalBroadcastManager bm = RxDroid.getLocalBroadcastManager();
-		bm.sendBroadcast(intent);
+	public static void setStatusMessage(int msgResId) {
+		StartupPipeline.reportProgress(msgResId);
 	}
 
 	@SuppressWarnings("deprecation")
@@ -243,8 +186,91 @@ public class SplashScreenActivity extends SherlockActivity implements OnClickLis
 			super.onPrepareDialog(id, dialog, args);
 	}
 
-	private void loadDatabaseAndLaunchMainActivity() {
-		new DatabaseIntializerTask().execute(0);
+	private void loadDatabaseAndLaunchMainActivity()
+	{
+		// Loads everything but the DoseEvents; if this fails, the next stage
+		// loads the whole database, retrying as usual.
+		final StartupPipeline.Stage entries = new StartupPipeline.Stage("entries",
+				R.string._title_db_status_loading, true) {
+
+			@Override
+			void run()
+			{
+				try
+				{
+					Database.preload(RxDroid.getContext());
+				}
+				catch(RuntimeException e)
+				{
+					Log.w(TAG, "Failed to preload database", e);
+				}
+			}
+		};
+
+		final StartupPipeline.Stage database = new StartupPipeline.Stage("database",
+				R.string._title_db_status_loading, true) {
+
+			@Override
+			void run() {
+				loadDatabase(0);
+			}
+		};
+
+		// Sorts the drugs of DrugListActivity's first page while the DoseEvents are loaded
+		final StartupPipeline.Stage sortDrugs = new StartupPipeline.Stage("sortDrugs", 0, false) {
+
+			@Override
+			void run()
+			{
+				if(Database.isPreloaded())
+					DayModel.prepare(mPatientId);
+			}
+		};
+
+		// Builds the model of DrugListActivity's first page while the activity is starting
+		final StartupPipeline.Stage dayModel = new StartupPipeline.Stage("dayModel", 0, false) {
+
+			@Override
+			void run() {
+				DayModel.get(mPatientId, mDate);
+			}
+		};
+
+		final StartupPipeline.Stage janitor = new StartupPipeline.Stage("janitor", 0, false) {
+
+			@Override
+			void run() {
+				DoseEventJanitor.discardOldDoseEvents();
+			}
+		};
+
+		database.dependsOn(entries);
+		sortDrugs.dependsOn(entries);
+		dayModel.dependsOn(database, sortDrugs);
+		janitor.dependsOn(database);
+
+		new StartupPipeline(mPipelineCallback, entries, database, sortDrugs, dayModel, janitor).start();
+	}
+
+	private static void loadDatabase(int count)
+	{
+		try
+		{
+			if(count == 0)
+				Database.init();
+			else
+				Database.reload(RxDroid.getContext());
+		}
+		catch(Exception e)
+		{
+			if(count < Database.TABLE_COUNT)
+			{
+				loadDatabase(count + 1);
+				return;
+			}
+
+			throw new WrappedCheckedException(e);
+		}
 	}
 
 	private boolean deleteDatabase()
@@ -305,6 +331,7 @@ public class SplashScreenActivity extends SherlockActivity implements OnClickLis
 				intent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_NO_ANIMATION);
 				intent.putExtra(DoseTimePreferenceActivity.EXTRA_IS_FIRST_LAUNCH, isFirstLaunch);
 				intent.putExtra(DrugListActivity.EXTRA_DATE, mDate);
+				intent.putExtra(DrugListActivity.EXTRA_PATIENT_ID, mPatientId);
 				startActivity(intent);
 
 				finish();
@@ -312,49 +339,38 @@ public class SplashScreenActivity extends SherlockActivity implements OnClickLis
 		}).start();
 	}
 
-	private class DatabaseIntializerTask extends AsyncTask<Integer, Void, WrappedCheckedException>
-	{
-		//private boolean mAttemptedDatabaseReload = false;
+	private final StartupPipeline.OnProgressListener mProgressListener = new StartupPipeline.OnProgressListener() {
 
 		@Override
-		protected WrappedCheckedException doInBackground(Integer... params)
+		public void onProgress(int msgResId)
 		{
-			int count = (params == null || params.length == 0) ? 0 : params[0];
+			final TextView msg = (TextView) findViewById(R.id.text_loading);
+			if(msg != null)
+				msg.setText(getString(R.string._title_database) + ": " + getString(msgResId));
+		}
+	};
 
-			try
-			{
-				if(count == 0)
-					Database.init();
-				else
-					Database.reload(RxDroid.getContext());
-			}
-			catch(Exception e)
-			{
-				if(count < Database.TABLE_COUNT)
-					return doInBackground(++count);
+	private final StartupPipeline.Callback mPipelineCallback = new StartupPipeline.Callback() {
 
-				return new WrappedCheckedException(e);
-			}
-
-			return null;
+		@Override
+		public void onReady()
+		{
+			setStatusMessage(R.string._title_db_status_loading);
+			launchMainActivity();
 		}
 
 		@SuppressWarnings("deprecation")
 		@Override
-		protected void onPostExecute(WrappedCheckedException result)
+		public void onFailed(StartupPipeline.Stage stage, WrappedCheckedException e)
 		{
-			setStatusMessage(R.string._title_db_status_loading);
+			Log.w(TAG, e.getRootCause());
 
-			if(result == null)
-				launchMainActivity();
-			else
-			{
-				Log.w(TAG, result.getRootCause());
+			if(isFinishing())
+				return;
 
-				Bundle args = new Bundle();
-				args.putSerializable(ARG_EXCEPTION, result);
-				showDialog(R.id.db_error_dialog, args);
-			}
+			Bundle args = new Bundle();
+			args.putSerializable(ARG_EXCEPTION, e);
+			showDialog(R.id.db_error_dialog, args);
 		}
-	}
+	};
 }
@@ -0,0 +1,334 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.os.SystemClock;
+import android.util.Log;
+import at.jclehner.rxdroid.util.Timer;
+import at.jclehner.rxdroid.util.Trace;
+import at.jclehner.rxdroid.util.WrappedCheckedException;
+
+/**
+ * Runs the app's startup work in stages.
+ * <p>
+ * Each stage is run in a background thread once all stages it depends on
+ * have finished, so independent stages run in parallel. The pipeline is
+ * ready as soon as all stages required for launching the UI have finished;
+ * the remaining stages continue in the background.
+ * <p>
+ * Progress messages are delivered to an {@link OnProgressListener} in the
+ * main thread. The pipeline also measures the time from the start of the app
+ * to the first frame of the drug list.
+ *
+ * @author Joseph Lehner
+ */
+/* package */ final class StartupPipeline
+{
+	private static final String TAG = StartupPipeline.class.getSimpleName();
+	private static final boolean LOGV = BuildConfig.DEBUG;
+
+	private static final int THREAD_COUNT = 2;
+
+	interface OnProgressListener
+	{
+		void onProgress(int msgResId);
+	}
+
+	interface Callback
+	{
+		/**
+		 * Called in the main thread once all stages required for launch have finished.
+		 */
+		void onReady();
+
+		/**
+		 * Called in the main thread if a stage that is required for launch, or
+		 * that such a stage depends on, has thrown an exception before
+		 * {@link #onReady()} was called. No further stages are run.
+		 * <p>
+		 * Failures of other stages are only logged, and the stages depending
+		 * on them are skipped.
+		 */
+		void onFailed(Stage stage, WrappedCheckedException e);
+	}
+
+	static abstract class Stage
+	{
+		final String name;
+		final int msgResId;
+		final boolean isRequiredForLaunch;
+
+		private final List<Stage> mDependents = new ArrayList<Stage>();
+		private int mPendingDependencies = 0;
+		private boolean mIsSkipped = false;
+
+		/**
+		 * @param msgResId The progress message to show while this stage is running, or <code>0</code>.
+		 */
+		Stage(String name, int msgResId, boolean isRequiredForLaunch)
+		{
+			this.name = name;
+			this.msgResId = msgResId;
+			this.isRequiredForLaunch = isRequiredForLaunch;
+		}
+
+		/**
+		 * Declares that this stage may only run after the specified stages have finished.
+		 */
+		Stage dependsOn(Stage... stages)
+		{
+			for(Stage stage : stages)
+			{
+				stage.mDependents.add(this);
+				++mPendingDependencies;
+			}
+
+			return this;
+		}
+
+		abstract void run();
+	}
+
+	private static volatile OnProgressListener sListener;
+
+	private static long sStartMillis = 0;
+	private static long sTimeToFirstFrame = -1;
+
+	private final Stage[] mStages;
+	private final Callback mCallback;
+	private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREAD_COUNT);
+
+	private int mPendingLaunchStages = 0;
+	private int mFinishedStages = 0;
+	private boolean mHasFailed = false;
+	private boolean mIsReady = false;
+
+	StartupPipeline(Callback callback, Stage... stages)
+	{
+		mStages = stages;
+		mCallback = callback;
+
+		for(Stage stage : stages)
+		{
+			if(stage.isRequiredForLaunch)
+				++mPendingLaunchStages;
+		}
+	}
+
+	synchronized void start()
+	{
+		if(mPendingLaunchStages == 0)
+			postReady();
+
+		for(Stage stage : mStages)
+		{
+			if(stage.mPendingDependencies == 0)
+				execute(stage);
+		}
+	}
+
+	static void setOnProgressListener(OnProgressListener listener) {
+		sListener = listener;
+	}
+
+	/**
+	 * Delivers a progress message to the current listener, if any. May be called from any thread.
+	 */
+	static void reportProgress(final int msgResId)
+	{
+		if(sListener == null)
+			return;
+
+		RxDroid.runInMainThread(new Runnable() {
+
+			@Override
+			public void run()
+			{
+				final OnProgressListener listener = sListener;
+				if(listener != null)
+					listener.onProgress(msgResId);
+			}
+		});
+	}
+
+	/**
+	 * Marks the start of the app, for measuring the time to the first frame.
+	 */
+	static synchronized void markStart()
+	{
+		sStartMillis = SystemClock.uptimeMillis();
+		sTimeToFirstFrame = -1;
+	}
+
+	/**
+	 * Records that the first frame was drawn. Only the first call after {@link #markStart()} counts.
+	 */
+	static synchronized void onFirstFrame()
+	{
+		if(sStartMillis == 0 || sTimeToFirstFrame != -1)
+			return;
+
+		sTimeToFirstFrame = SystemClock.uptimeMillis() - sStartMillis;
+		Trace.recordMillis("startup.firstFrame", sTimeToFirstFrame);
+		Log.i(TAG, "Time to first frame: " + sTimeToFirstFrame + "ms");
+	}
+
+	/**
+	 * Returns the time to the first frame in milliseconds, or <code>-1</code> if unknown.
+	 */
+	static synchronized long getTimeToFirstFrame() {
+		return sTimeToFirstFrame;
+	}
+
+	/**
+	 * Returns <code>true</code> if the first frame since {@link #markStart()} has not been drawn yet.
+	 */
+	static synchronized boolean isWaitingForFirstFrame() {
+		return sStartMillis != 0 && sTimeToFirstFrame == -1;
+	}
+
+	private void execute(final Stage stage)
+	{
+		mExecutor.execute(new Runnable() {
+
+			@Override
+			public void run()
+			{
+				if(stage.msgResId != 0)
+					reportProgress(stage.msgResId);
+
+				final Timer t = new Timer();
+
+				try
+				{
+					stage.run();
+				}
+				catch(RuntimeException e)
+				{
+					onStageFailed(stage, e);
+					return;
+				}
+
+				Trace.record("startup." + stage.name, t);
+				if(LOGV) Log.v(TAG, stage.name + ": " + t);
+
+				onStageFinished(stage);
+			}
+		});
+	}
+
+	private synchronized void onStageFinished(Stage stage)
+	{
+		if(mHasFailed)
+			return;
+
+		for(Stage dependent : stage.mDependents)
+		{
+			// already counted as finished if another dependency has failed
+			if(--dependent.mPendingDependencies == 0 && !dependent.mIsSkipped)
+				execute(dependent);
+		}
+
+		if(stage.isRequiredForLaunch && --mPendingLaunchStages == 0)
+			postReady();
+
+		if(++mFinishedStages == mStages.length)
+			mExecutor.shutdown();
+	}
+
+	private synchronized void onStageFailed(final Stage stage, RuntimeException e)
+	{
+		if(mHasFailed)
+			return;
+
+		final WrappedCheckedException wrapped = e instanceof WrappedCheckedException ?
+				(WrappedCheckedException) e : new WrappedCheckedException(e);
+
+		if(mIsReady || !isBlockingLaunch(stage))
+		{
+			// The UI may already be running, so don't bother the callback
+			Log.w(TAG, "Stage " + stage.name + " failed", wrapped);
+			skip(stage);
+			return;
+		}
+
+		mHasFailed = true;
+		mExecutor.shutdown();
+
+		RxDroid.runInMainThread(new Runnable() {
+
+			@Override
+			public void run() {
+				mCallback.onFailed(stage, wrapped);
+			}
+		});
+	}
+
+	/**
+	 * Marks a stage and all stages depending on it as finished, without running them.
+	 */
+	private void skip(Stage stage)
+	{
+		if(stage.mIsSkipped)
+			return;
+
+		stage.mIsSkipped = true;
+
+		for(Stage dependent : stage.mDependents)
+			skip(dependent);
+
+		if(++mFinishedStages == mStages.length)
+			mExecutor.shutdown();
+	}
+
+	private static boolean isBlockingLaunch(Stage stage)
+	{
+		if(stage.isRequiredForLaunch)
+			return true;
+
+		for(Stage dependent : stage.mDependents)
+		{
+			if(isBlockingLaunch(dependent))
+				return true;
+		}
+
+		return false;
+	}
+
+	private void postReady()
+	{
+		mIsReady = true;
+
+		RxDroid.runInMainThread(new Runnable() {
+
+			@Override
+			public void run() {
+				mCallback.onReady();
+			}
+		});
+	}
+}
@@ -22,30 +22,34 @@
 package at.jclehner.rxdroid.db;
 
 
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
 
 import android.content.Context;
 import android.util.Log;
 import at.jclehner.androidutils.EventDispatcher;
 import at.jclehner.androidutils.Extras;
-import at.jclehner.androidutils.Reflect;
+import at.jclehner.rxdroid.BuildConfig;
+import at.jclehner.rxdroid.Fraction;
 import at.jclehner.rxdroid.R;
 import at.jclehner.rxdroid.RxDroid;
 import at.jclehner.rxdroid.SplashScreenActivity;
 import at.jclehner.rxdroid.db.DatabaseHelper.DatabaseError;
+import at.jclehner.rxdroid.util.DateTime;
+import at.jclehner.rxdroid.util.Metrics;
 import at.jclehner.rxdroid.util.Timer;
+import at.jclehner.rxdroid.util.Trace;
 import at.jclehner.rxdroid.util.WrappedCheckedException;
 
 import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.misc.TransactionManager;
 
 /**
  * All DB access goes here.
@@ -65,7 +69,7 @@ import com.j256.ormlite.dao.Dao;
 public final class Database
 {
 	private static final String TAG = Database.class.getSimpleName();
-	private static final boolean LOGV = true;
+	private static final boolean LOGV = BuildConfig.DEBUG;
 
 	public static Object LOCK_DATA = new Object();
 
@@ -95,15 +99,96 @@ public final class Database
 	//private static Map<Class<?>, List<? extends Entry>> sCacheCopy = null;
 
 	private static DatabaseHelper sHelper;
-	private static boolean sIsLoaded = false;
+	private static volatile boolean sIsLoaded = false;
+	private static volatile boolean sIsPreloaded = false;
 
 	private static long sDbLoadingTimeMillis = 0;
 
 	private static volatile int sPendingDaoOperations = 0;
 
+	private static volatile int sVersion = 0;
+
 	private static EventDispatcher<Object> sEventMgr =
 			new EventDispatcher<Object>();
 
+	private static final Metrics.Counter METRIC_FIND = Metrics.counter("db.find");
+	private static final Metrics.Counter METRIC_GET_CACHED = Metrics.counter("db.getCached");
+
+	// DAO method durations, per table and operation
+	private static final HashMap<Class<?>, Metrics.Histogram[]> sDaoTimers =
+			new HashMap<Class<?>, Metrics.Histogram[]>();
+
+	/**
+	 * Database operations supported by {@link #performDbOperation(Operation, Entry, int)}.
+	 */
+	/* package */ enum Operation
+	{
+		CREATE
+		{
+			@Override
+			<E> void run(Dao<E, Integer> dao, E entry) throws SQLException {
+				dao.create(entry);
+			}
+
+			@Override
+			void dispatch(OnChangeListener listener, Entry entry, int flags) {
+				listener.onEntryCreated(entry, flags);
+			}
+		},
+		UPDATE
+		{
+			@Override
+			<E> void run(Dao<E, Integer> dao, E entry) throws SQLException {
+				dao.update(entry);
+			}
+
+			@Override
+			void dispatch(OnChangeListener listener, Entry entry, int flags) {
+				listener.onEntryUpdated(entry, flags);
+			}
+		},
+		DELETE
+		{
+			@Override
+			<E> void run(Dao<E, Integer> dao, E entry) throws SQLException {
+				dao.delete(entry);
+			}
+
+			@Override
+			void dispatch(OnChangeListener listener, Entry entry, int flags) {
+				listener.onEntryDeleted(entry, flags);
+			}
+		};
+
+		abstract <E> void run(Dao<E, Integer> dao, E entry) throws SQLException;
+
+		abstract void dispatch(OnChangeListener listener, Entry entry, int flags);
+	}
+
+	private static final Operation[] OPERATIONS = Operation.values();
+
+	/**
+	 * Callbacks run after the cache has been updated, indexed by {@link Operation#ordinal()}.
+	 */
+	private static final HashMap<Class<?>, Entry.Callback<?>[]> sCallbacks =
+			new HashMap<Class<?>, Entry.Callback<?>[]>();
+
+	/**
+	 * Statements run in the same transaction before an entry is deleted. Each
+	 * statement takes the entry's ID as its only argument.
+	 */
+	private static final HashMap<Class<?>, String[]> sDeleteCascades =
+			new HashMap<Class<?>, String[]>();
+
+	static
+	{
+		registerCallback(Drug.class, Operation.DELETE, Drug.CALLBACK_DELETED);
+		registerCallback(Schedule.class, Operation.DELETE, Schedule.CALLBACK_DELETED);
+
+		sDeleteCascades.put(Drug.class, Drug.DELETE_CASCADE);
+		sDeleteCascades.put(Schedule.class, Schedule.DELETE_CASCADE);
+	}
+
 	/**
 	 * Initializes the DB.
 	 * <p>
@@ -117,19 +202,70 @@ public final class Database
 
 	/**
 	 * Initializes the DB.
+	 * <p>
+	 * If {@link #preload(Context)} was called before, only the DoseEvents are
+	 * loaded, without blocking access to the entries that were preloaded.
 	 *
 	 * @param context an android Context for creating the ORMLite database helper.
 	 */
-	public static synchronized void init(Context context)
+	public static void init(Context context)
 	{
-		synchronized(LOCK_INIT)
+		List<DoseEvent> events = null;
+
+		if(sIsPreloaded && !sIsLoaded)
 		{
-			if(!sIsLoaded)
-				reload(context);
+			final Timer timer = new Timer();
+			events = queryForAll(DoseEvent.class);
+			Trace.record("db.load." + DoseEvent.class.getSimpleName(), timer);
+
+			Log.i(TAG, "Loaded " + events.size() + " entries of type " + DoseEvent.class.getSimpleName() +
+					": " + timer);
 		}
+
+		init(context, events);
 	}
 
+	/**
+	 * Loads all entries except the DoseEvents, which are then loaded by
+	 * {@link #init(Context)}. Does nothing if the database has already been loaded.
+	 * <p>
+	 * Until then, only the preloaded entries may be accessed.
+	 */
 	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static synchronized void preload(Context context)
+	{
+		synchronized(LOCK_INIT)
+		{
+			if(sIsLoaded || sIsPreloaded)
+				return;
+
+			open(context);
+
+			for(Class clazz : CLASSES)
+			{
+				if(clazz != DoseEvent.class)
+					getCached(clazz);
+			}
+
+			sIsPreloaded = true;
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the database was loaded, i.e. if {@link #init()} will return immediately.
+	 */
+	public static boolean isLoaded() {
+		return sIsLoaded;
+	}
+
+	/**
+	 * Returns <code>true</code> if the entries loaded by {@link #preload(Context)}
+	 * may be accessed, while the DoseEvents are not yet loaded.
+	 */
+	public static boolean isPreloaded() {
+		return sIsPreloaded;
+	}
+
 	public static synchronized void reload(Context context)
 	{
 		if(context == null)
@@ -137,30 +273,84 @@ public final class Database
 
 		synchronized(LOCK_INIT)
 		{
-			SplashScreenActivity.setStatusMessage(R.string._title_db_status_loading);
+			sIsPreloaded = false;
+			open(context);
+			finishLoading();
+		}
+	}
 
-			sIsLoaded = false;
-			sCache.clear();
+	private static synchronized void init(Context context, List<DoseEvent> preloadedEvents)
+	{
+		synchronized(LOCK_INIT)
+		{
+			if(sIsLoaded)
+				return;
 
-			if(sHelper != null)
+			if(!sIsPreloaded || preloadedEvents == null)
 			{
-				sHelper.close();
-				sHelper = null;
+				reload(context);
+				return;
 			}
 
-			sHelper = new DatabaseHelper(context);
-			sDbLoadingTimeMillis = 0;
+			sIsPreloaded = false;
 
-			if(USE_CUSTOM_CACHE)
+			if(!sCache.containsKey(DoseEvent.class))
+				sCache.put(DoseEvent.class, preloadedEvents);
+
+			finishLoading();
+		}
+	}
+
+	private static void open(Context context)
+	{
+		SplashScreenActivity.setStatusMessage(R.string._title_db_status_loading);
+
+		sIsLoaded = false;
+		sCache.clear();
+
+		if(sHelper != null)
+		{
+			sHelper.close();
+			sHelper = null;
+		}
+
+		sHelper = new DatabaseHelper(context);
+		sDbLoadingTimeMillis = 0;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static void finishLoading()
+	{
+		if(USE_CUSTOM_CACHE)
+		{
+			// precache entries
+			for(Class clazz : CLASSES)
+				getCached(clazz);
+
+			final long heapUsed = LOGV ? getUsedHeap() : 0;
+
+			Relations.onLoaded();
+
+			if(LOGV)
 			{
-				// precache entries
-				for(Class clazz : CLASSES)
-					getCached(clazz);
+				Log.v(TAG, "Heap used before/after moving DoseEvents to the history: " +
+						heapUsed / 1024 + "/" + getUsedHeap() / 1024 + " kB");
 			}
 
-			sIsLoaded = true;
-			sEventMgr.post("onDatabaseInitialized");
+			Log.i(TAG, "Interned dates: " + DateTime.getInternStats() +
+					"; fractions: " + Fraction.getCanonicalStats());
 		}
+
+		++sVersion;
+
+		sIsLoaded = true;
+		sEventMgr.post(OnInitializedListener.class, new EventDispatcher.Event<OnInitializedListener>() {
+
+			@Override
+			public void dispatchTo(OnInitializedListener listener) {
+				listener.onDatabaseInitialized();
+			}
+		});
 	}
 
 	public static DatabaseHelper getHelper()
@@ -203,7 +393,7 @@ public final class Database
 	 * Creates a new database entry and notifies listeners.
 	 */
 	public static <E extends Entry> void create(E entry, int flags) {
-		performDbOperation("create", entry, flags);
+		performDbOperation(Operation.CREATE, entry, flags);
 	}
 
 	/**
@@ -217,7 +407,7 @@ public final class Database
 	 * Updates an existing database entry and notifies listeners.
 	 */
 	public static <E extends Entry> void update(E entry, int flags) {
-		performDbOperation("update", entry, flags);
+		performDbOperation(Operation.UPDATE, entry, flags);
 	}
 
 	/**
@@ -231,7 +421,7 @@ public final class Database
 	 * Deletes an existing database entry and notifies listeners.
 	 */
 	public static <E extends Entry> void delete(E entry, int flags) {
-		performDbOperation("delete", entry, flags);
+		performDbOperation(Operation.DELETE, entry, flags);
 	}
 
 	/**
@@ -241,6 +431,59 @@ public final class Database
 		delete(entry, 0);
 	}
 
+	/**
+	 * Deletes multiple entries of the same type, without notifying listeners.
+	 * <p>
+	 * The entries are deleted from the database using a single DAO call. As
+	 * delete cascades and callbacks are not run, this must only be used for
+	 * types that have none.
+	 */
+	public static synchronized <E extends Entry> void deleteAll(final Class<E> clazz, Collection<E> entries)
+	{
+		if(sDeleteCascades.containsKey(clazz) || sCallbacks.containsKey(clazz))
+			throw new IllegalArgumentException("Unsupported type: " + clazz.getSimpleName());
+
+		if(entries.isEmpty())
+			return;
+
+		final List<Integer> ids = new ArrayList<Integer>(entries.size());
+
+		for(E entry : entries)
+		{
+			Extras.remove(entry);
+			SupplyProjection.onChanged(entry);
+			Relations.onDeleted(entry);
+			ids.add(entry.id);
+		}
+
+		++sVersion;
+
+		if(USE_CUSTOM_CACHE)
+			purgeCached(clazz, ids);
+
+		++sPendingDaoOperations;
+
+		new Thread() {
+
+			@Override
+			public void run()
+			{
+				try
+				{
+					synchronized(LOCK_DATA) {
+						deleteByIds(clazz, ids);
+					}
+
+					RxDroid.notifyBackupDataChanged();
+				}
+				finally
+				{
+					--sPendingDaoOperations;
+				}
+			}
+		}.start();
+	}
+
 	public static <E extends Entry> void deleteByIds(Class<? extends Entry> clazz, Collection<Integer> ids)
 	{
 		final Dao<? extends Entry, Integer> dao = getDaoChecked(clazz);
@@ -257,6 +500,8 @@ public final class Database
 
 	public static <T extends Entry> T find(Class<T> clazz, int id)
 	{
+		METRIC_FIND.inc();
+
 		if(USE_CUSTOM_CACHE)
 			return Entries.findInCollectionById(getCached(clazz), id);
 		else
@@ -310,8 +555,21 @@ public final class Database
 		return sDbLoadingTimeMillis;
 	}
 
+	/**
+	 * Returns the version of the cached data.
+	 * <p>
+	 * This value changes whenever the database is reloaded, or an entry
+	 * is created, updated or deleted, so it can be used to check whether
+	 * data derived from the database is still valid.
+	 */
+	public static int getVersion() {
+		return sVersion;
+	}
+
 	static synchronized <T extends Entry> List<T> getCached(Class<T> clazz)
 	{
+		METRIC_GET_CACHED.inc();
+
 		if(!USE_CUSTOM_CACHE)
 		{
 			//Log.w(TAG, "getCached called", new )
@@ -334,6 +592,7 @@ public final class Database
 //				}
 
 				sDbLoadingTimeMillis += timer.elapsed();
+				Trace.record("db.load." + clazz.getSimpleName(), timer);
 
 				Log.i(TAG, "Cached " + entries.size() + " entries of type " + clazz.getSimpleName() + ": " + timer);
 			}
@@ -346,6 +605,13 @@ public final class Database
 		return cached;
 	}
 
+	private static long getUsedHeap()
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
 	@SuppressWarnings({ "unchecked", "unused" })
 	private static <E extends Entry> void createWithoutMagic(E entry) throws SQLException
 	{
@@ -373,65 +639,119 @@ public final class Database
 	}
 
 	@SuppressWarnings("unchecked")
-	private static <E extends Entry> void performDbOperation(String methodName, E entry, int flags)
+	private static <E extends Entry> void performDbOperation(Operation op, E entry, int flags)
 	{
 		if(entry.id == ID_VIRTUAL_ENTRY)
 			throw new IllegalArgumentException("Cannot perform database operation on virtual entries");
 
 		// Extras might be invalid after the entry has changed
 		Extras.remove(entry);
+		SupplyProjection.onChanged(entry);
 
 		final Class<E> clazz = (Class<E>) entry.getClass();
 		final List<E> cached = getCached(clazz);
 
+		++sVersion;
+
 		if(USE_CUSTOM_CACHE)
 		{
-			if("create".equals(methodName))
-				cached.add(entry);
-			else if("delete".equals(methodName))
-				cached.remove(entry);
-			else if("update".equals(methodName))
+			switch(op)
 			{
-				final Entry oldEntry = Entries.findInCollectionById(cached, entry.getId());
-				int index = cached.indexOf(oldEntry);
-
-				cached.remove(index);
-				cached.add(index, entry);
+				case CREATE:
+					cached.add(entry);
+					Relations.onCreated(entry);
+					break;
+
+				case DELETE:
+					cached.remove(entry);
+					Relations.onDeleted(entry);
+					break;
+
+				case UPDATE:
+					final Entry oldEntry = Entries.findInCollectionById(cached, entry.getId());
+					if(oldEntry != null)
+					{
+						int index = cached.indexOf(oldEntry);
+
+						cached.remove(index);
+						cached.add(index, entry);
+					}
+					else if(entry instanceof DoseEvent)
+					{
+						// materialized from the history, see Relations
+						cached.add(entry);
+					}
+					else
+						throw new NoSuchElementException(clazz.getSimpleName() + " #" + entry.getId());
+
+					Relations.onUpdated(oldEntry, entry);
+					break;
 			}
-			else
-				throw new IllegalArgumentException("methodName=" + methodName);
 		}
 
 		final Dao<E, Integer> dao = getDaoChecked(clazz);
-		runDaoMethodInThread(dao, methodName, entry);
+		runDaoMethodInThread(dao, op, entry);
 
-		final String callbackName = "CALLBACK_" + methodName.toUpperCase(Locale.US) + "D";
-		final Field callbackField = Reflect.getDeclaredField(clazz, callbackName);
-		if(callbackField != null)
+		final Entry.Callback<?>[] callbacks = sCallbacks.get(clazz);
+		if(callbacks != null && callbacks[op.ordinal()] != null)
 		{
-			@SuppressWarnings("rawtypes")
-			final Entry.Callback callback = (Entry.Callback) Reflect.getFieldValue(callbackField, null, null);
-			if(callback != null)
-			{
-				// don't run this in a thread as we want a clean state when events are
-				// dispatched to listeners
-				callback.call(entry);
-				if(LOGV) Log.v(TAG, "Ran callback " + callbackField.getName());
-			}
+			// don't run this in a thread as we want a clean state when events are
+			// dispatched to listeners
+			((Entry.Callback<E>) callbacks[op.ordinal()]).call(entry);
+			if(LOGV) Log.v(TAG, "Ran " + op + " callback for " + clazz.getSimpleName());
 		}
-		else if(LOGV)
-			Log.v(TAG, "No callback " + callbackName + " for " + clazz.getSimpleName());
-
 
 		if((flags & FLAG_DONT_NOTIFY_LISTENERS) == 0)
+			dispatchEventToListeners(op, entry, 0);
+	}
+
+	/**
+	 * Removes the entries with the specified IDs from the cache.
+	 * <p>
+	 * This function neither touches the database, nor does it notify listeners. It is
+	 * meant for entries that have been deleted by a {@link #sDeleteCascades cascade}.
+	 */
+	/* package */ static synchronized void purgeCached(Class<? extends Entry> clazz, Collection<Integer> ids)
+	{
+		if(ids.isEmpty())
+			return;
+
+		final HashSet<Integer> purged = new HashSet<Integer>(ids);
+		final List<? extends Entry> cached = getCached(clazz);
+		final int size = cached.size();
+		int count = 0;
+
+		// compact the list in a single pass
+		for(int i = 0; i != size; ++i)
 		{
-			final char first = Character.toUpperCase(methodName.charAt(0));
-			final String eventName = "onEntry" + first + methodName.substring(1) + "d";
-			dispatchEventToListeners(eventName, entry, 0);
+			final Entry entry = cached.get(i);
+			if(!purged.contains(entry.id))
+				setUnchecked(cached, count++, entry);
 		}
+
+		cached.subList(count, size).clear();
+
+		if(LOGV) Log.v(TAG, "purgeCached: removed " + (size - count) + " entries of type " + clazz.getSimpleName());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E extends Entry> void setUnchecked(List<E> list, int index, Entry entry) {
+		list.set(index, (E) entry);
 	}
 
-	private static <E extends Entry, ID> void runDaoMethodInThread(final Dao<E, ID> dao, final String methodName, final E entry)
+	private static <E extends Entry> void registerCallback(Class<E> clazz, Operation op, Entry.Callback<E> callback)
+	{
+		Entry.Callback<?>[] callbacks = sCallbacks.get(clazz);
+		if(callbacks == null)
+		{
+			callbacks = new Entry.Callback<?>[OPERATIONS.length];
+			sCallbacks.put(clazz, callbacks);
+		}
+
+		callbacks[op.ordinal()] = callback;
+	}
+
+	private static <E extends Entry> void runDaoMethodInThread(final Dao<E, Integer> dao, final Operation op, final E entry)
 	{
 		++sPendingDaoOperations;
 
@@ -442,7 +762,7 @@ public final class Database
 			{
 				try
 				{
-					runDaoMethod(dao, methodName, entry);
+					runDaoMethod(dao, op, entry);
 				}
 				finally
 				{
@@ -454,58 +774,67 @@ public final class Database
 		th.start();
 	}
 
-	private static <E extends Entry, ID> void runDaoMethod(final Dao<E, ID> dao, final String methodName, final E entry)
+	private static <E extends Entry> void runDaoMethod(final Dao<E, Integer> dao, final Operation op, final E entry)
 	{
-		Exception ex;
-
 		try
 		{
-			final Method m = dao.getClass().getMethod(methodName, Object.class);
-			final Timer t = LOGV ? new Timer() : null;
+			final boolean recordMetrics = Metrics.isEnabled();
+			final Timer t = (LOGV || recordMetrics) ? new Timer() : null;
+			final String[] cascade = op == Operation.DELETE ? sDeleteCascades.get(entry.getClass()) : null;
 
-			synchronized(LOCK_DATA) {
-				m.invoke(dao, entry);
-			}
+			synchronized(LOCK_DATA)
+			{
+				if(cascade == null)
+					op.run(dao, entry);
+				else
+				{
+					TransactionManager.callInTransaction(sHelper.getConnectionSource(), new Callable<Void>() {
 
-			RxDroid.notifyBackupDataChanged();
+						@Override
+						public Void call() throws SQLException
+						{
+							final String id = Integer.toString(entry.getId());
+
+							for(String statement : cascade)
+								dao.executeRaw(statement, id);
+
+							op.run(dao, entry);
+							return null;
+						}
+					});
+				}
+			}
 
-			if(LOGV) Log.v(TAG, "runDaoMethod: " + methodName + ": " + t);
+			if(recordMetrics)
+				getDaoTimer(entry.getClass(), op).record(t);
 
-			//dao.deleteBuilder().where().idEq(id)
+			RxDroid.notifyBackupDataChanged();
 
-			return;
+			if(LOGV) Log.v(TAG, "runDaoMethod: " + op + ": " + t);
 		}
-		catch(IllegalArgumentException e)
-		{
-			ex = e;
-			// handled at end of function
-		}
-		catch(IllegalAccessException e)
-		{
-			ex = e;
-			// handled at end of function
-		}
-		catch(InvocationTargetException e)
-		{
-			ex = e;
-			// handled at end of function
-		}
-		catch(SecurityException e)
-		{
-			ex = e;
-			// handled at end of function
-		}
-		catch(NoSuchMethodException e)
+		catch(SQLException e)
 		{
-			ex = e;
-			// handled at end of function
+			throw new WrappedCheckedException("Failed to run DAO method " + op, e);
 		}
-		/*finally
+	}
+
+	private static Metrics.Histogram getDaoTimer(Class<?> clazz, Operation op)
+	{
+		synchronized(sDaoTimers)
 		{
-			--sPendingDaoOperations;
-		}*/
+			Metrics.Histogram[] timers = sDaoTimers.get(clazz);
+			if(timers == null)
+			{
+				timers = new Metrics.Histogram[OPERATIONS.length];
+				sDaoTimers.put(clazz, timers);
+			}
+
+			final int i = op.ordinal();
+			if(timers[i] == null)
+				timers[i] = Metrics.timer("db.dao." + clazz.getSimpleName() + "." + op);
 
-		throw new WrappedCheckedException("Failed to run DAO method " + methodName, ex);
+			return timers[i];
+		}
 	}
 
 	private static<T> List<T> queryForAll(Class<T> clazz)
@@ -526,12 +855,20 @@ public final class Database
 		}
 	}
 
-	private static synchronized void dispatchEventToListeners(String functionName, Entry entry, int flags)
+	private static synchronized void dispatchEventToListeners(final Operation op, final Entry entry, final int flags)
 	{
 		if((flags & FLAG_DONT_NOTIFY_LISTENERS) != 0)
 			return;
 
-		sEventMgr.post(functionName, EVENT_HANDLER_ARG_TYPES, entry, flags);
+		sEventMgr.post(OnChangeListener.class, new EventDispatcher.Event<OnChangeListener>() {
+
+			@Override
+			public void dispatchTo(OnChangeListener listener) {
+				op.dispatch(listener, entry, flags);
+			}
+		});
+
+		ListenerRegistry.dispatch(op, entry, flags);
 	}
 
 	/**
@@ -610,6 +947,4 @@ public final class Database
 	}
 
 	private Database() {}
-
-	private static final Class<?>[] EVENT_HANDLER_ARG_TYPES = { Entry.class, Integer.TYPE };
 }
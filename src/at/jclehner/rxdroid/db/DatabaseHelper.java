@@ -52,9 +52,16 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper
 	private static final String TAG = DatabaseHelper.class.getSimpleName();
 	private static final boolean LOGV = false;
 
-	public static final int DB_VERSION = 58;
+	public static final int DB_VERSION = 59;
 	public static final String DB_NAME = "db.sqlite";
 
+	/**
+	 * Starting with this version, <code>UpgradeHelper.upgradeDatabase()</code>
+	 * is run for every version passed during an upgrade, not only for the
+	 * oldest one.
+	 */
+	private static final int FIRST_CHAINED_UPGRADE_VERSION = 58;
+
 	public static class DatabaseError extends RuntimeException
 	{
 		private static final long serialVersionUID = 4326067582393937172L;
@@ -241,6 +248,12 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper
 					++updatedDataCount;
 			}
 
+			for(int v = Math.max(oldVersion + 1, FIRST_CHAINED_UPGRADE_VERSION); v < newVersion; ++v)
+			{
+				if(runUpgradeHelperMethodUpgradeDatabase(packageName + ".v" + v, cs))
+					++updatedDataCount;
+			}
+
 			DaoManager.clearCache();
 			DaoManager.clearDaoCache();
 
@@ -60,7 +60,7 @@ public class DoseEvent extends Entry
 	@DatabaseField(foreign = true)
 	private Drug drug;
 
-	@DatabaseField
+	@DatabaseField(persisterClass = InternedDatePersister.class)
 	private java.util.Date date;
 
 	@DatabaseField
@@ -69,23 +69,33 @@ public class DoseEvent extends Entry
 	@DatabaseField
 	private int doseTime;
 
-	@DatabaseField(persisterClass = FractionPersister.class)
+	@DatabaseField(persisterClass = PackedFractionPersister.class)
 	private Fraction dose;
 
 	@DatabaseField
 	private boolean wasAutoCreated = false;
 
+	// Maintained by Relations
+	/* package */ transient Drug mDrug;
+
 	public DoseEvent() {}
 
 	public DoseEvent(Drug drug, Date date, int doseTime, Fraction dose)
 	{
 		this.drug = drug;
+		this.mDrug = drug;
 		this.date = date;
 		this.timestamp = new Timestamp(System.currentTimeMillis());
 		this.doseTime = doseTime;
 		this.dose = dose;
 	}
 
+	/* package */ DoseEvent(Drug drug, Date date, Date timestamp, int doseTime, Fraction dose)
+	{
+		this(drug, date, doseTime, dose);
+		this.timestamp = timestamp;
+	}
+
 	/**
 	 * Constructs an empty intake.
 	 * <p>
@@ -101,7 +111,7 @@ public class DoseEvent extends Entry
 	}
 
 	public Drug getDrug() {
-		return Drug.find(drug.id);
+		return mDrug != null ? mDrug : Drug.find(drug.id);
 	}
 
 	public Fraction getDose() {
@@ -0,0 +1,213 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid.db;
+
+import java.util.Date;
+import java.util.List;
+
+import at.jclehner.rxdroid.Fraction;
+import at.jclehner.rxdroid.util.DateTime;
+
+/**
+ * Compact, column-oriented storage of a drug's older DoseEvents.
+ * <p>
+ * Each event is a row in a set of parallel primitive arrays, taking
+ * {@link #BYTES_PER_ROW} bytes, compared to well over 100 bytes for a
+ * DoseEvent object with its Date, Timestamp and Fraction members. Rows are
+ * sorted by date and dose time, like a drug's list of cached DoseEvents.
+ * <p>
+ * A store is never modified once it has been created, so it can be read from
+ * any thread; {@link #without(int)} returns a modified copy. DoseEvent objects
+ * are only created by {@link #materialize(int, Drug)}.
+ *
+ * @see Relations
+ * @author Joseph Lehner
+ */
+public final class DoseEventStore
+{
+	/**
+	 * The id, date, timestamp, packed dose, dose time and flags of an event.
+	 */
+	public static final int BYTES_PER_ROW = 4 + 8 + 8 + 8 + 1 + 1;
+
+	/* package */ static final DoseEventStore EMPTY = new DoseEventStore(0);
+
+	private static final int FLAG_AUTO_CREATED = 1;
+	private static final int FLAG_HAS_TIMESTAMP = 1 << 1;
+
+	private final int[] mIds;
+	private final long[] mDates;
+	private final long[] mTimestamps;
+	private final long[] mDoses;
+	private final byte[] mDoseTimes;
+	private final byte[] mFlags;
+
+	private DoseEventStore(int size)
+	{
+		mIds = new int[size];
+		mDates = new long[size];
+		mTimestamps = new long[size];
+		mDoses = new long[size];
+		mDoseTimes = new byte[size];
+		mFlags = new byte[size];
+	}
+
+	/**
+	 * Creates a store of the specified events, which must be sorted by date and dose time.
+	 */
+	public static DoseEventStore fromEvents(List<DoseEvent> events)
+	{
+		if(events.isEmpty())
+			return EMPTY;
+
+		final DoseEventStore store = new DoseEventStore(events.size());
+
+		for(int i = 0; i != events.size(); ++i)
+		{
+			final DoseEvent event = events.get(i);
+			final Date timestamp = event.getTimestamp();
+			final Fraction dose = event.getDose();
+
+			int flags = 0;
+
+			if(event.wasAutoCreated())
+				flags |= FLAG_AUTO_CREATED;
+			if(timestamp != null)
+				flags |= FLAG_HAS_TIMESTAMP;
+
+			store.mIds[i] = event.getId();
+			store.mDates[i] = event.getDate().getTime();
+			store.mTimestamps[i] = timestamp != null ? timestamp.getTime() : 0;
+			store.mDoses[i] = dose != null ? PackedFractionPersister.pack(dose) : 0;
+			store.mDoseTimes[i] = (byte) event.getDoseTime();
+			store.mFlags[i] = (byte) flags;
+		}
+
+		return store;
+	}
+
+	public int size() {
+		return mIds.length;
+	}
+
+	public int getId(int index) {
+		return mIds[index];
+	}
+
+	public long getDate(int index) {
+		return mDates[index];
+	}
+
+	public int getDoseTime(int index) {
+		return mDoseTimes[index];
+	}
+
+	public boolean isEmptyIntake(int index) {
+		// a numerator of zero, or no dose at all
+		return (mDoses[index] >> 32) == 0;
+	}
+
+	/**
+	 * Returns the index of the row with the specified id, or <code>-1</code>.
+	 */
+	public int indexOf(int id)
+	{
+		for(int i = 0; i != mIds.length; ++i)
+		{
+			if(mIds[i] == id)
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the first row whose date is not before <code>time</code>.
+	 */
+	public int lowerBound(long time)
+	{
+		int low = 0, high = mDates.length;
+
+		while(low < high)
+		{
+			final int mid = (low + high) >>> 1;
+			if(mDates[mid] < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	/**
+	 * Returns a copy of this store, without the specified row.
+	 */
+	public DoseEventStore without(int index)
+	{
+		if(index < 0 || index >= mIds.length)
+			throw new IndexOutOfBoundsException("index=" + index + ", size=" + mIds.length);
+
+		final DoseEventStore store = new DoseEventStore(mIds.length - 1);
+		final int tail = mIds.length - index - 1;
+
+		// Arrays.copyOf is not available on API level 8
+		System.arraycopy(mIds, 0, store.mIds, 0, index);
+		System.arraycopy(mIds, index + 1, store.mIds, index, tail);
+		System.arraycopy(mDates, 0, store.mDates, 0, index);
+		System.arraycopy(mDates, index + 1, store.mDates, index, tail);
+		System.arraycopy(mTimestamps, 0, store.mTimestamps, 0, index);
+		System.arraycopy(mTimestamps, index + 1, store.mTimestamps, index, tail);
+		System.arraycopy(mDoses, 0, store.mDoses, 0, index);
+		System.arraycopy(mDoses, index + 1, store.mDoses, index, tail);
+		System.arraycopy(mDoseTimes, 0, store.mDoseTimes, 0, index);
+		System.arraycopy(mDoseTimes, index + 1, store.mDoseTimes, index, tail);
+		System.arraycopy(mFlags, 0, store.mFlags, 0, index);
+		System.arraycopy(mFlags, index + 1, store.mFlags, index, tail);
+
+		return store;
+	}
+
+	/**
+	 * Creates a DoseEvent from the specified row.
+	 * <p>
+	 * The returned object is not cached; updating it using {@link Database#update(Entry)}
+	 * moves the event from this store to the cache.
+	 */
+	public DoseEvent materialize(int index, Drug drug)
+	{
+		final Date timestamp = (mFlags[index] & FLAG_HAS_TIMESTAMP) != 0 ?
+				new Date(mTimestamps[index]) : null;
+
+		final DoseEvent event = new DoseEvent(drug, DateTime.internDate(new Date(mDates[index])),
+				timestamp, mDoseTimes[index], PackedFractionPersister.unpack(mDoses[index]));
+
+		event.id = mIds[index];
+		event.setWasAutoCreated((mFlags[index] & FLAG_AUTO_CREATED) != 0);
+
+		return event;
+	}
+
+	public long getSizeInBytes() {
+		return (long) mIds.length * BYTES_PER_ROW;
+	}
+}
@@ -23,7 +23,7 @@ package at.jclehner.rxdroid.db;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -31,12 +31,12 @@ import java.util.NoSuchElementException;
 import android.util.Log;
 import at.jclehner.androidutils.LazyValue;
 import at.jclehner.rxdroid.BuildConfig;
+import at.jclehner.rxdroid.DoseTimeTimeline;
+import at.jclehner.rxdroid.DoseTotals;
 import at.jclehner.rxdroid.Fraction;
-import at.jclehner.rxdroid.util.CollectionUtils;
-import at.jclehner.rxdroid.util.Constants;
+import at.jclehner.rxdroid.RepeatRules;
 import at.jclehner.rxdroid.util.DateTime;
 import at.jclehner.rxdroid.util.Hasher;
-import at.jclehner.rxdroid.util.Keep;
 import at.jclehner.rxdroid.util.Util;
 
 import com.j256.ormlite.dao.ForeignCollection;
@@ -76,7 +76,7 @@ import com.j256.ormlite.table.DatabaseTable;
  *
  */
 @DatabaseTable(tableName = "drugs")
-public class Drug extends Entry implements Comparable<Drug>
+public class Drug extends Entry implements Comparable<Drug>, DoseTotals.Regimen
 {
 	@SuppressWarnings("unused")
 	private static final String TAG = Drug.class.getSimpleName();
@@ -114,18 +114,16 @@ public class Drug extends Entry implements Comparable<Drug>
 	 * }
 	 * </pre>
 	 */
-	public static final int TIME_INVALID = 4;
+	public static final int TIME_INVALID = DoseTimeTimeline.TIME_INVALID;
 
-	public static final int REPEAT_DAILY = 0;
-	public static final int REPEAT_EVERY_N_DAYS = 1;
-	public static final int REPEAT_WEEKDAYS = 2;
-	public static final int REPEAT_AS_NEEDED = 3;
-	public static final int REPEAT_21_7 = 4; // for oral contraceptives, 21 days on, 7 off
-	public static final int REPEAT_CUSTOM = 5;
-	public static final int REPEAT_INVALID = 6;
-
-	// TODO valid arguments: 6, 8, 12, with automapping to doseTimes
-	public static final int REPEAT_EVERY_N_HOURS = REPEAT_INVALID;
+	public static final int REPEAT_DAILY = RepeatRules.REPEAT_DAILY;
+	public static final int REPEAT_EVERY_N_DAYS = RepeatRules.REPEAT_EVERY_N_DAYS;
+	public static final int REPEAT_WEEKDAYS = RepeatRules.REPEAT_WEEKDAYS;
+	public static final int REPEAT_AS_NEEDED = RepeatRules.REPEAT_AS_NEEDED;
+	public static final int REPEAT_21_7 = RepeatRules.REPEAT_21_7;
+	public static final int REPEAT_CUSTOM = RepeatRules.REPEAT_CUSTOM;
+	public static final int REPEAT_INVALID = RepeatRules.REPEAT_INVALID;
+	public static final int REPEAT_EVERY_N_HOURS = RepeatRules.REPEAT_EVERY_N_HOURS;
 
 	public static final int REPEATARG_DAY_MON = 1;
 	public static final int REPEATARG_DAY_TUE = 1 << 1;
@@ -153,19 +151,19 @@ public class Drug extends Entry implements Comparable<Drug>
 	@DatabaseField
 	private int refillSize;
 
-	@DatabaseField(persisterClass = FractionPersister.class)
+	@DatabaseField(persisterClass = PackedFractionPersister.class)
 	private Fraction currentSupply = Fraction.ZERO;
 
-	@DatabaseField(persisterClass = FractionPersister.class)
+	@DatabaseField(persisterClass = PackedFractionPersister.class)
 	private Fraction doseMorning = Fraction.ZERO;
 
-	@DatabaseField(persisterClass = FractionPersister.class)
+	@DatabaseField(persisterClass = PackedFractionPersister.class)
 	private Fraction doseNoon = Fraction.ZERO;
 
-	@DatabaseField(persisterClass = FractionPersister.class)
+	@DatabaseField(persisterClass = PackedFractionPersister.class)
 	private Fraction doseEvening = Fraction.ZERO;
 
-	@DatabaseField(persisterClass = FractionPersister.class)
+	@DatabaseField(persisterClass = PackedFractionPersister.class)
 	private Fraction doseNight = Fraction.ZERO;
 
 	@DatabaseField
@@ -223,57 +221,10 @@ public class Drug extends Entry implements Comparable<Drug>
 
 	public boolean hasDoseOnDate(Date date)
 	{
-		if(repeatOrigin != null)
-		{
-			switch(repeatMode)
-			{
-				case REPEAT_EVERY_N_DAYS:
-				case REPEAT_EVERY_N_HOURS:
-				case REPEAT_21_7:
-				{
-					if(date.before(repeatOrigin))
-						return false;
-				}
-
-				default:
-					;
-			}
-		}
-
-		if(lastScheduleUpdateDate != null)
-		{
-			Date min = lastScheduleUpdateDate;
-
-//			if(repeatOrigin != null)
-//				min = DateTime.min(min, repeatOrigin);
-
-			if(date.before(min))
-				return false;
-		}
-
-		switch(repeatMode)
-		{
-			case REPEAT_DAILY:
-			case REPEAT_AS_NEEDED:
-				return true;
-
-			case REPEAT_EVERY_N_DAYS:
-				return (DateTime.diffDays(date, repeatOrigin) % repeatArg) == 0;
-
-			case REPEAT_WEEKDAYS:
-				final Calendar cal = DateTime.calendarFromDate(date);
-				return hasDoseOnWeekday(cal.get(Calendar.DAY_OF_WEEK));
-
-			case REPEAT_21_7:
-				final long diff = Math.abs(DateTime.diffDays(date, repeatOrigin)) % 28;
-				return diff < 21;
-
-			case REPEAT_CUSTOM:
-				return Schedules.hasDoseOnDate(date, mSchedules.get());
+		if(!RepeatRules.hasDoseOnDate(date, repeatMode, repeatArg, repeatOrigin, lastScheduleUpdateDate))
+			return false;
 
-			default:
-				throw new IllegalStateException("Unknown repeat mode");
-		}
+		return repeatMode != REPEAT_CUSTOM || Schedules.hasDoseOnDate(date, mSchedules.get());
 	}
 
 	public String getName() {
@@ -549,12 +500,53 @@ public class Drug extends Entry implements Comparable<Drug>
 		return mSchedules.get();
 	}
 
-	public void setPatient(Patient patient) {
+	/**
+	 * Returns this drug's cached DoseEvents, sorted by date and dose time.
+	 * <p>
+	 * The returned list is a snapshot that is never modified, so it may be
+	 * used without locking; it must not be modified by the caller either.
+	 */
+	/* package */ List<DoseEvent> getDoseEvents()
+	{
+		final List<DoseEvent> events = mDoseEvents;
+		if(events != null)
+			return events;
+
+		// this instance is not (or no longer) the cached one
+		final Drug cached = find(id);
+		if(cached != null && cached != this)
+			return cached.getDoseEvents();
+
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Returns this drug's DoseEvents that are not cached, but kept in a DoseEventStore.
+	 *
+	 * @see Relations#HISTORY_DAYS
+	 */
+	public DoseEventStore getDoseEventHistory()
+	{
+		final DoseEventStore history = mHistory;
+		if(history != null)
+			return history;
+
+		// this instance is not (or no longer) the cached one
+		final Drug cached = find(id);
+		if(cached != null && cached != this)
+			return cached.getDoseEventHistory();
+
+		return DoseEventStore.EMPTY;
+	}
+
+	public void setPatient(Patient patient)
+	{
 		this.patient = patient;
+		mPatient = patient;
 	}
 
 	public Patient getPatient() {
-		return Database.find(Patient.class, getPatientId());
+		return mPatient != null ? mPatient : Database.find(Patient.class, getPatientId());
 	}
 
 	public int getPatientId() {
@@ -680,13 +672,9 @@ public class Drug extends Entry implements Comparable<Drug>
 	 */
 	public static Drug find(int drugId)
 	{
-		for(Drug drug : Database.getCached(Drug.class))
-		{
-			if(drug.getId() == drugId)
-				return drug;
-		}
-
-		return null;
+		// ensures that the cache has been loaded
+		Database.getCached(Drug.class);
+		return Relations.findDrug(drugId);
 	}
 
 	/**
@@ -741,18 +729,11 @@ public class Drug extends Entry implements Comparable<Drug>
 		return members;
 	}
 
-	/* package */ boolean hasDoseOnWeekday(int calWeekday)
-	{
-		if(repeatMode != REPEAT_WEEKDAYS)
-			throw new IllegalStateException("repeatMode != FREQ_WEEKDAYS");
-
-		// first, translate Calendar's weekday representation to our own
-		final int weekday = CollectionUtils.indexOf(calWeekday, Constants.WEEK_DAYS);
-		if(weekday == -1)
-			throw new IllegalArgumentException("Argument " + calWeekday + " does not map to a valid weekday");
-
-		return (repeatArg & 1 << weekday) != 0;
-	}
+	// Maintained by Relations
+	/* package */ transient Patient mPatient;
+	/* package */ transient volatile List<DoseEvent> mDoseEvents;
+	/* package */ transient volatile DoseEventStore mHistory;
+	/* package */ transient int mPartitionId;
 
 	private final LazyValue<List<Schedule>> mSchedules = new LazyValue<List<Schedule>>() {
 
@@ -768,31 +749,35 @@ public class Drug extends Entry implements Comparable<Drug>
 
 	};
 
-	@Keep
+	/**
+	 * Statements run by {@link Database} before deleting a drug, in the same transaction.
+	 */
+	/* package */ static final String[] DELETE_CASCADE = {
+		"DELETE FROM `intake` WHERE `drug_id` = ?",
+		"DELETE FROM `schedulepart` WHERE `owner_id` IN (SELECT `id` FROM `schedules` WHERE `owner_id` = ?)",
+		"DELETE FROM `schedules` WHERE `owner_id` = ?"
+	};
+
 	/* package */ static final Callback<Drug> CALLBACK_DELETED = new Callback<Drug>() {
 
 		@Override
 		public void call(Drug drug)
 		{
-			for(DoseEvent intake : Database.getAll(DoseEvent.class))
-			{
-				if(intake.getDrug() == null || intake.getDrugId() == drug.id)
-					Database.delete(intake, Database.FLAG_DONT_NOTIFY_LISTENERS);
-			}
+			// The database rows have been taken care of by DELETE_CASCADE,
+			// so we only have to purge the cache.
 
-			for(Schedule schedule : drug.mSchedules.get())
-				Database.delete(schedule, Database.FLAG_DONT_NOTIFY_LISTENERS);
+			Relations.purgeDoseEvents(drug);
 
-		}
-	};
+			final List<Schedule> schedules = drug.mSchedules.get();
+			final List<Integer> scheduleIds = new ArrayList<Integer>(schedules.size());
 
-	@Keep
-	/* package */ static final Callback<Drug> CALLBACK_ALL_CACHED = new Callback<Drug>() {
-
-		@Override
-		public void call(Drug entry)
-		{
+			for(Schedule schedule : schedules)
+			{
+				Schedule.CALLBACK_DELETED.call(schedule);
+				scheduleIds.add(schedule.id);
+			}
 
+			Database.purgeCached(Schedule.class, scheduleIds);
 		}
 	};
 }
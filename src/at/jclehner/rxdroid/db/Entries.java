@@ -25,14 +25,18 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.TimeZone;
 
+import at.jclehner.rxdroid.DoseTotals;
 import at.jclehner.rxdroid.Fraction;
-import at.jclehner.rxdroid.Fraction.MutableFraction;
+import at.jclehner.rxdroid.FractionAccumulator;
 import at.jclehner.rxdroid.Settings;
 import at.jclehner.rxdroid.util.Constants;
+import at.jclehner.rxdroid.util.DateMath;
 import at.jclehner.rxdroid.util.DateTime;
 import at.jclehner.rxdroid.util.Util;
 import at.jclehner.rxdroid.util.WrappedCheckedException;
@@ -56,6 +60,13 @@ public final class Entries
 
 	public static List<Drug> getAllDrugs(int patientId)
 	{
+		if(Database.USE_CUSTOM_CACHE && patientId != 0)
+		{
+			// ensures that the cache has been loaded
+			Database.getCached(Drug.class);
+			return Relations.getDrugs(patientId);
+		}
+
 		final List<Drug> list = new ArrayList<Drug>();
 
 		for(Drug drug : Database.getCached(Drug.class))
@@ -167,7 +178,7 @@ public final class Entries
 		if(date == null)
 			date = DateTime.today();
 
-		final MutableFraction doseLeftOnDate = new MutableFraction();
+		final FractionAccumulator doseLeftOnDate = new FractionAccumulator();
 
 		if(date.equals(DateTime.today()) && drug.hasDoseOnDate(date))
 		{
@@ -179,7 +190,7 @@ public final class Entries
 		}
 
 		final double supply = drug.getCurrentSupply().doubleValue() - doseLeftOnDate.doubleValue();
-		return (int) (Math.floor(supply / getDailyDose(drug) * getSupplyCorrectionFactor(drug)));
+		return DoseTotals.getSupplyDaysLeft(drug, supply);
 	}
 
 	public static<T extends Entry> T findInCollectionById(Collection<T> collection, int id)
@@ -196,6 +207,9 @@ public final class Entries
 	/**
 	 * Find all events meeting the specified criteria.
 	 * <p>
+	 * Events from the drug's history are materialized, so they are not
+	 * the cached instances.
+	 *
 	 * @param drug The drug to search for (based on its database ID).
 	 * @param date The intake's date. Can be <code>null</code>.
 	 * @param doseTime The intake's doseTime. Can be <code>null</code>.
@@ -206,12 +220,44 @@ public final class Entries
 		{
 			final List<DoseEvent> events = new LinkedList<DoseEvent>();
 
-			for(DoseEvent intake : Database.getCached(DoseEvent.class))
+			if(drug == null)
 			{
+				for(DoseEvent intake : Database.getCached(DoseEvent.class))
+				{
+					if(DoseEvent.has(intake, drug, date, doseTime))
+						events.add(intake);
+				}
+
+				for(Drug d : Database.getCached(Drug.class))
+					scanHistory(d, date, doseTime, events);
+
+				return events;
+			}
+
+			final List<DoseEvent> candidates = drug.getDoseEvents();
+			int begin = 0, end = candidates.size();
+
+			if(date != null)
+			{
+				// The events are sorted by date, so we only have to check those within
+				// a day (plus a DST hour) of the requested one.
+				final long margin = Constants.MILLIS_PER_DAY + Constants.MILLIS_PER_DAY / 24;
+				begin = Relations.lowerBound(candidates, date.getTime() - margin);
+				end = Relations.lowerBound(candidates, date.getTime() + margin);
+			}
+
+			for(int i = begin; i < end; ++i)
+			{
+				final DoseEvent intake = candidates.get(i);
 				if(DoseEvent.has(intake, drug, date, doseTime))
 					events.add(intake);
 			}
 
+			final int cachedCount = events.size();
+
+			if(scanHistory(drug, date, doseTime, events) != 0 && cachedCount != 0)
+				Collections.sort(events, Relations.EVENT_COMPARATOR);
+
 			return events;
 		}
 		else
@@ -239,10 +285,91 @@ public final class Entries
 		}
 	}
 
-	public static int countDoseEvents(Drug drug, Date date, Integer doseTime) {
+	/**
+	 * Returns the DoseEvents in the drug's history that are older than the specified date.
+	 */
+	public static List<DoseEvent> findDoseEventHistoryBefore(Drug drug, Date date)
+	{
+		final DoseEventStore history = drug.getDoseEventHistory();
+		final int end = history.lowerBound(date.getTime());
+		final List<DoseEvent> events = new ArrayList<DoseEvent>(end);
+
+		for(int i = 0; i != end; ++i)
+			events.add(history.materialize(i, drug));
+
+		return events;
+	}
+
+	public static int countDoseEvents(Drug drug, Date date, Integer doseTime)
+	{
+		if(Database.USE_CUSTOM_CACHE && drug != null)
+		{
+			final List<DoseEvent> candidates = drug.getDoseEvents();
+			int begin = 0, end = candidates.size(), count = 0;
+
+			if(date != null)
+			{
+				final long margin = Constants.MILLIS_PER_DAY + Constants.MILLIS_PER_DAY / 24;
+				begin = Relations.lowerBound(candidates, date.getTime() - margin);
+				end = Relations.lowerBound(candidates, date.getTime() + margin);
+			}
+
+			for(int i = begin; i < end; ++i)
+			{
+				if(DoseEvent.has(candidates.get(i), drug, date, doseTime))
+					++count;
+			}
+
+			// don't materialize events from the history just to count them
+			return count + scanHistory(drug, date, doseTime, null);
+		}
+
 		return findDoseEvents(drug, date, doseTime).size();
 	}
 
+	/**
+	 * Returns the dose times of all dose events of the drug on the given date, as a bit mask.
+	 * <p>
+	 * Bit <code>n</code> is set if there is at least one dose event for dose time <code>n</code>.
+	 * This is cheaper than calling {@link #countDoseEvents(Drug, Date, Integer)} for each dose time.
+	 */
+	public static int getDoseTimesWithEvents(Drug drug, Date date)
+	{
+		int mask = 0;
+
+		if(Database.USE_CUSTOM_CACHE)
+		{
+			final List<DoseEvent> candidates = drug.getDoseEvents();
+			final long margin = Constants.MILLIS_PER_DAY + Constants.MILLIS_PER_DAY / 24;
+			final int end = Relations.lowerBound(candidates, date.getTime() + margin);
+
+			for(int i = Relations.lowerBound(candidates, date.getTime() - margin); i < end; ++i)
+			{
+				final DoseEvent event = candidates.get(i);
+				if(DoseEvent.has(event, drug, date, null))
+					mask |= 1 << event.getDoseTime();
+			}
+
+			final DoseEventStore history = drug.getDoseEventHistory();
+			final TimeZone tz = TimeZone.getDefault();
+			final int day = DateMath.toEpochDay(tz, date.getTime());
+			final int historyEnd = history.lowerBound(date.getTime() + margin);
+
+			for(int i = history.lowerBound(date.getTime() - margin); i < historyEnd; ++i)
+			{
+				if(DateMath.toEpochDay(tz, history.getDate(i)) == day)
+					mask |= 1 << history.getDoseTime(i);
+			}
+		}
+		else
+		{
+			for(DoseEvent event : findDoseEvents(drug, date, null))
+				mask |= 1 << event.getDoseTime();
+		}
+
+		return mask;
+	}
+
 	public static boolean hasAllDoseEvents(Drug drug, Date date)
 	{
 		if(!drug.hasDoseOnDate(date))
@@ -268,7 +395,7 @@ public final class Entries
 
 	public static Fraction getTotalDoseInTimePeriod_dumb(Drug drug, Date begin, Date end, boolean stopIfSupplyIsEmpty)
 	{
-		final MutableFraction totalDose = new MutableFraction();
+		final FractionAccumulator totalDose = new FractionAccumulator();
 
 		final Calendar cal = DateTime.calendarFromDate(begin);
 		cal.add(Calendar.DAY_OF_MONTH, 1);
@@ -284,108 +411,11 @@ public final class Entries
 			cal.add(Calendar.DAY_OF_MONTH, 1);
 		}
 
-		return totalDose;
+		return totalDose.toFraction();
 	}
 
-	public static Fraction getTotalDoseInTimePeriod_smart(Drug drug, Date begin, Date end)
-	{
-		final int repeatMode = drug.getRepeatMode();
-		final MutableFraction baseDose = new MutableFraction();
-		int doseMultiplier = 0;
-
-		if(repeatMode == Drug.REPEAT_AS_NEEDED)
-			return Fraction.ZERO;
-		if(repeatMode == Drug.REPEAT_DAILY)
-		{
-			getTotalDose(drug, null, baseDose);
-			doseMultiplier = (int) DateTime.diffDays(begin, end);
-		}
-		else if(repeatMode == Drug.REPEAT_EVERY_N_DAYS)
-		{
-			getTotalDose(drug, null, baseDose);
-
-			final long arg = drug.getRepeatArg();
-			final long daysInPeriod = DateTime.diffDays(begin, end);
-
-			if(drug.hasDoseOnDate(begin) || drug.hasDoseOnDate(end))
-				doseMultiplier = 1;
-
-			doseMultiplier += daysInPeriod / arg;
-		}
-		else if(repeatMode == Drug.REPEAT_WEEKDAYS)
-		{
-			getTotalDose(drug, null, new MutableFraction());
-
-			final Calendar cal = DateTime.calendarFromDate(begin);
-			int weekDay;
-
-			// Manually check the days before the first Monday
-			while((weekDay = cal.get(Calendar.DAY_OF_WEEK)) != Calendar.MONDAY)
-			{
-				if(drug.hasDoseOnWeekday(weekDay))
-					++doseMultiplier;
-
-				cal.add(Calendar.DAY_OF_WEEK, 1);
-			}
-
-			final Date firstMonday = cal.getTime();
-
-			// Now check the days after the last Sunday
-			cal.setTime(end);
-
-			while((weekDay = cal.get(Calendar.DAY_OF_WEEK)) != Calendar.MONDAY)
-			{
-				if(drug.hasDoseOnWeekday(weekDay))
-					++doseMultiplier;
-
-				cal.add(Calendar.DAY_OF_WEEK, -1);
-			}
-
-			final Date lastSunday = cal.getTime();
-
-			// Now comes the easy part: dealing with the full week(s) in between
-			final long days = DateTime.diffDays(firstMonday, lastSunday);
-			if(days > 7)
-			{
-				if(days % 7 != 0)
-					throw new IllegalStateException("Not a full week: " + firstMonday + " - " + lastSunday);
-
-				doseMultiplier += days / 7 * Long.bitCount(drug.getRepeatArg());
-			}
-		}
-		else if(repeatMode == Drug.REPEAT_21_7)
-		{
-			getTotalDose(drug, null, baseDose);
-
-			final Date origin = drug.getRepeatOrigin();
-
-			long daysInTimePeriod = DateTime.diffDays(begin, end);
-			final long daysFromOriginToBegin = DateTime.diffDays(origin, begin);
-			final long daysFromOriginToEnd = DateTime.diffDays(origin, end);
-
-			long index = daysFromOriginToBegin % 28;
-			if(index < 21)
-			{
-				final long days = 21 - index;
-				daysInTimePeriod -= days + 7;
-				doseMultiplier += days;
-			}
-
-			index = daysFromOriginToEnd % 28;
-			if(index < 21)
-			{
-				final long days = 21 - index;
-				daysInTimePeriod -= days + 7;
-				doseMultiplier += days;
-			}
-
-			if(daysInTimePeriod > 28)
-				doseMultiplier += (daysInTimePeriod * 3) / 4;
-		}
-		else
-			throw new UnsupportedOperationException();
-
-		return baseDose.times(doseMultiplier);
+	public static Fraction getTotalDoseInTimePeriod_smart(Drug drug, Date begin, Date end) {
+		return DoseTotals.getTotalDoseInTimePeriod(drug, begin, end);
 	}
 
 	public static boolean isDateAfterLastScheduleUpdateOfDrug(Date date, Drug drug)
@@ -402,7 +432,7 @@ public final class Entries
 		if(!drug.isActive() || drug.getRefillSize() == 0 || drug.hasNoDoses())
 			return false;
 
-		final int minSupplyDays = Settings.getStringAsInt(Settings.Keys.LOW_SUPPLY_THRESHOLD, 10);
+		final int minSupplyDays = Settings.snapshot().lowSupplyThreshold;
 		if(minSupplyDays == 0)
 			return false;
 
@@ -416,7 +446,7 @@ public final class Entries
 		if(name == null || name.length() == 0)
 			return "<???>";
 
-		if(Settings.getBoolean(Settings.Keys.SCRAMBLE_NAMES, false))
+		if(Settings.snapshot().scrambleNames)
 		{
 			// We rot13 word by word and ignore those beginning with
 			// a digit, so things like 10mg won't get converted to 10zt.
@@ -443,54 +473,44 @@ public final class Entries
 		return name;
 	}
 
-	private static void getTotalDose(Drug drug, Date date, MutableFraction outTotalDose)
-	{
-		if(date != null && !drug.hasDoseOnDate(date))
-			return;
+	/* package */ static void getTotalDose(Drug drug, Date date, FractionAccumulator outTotalDose) {
+		DoseTotals.addTotalDose(drug, date, outTotalDose);
+	}
 
-		final int repeatMode = drug.getRepeatMode();
-		if(repeatMode == Drug.REPEAT_AS_NEEDED)
-			return;
+	/**
+	 * Counts the events in the drug's history that match the date and dose time,
+	 * both of which may be <code>null</code>. If <code>out</code> is not <code>null</code>,
+	 * the matching events are materialized and added to it.
+	 */
+	private static int scanHistory(Drug drug, Date date, Integer doseTime, List<DoseEvent> out)
+	{
+		final DoseEventStore history = drug.getDoseEventHistory();
+		final TimeZone tz = TimeZone.getDefault();
+		int begin = 0, end = history.size(), day = 0, count = 0;
 
-		for(int doseTime : Constants.DOSE_TIMES)
+		if(date != null)
 		{
-			final Fraction dose;
-
-			if(date == null)
-				dose = drug.getDose(doseTime);
-			else
-				dose = drug.getDose(doseTime, date);
-
-			outTotalDose.add(dose);
+			final long margin = Constants.MILLIS_PER_DAY + Constants.MILLIS_PER_DAY / 24;
+			begin = history.lowerBound(date.getTime() - margin);
+			end = history.lowerBound(date.getTime() + margin);
+			day = DateMath.toEpochDay(tz, date.getTime());
 		}
 
-		return;
-	}
-
-	private static double getDailyDose(Drug drug)
-	{
-		double dailyDose = 0.0;
-		for(int doseTime : Constants.DOSE_TIMES)
-			dailyDose += drug.getDose(doseTime).doubleValue();
-		return dailyDose;
-	}
-
-	private static double getSupplyCorrectionFactor(Drug drug)
-	{
-		switch(drug.getRepeatMode())
+		for(int i = begin; i < end; ++i)
 		{
-			case Drug.REPEAT_EVERY_N_DAYS:
-				return drug.getRepeatArg();
+			if(doseTime != null && doseTime != history.getDoseTime(i))
+				continue;
 
-			case Drug.REPEAT_WEEKDAYS:
-				return 7.0 / Long.bitCount(drug.getRepeatArg());
+			if(date != null && DateMath.toEpochDay(tz, history.getDate(i)) != day)
+				continue;
 
-			case Drug.REPEAT_21_7:
-				return 1.0 / 0.75;
+			if(out != null)
+				out.add(history.materialize(i, drug));
 
-			default:
-				return 1.0;
+			++count;
 		}
+
+		return count;
 	}
 
 	private Entries() {}
@@ -35,12 +35,9 @@ import com.j256.ormlite.field.DatabaseField;
  * declaring an ID field and to force descendants to declare {@link #equals(Object)} and
  * {@link #hashCode()}.
  * <p>
- * Also note that you may define hooks for descendant classes that are called when
- * the database is modified. A hook has the name HOOK_&lt;db action name&gt; (see
- * Drug docs for valid action names). The following is a sample hook implementation:
- *
- *
- * @see
+ * Also note that descendant classes may define {@link Callback}s that are called
+ * after the database cache has been modified, but before any listeners are notified.
+ * These must be registered in {@link Database}'s static initializer.
  *
  * @author Joseph Lehner
  *
@@ -29,6 +29,15 @@ import com.j256.ormlite.field.FieldType;
 import com.j256.ormlite.field.SqlType;
 import com.j256.ormlite.field.types.StringType;
 
+/**
+ * Legacy persister, storing a {@link Fraction} as its string representation.
+ * <p>
+ * As of database version 59, current entries use {@link PackedFractionPersister};
+ * this class is only used by the <code>Old*</code> classes of previous
+ * database versions.
+ *
+ * @author Joseph Lehner
+ */
 public class FractionPersister extends StringType
 {
 	private static FractionPersister sInstance = new FractionPersister();
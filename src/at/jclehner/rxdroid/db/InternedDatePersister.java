@@ -0,0 +1,58 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid.db;
+
+import java.sql.SQLException;
+import java.util.Date;
+
+import at.jclehner.rxdroid.util.DateTime;
+
+import com.j256.ormlite.field.FieldType;
+import com.j256.ormlite.field.SqlType;
+import com.j256.ormlite.field.types.DateStringType;
+
+/**
+ * Stores dates just like ORMLite's default persister, but returns interned instances.
+ * <p>
+ * ORMLite stores <code>java.util.Date</code> fields as strings on Android, so this
+ * class extends {@link DateStringType}, leaving the database schema unchanged.
+ *
+ * @see DateTime#internDate(Date)
+ * @author Joseph Lehner
+ */
+public class InternedDatePersister extends DateStringType
+{
+	private static final InternedDatePersister sInstance = new InternedDatePersister();
+
+	public static InternedDatePersister getSingleton() {
+		return sInstance;
+	}
+
+	private InternedDatePersister() {
+		super(SqlType.STRING, new Class<?>[0]);
+	}
+
+	@Override
+	public Object sqlArgToJava(FieldType fieldType, Object sqlArg, int columnPos) throws SQLException {
+		return DateTime.internDate((Date) super.sqlArgToJava(fieldType, sqlArg, columnPos));
+	}
+}
@@ -0,0 +1,246 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid.db;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import android.util.Log;
+import at.jclehner.rxdroid.BuildConfig;
+import at.jclehner.rxdroid.db.Database.OnChangeListener;
+import at.jclehner.rxdroid.util.DateTime;
+import at.jclehner.rxdroid.util.Metrics;
+
+/**
+ * Routes database changes to listeners interested in a specific drug.
+ * <p>
+ * Unlike listeners registered using {@link Database#registerEventListener(OnChangeListener)},
+ * which are notified of every change, listeners registered here only receive
+ * changes to their drug, and to that drug's dose events on their date and
+ * dose time. Registering and unregistering are constant-time operations.
+ * <p>
+ * Listeners are only weakly referenced. A listener that is garbage collected
+ * while still registered was never unregistered, which is logged as a leak,
+ * along with the call that registered it in debug builds.
+ *
+ * @author Joseph Lehner
+ */
+public final class ListenerRegistry
+{
+	private static final String TAG = ListenerRegistry.class.getSimpleName();
+	private static final boolean LOGV = BuildConfig.DEBUG;
+
+	/**
+	 * Pass as <code>date</code> to receive dose events of all dates.
+	 */
+	public static final Date ANY_DATE = null;
+
+	/**
+	 * Pass as <code>doseTime</code> to receive dose events of all dose times.
+	 */
+	public static final int ANY_DOSE_TIME = -1;
+
+	private static final int ANY_EPOCH_DAY = 0xffffff;
+
+	private static final Metrics.Histogram METRIC_FANOUT = Metrics.histogram("listeners.dispatch.fanout");
+
+	private static final class Registration extends WeakReference<OnChangeListener>
+	{
+		final int drugId;
+		final long key;
+		final Throwable origin;
+
+		Registration(OnChangeListener listener, int drugId, long key)
+		{
+			super(listener, sQueue);
+
+			this.drugId = drugId;
+			this.key = key;
+			this.origin = LOGV ? new Throwable("Registered here") : null;
+		}
+	}
+
+	private static final ReferenceQueue<OnChangeListener> sQueue = new ReferenceQueue<OnChangeListener>();
+
+	private static final WeakHashMap<OnChangeListener, Registration> sRegistrations =
+			new WeakHashMap<OnChangeListener, Registration>();
+
+	private static final HashMap<Long, Set<Registration>> sByKey = new HashMap<Long, Set<Registration>>();
+	private static final HashMap<Integer, Set<Registration>> sByDrug = new HashMap<Integer, Set<Registration>>();
+
+	private static int sLeakCount = 0;
+
+	/**
+	 * Registers a listener for the specified drug.
+	 * <p>
+	 * If the listener is already registered, its previous registration is replaced.
+	 *
+	 * @param date The date of dose events to receive, or {@link #ANY_DATE}.
+	 * @param doseTime The dose time of dose events to receive, or {@link #ANY_DOSE_TIME}.
+	 */
+	public static synchronized void register(OnChangeListener listener, int drugId, Date date, int doseTime)
+	{
+		final long key = getKey(drugId, date != ANY_DATE ? DateTime.toEpochDay(date) : ANY_EPOCH_DAY, doseTime);
+
+		Registration reg = sRegistrations.get(listener);
+		if(reg != null)
+		{
+			if(reg.key == key)
+				return;
+
+			remove(reg);
+		}
+
+		expungeLeaks();
+
+		reg = new Registration(listener, drugId, key);
+		sRegistrations.put(listener, reg);
+		add(sByKey, key, reg);
+		add(sByDrug, drugId, reg);
+	}
+
+	public static synchronized void unregister(OnChangeListener listener)
+	{
+		final Registration reg = sRegistrations.remove(listener);
+		if(reg != null)
+			remove(reg);
+	}
+
+	/**
+	 * Returns the number of registered listeners.
+	 */
+	public static synchronized int getListenerCount()
+	{
+		expungeLeaks();
+		return sRegistrations.size();
+	}
+
+	/**
+	 * Returns the number of listeners that were garbage collected without being unregistered.
+	 */
+	public static synchronized int getLeakCount()
+	{
+		expungeLeaks();
+		return sLeakCount;
+	}
+
+	/* package */ static void dispatch(Database.Operation op, Entry entry, int flags)
+	{
+		final List<OnChangeListener> listeners = new ArrayList<OnChangeListener>();
+
+		synchronized(ListenerRegistry.class)
+		{
+			expungeLeaks();
+
+			if(entry instanceof Drug)
+				collect(sByDrug.get(entry.getId()), listeners);
+			else if(entry instanceof DoseEvent)
+			{
+				final DoseEvent event = (DoseEvent) entry;
+				final int drugId = event.getDrugId();
+				final int epochDay = DateTime.toEpochDay(event.getDate());
+
+				collect(sByKey.get(getKey(drugId, epochDay, event.getDoseTime())), listeners);
+				collect(sByKey.get(getKey(drugId, epochDay, ANY_DOSE_TIME)), listeners);
+				collect(sByKey.get(getKey(drugId, ANY_EPOCH_DAY, ANY_DOSE_TIME)), listeners);
+			}
+			else
+				return;
+		}
+
+		// Listeners may unregister from within their callbacks, so they're
+		// called outside of the lock.
+		for(OnChangeListener listener : listeners)
+			op.dispatch(listener, entry, flags);
+
+		METRIC_FANOUT.record(listeners.size());
+	}
+
+	private static long getKey(int drugId, int epochDay, int doseTime) {
+		return ((long) drugId << 32) | ((epochDay & 0xffffffL) << 8) | (doseTime & 0xff);
+	}
+
+	private static void collect(Set<Registration> regs, List<OnChangeListener> out)
+	{
+		if(regs == null)
+			return;
+
+		for(Registration reg : regs)
+		{
+			final OnChangeListener listener = reg.get();
+			if(listener != null)
+				out.add(listener);
+		}
+	}
+
+	private static void expungeLeaks()
+	{
+		Registration reg;
+		while((reg = (Registration) sQueue.poll()) != null)
+		{
+			// WeakHashMap has already dropped the collected listener itself, so
+			// a registration that is still indexed was never unregistered.
+			final Set<Registration> regs = sByDrug.get(reg.drugId);
+			if(regs == null || !regs.contains(reg))
+				continue;
+
+			remove(reg);
+			++sLeakCount;
+
+			Log.w(TAG, "Listener for drug " + reg.drugId + " was never unregistered", reg.origin);
+		}
+	}
+
+	private static <K> void add(HashMap<K, Set<Registration>> map, K key, Registration reg)
+	{
+		Set<Registration> regs = map.get(key);
+		if(regs == null)
+		{
+			regs = new HashSet<Registration>();
+			map.put(key, regs);
+		}
+
+		regs.add(reg);
+	}
+
+	private static void remove(Registration reg)
+	{
+		remove(sByKey, reg.key, reg);
+		remove(sByDrug, reg.drugId, reg);
+	}
+
+	private static <K> void remove(HashMap<K, Set<Registration>> map, K key, Registration reg)
+	{
+		final Set<Registration> regs = map.get(key);
+		if(regs != null && regs.remove(reg) && regs.isEmpty())
+			map.remove(key);
+	}
+
+	private ListenerRegistry() {}
+}
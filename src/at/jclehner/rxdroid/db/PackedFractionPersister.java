@@ -0,0 +1,98 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid.db;
+
+import java.sql.SQLException;
+
+import at.jclehner.rxdroid.Fraction;
+
+import com.j256.ormlite.field.FieldType;
+import com.j256.ormlite.field.SqlType;
+import com.j256.ormlite.field.types.LongObjectType;
+import com.j256.ormlite.support.DatabaseResults;
+
+/**
+ * Stores a {@link Fraction} in a single INTEGER column.
+ * <p>
+ * The numerator occupies the upper, the denominator the lower 32 bits.
+ * Since the denominator of a valid fraction is never zero, a stored value
+ * of <code>0</code> is treated as {@link Fraction#ZERO}.
+ *
+ * @see FractionPersister
+ * @author Joseph Lehner
+ */
+public class PackedFractionPersister extends LongObjectType
+{
+	private static final PackedFractionPersister sInstance = new PackedFractionPersister();
+
+	public static PackedFractionPersister getSingleton() {
+		return sInstance;
+	}
+
+	private PackedFractionPersister() {
+		super(SqlType.LONG, new Class<?>[] { Fraction.class });
+	}
+
+	public static long pack(Fraction fraction) {
+		return (long) fraction.numerator() << 32 | (fraction.denominator() & 0xffffffffL);
+	}
+
+	public static Fraction unpack(long packed)
+	{
+		final int denominator = (int) packed;
+		if(denominator == 0)
+			return Fraction.ZERO;
+
+		return Fraction.valueOf((int) (packed >> 32), denominator);
+	}
+
+	@Override
+	public Object javaToSqlArg(FieldType fieldType, Object javaObject) throws SQLException {
+		return pack((Fraction) javaObject);
+	}
+
+	@Override
+	public Object sqlArgToJava(FieldType fieldType, Object sqlArg, int columnPos) throws SQLException {
+		return unpack((Long) sqlArg);
+	}
+
+	@Override
+	public Object resultToSqlArg(FieldType fieldType, DatabaseResults results, int columnPos) throws SQLException
+	{
+		final long packed = results.getLong(columnPos);
+		return results.wasNull(columnPos) ? null : packed;
+	}
+
+	@Override
+	public Object resultStringToJava(FieldType fieldType, String stringValue, int columnPos) throws SQLException
+	{
+		if(stringValue == null || stringValue.length() == 0)
+			return null;
+
+		return unpack(Long.parseLong(stringValue));
+	}
+
+	@Override
+	public boolean isValidGeneratedType() {
+		return false;
+	}
+}
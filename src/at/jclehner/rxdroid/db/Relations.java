@@ -0,0 +1,420 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid.db;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import android.util.Log;
+import at.jclehner.rxdroid.util.DateTime;
+import at.jclehner.rxdroid.util.Metrics;
+
+/**
+ * Keeps the relations between cached entries resolved.
+ * <p>
+ * Each cached DoseEvent references its cached Drug, each Drug its cached Patient,
+ * and each Drug holds a list of its DoseEvents, sorted by date and dose time.
+ * These lists are copy-on-write: a change replaces a drug's list with a new one,
+ * so a list obtained from {@link Drug#getDoseEvents()} can be read without locking,
+ * from any thread.
+ * <p>
+ * When the database is loaded, DoseEvents older than {@link #HISTORY_DAYS} are
+ * moved from the cache to their drug's {@link DoseEventStore}, which takes a
+ * fraction of the memory. Entries searches both; DoseEvents created or updated
+ * later are always cached.
+ * Drugs are additionally partitioned by patient, so a patient's drugs (and,
+ * through them, their DoseEvents) can be accessed without touching those of
+ * other patients.
+ * All functions must be called with the cache in a consistent state, i.e. after
+ * {@link Database} has applied the respective change to its cache.
+ *
+ * @author Joseph Lehner
+ */
+/* package */ final class Relations
+{
+	private static final String TAG = Relations.class.getSimpleName();
+
+	/**
+	 * DoseEvents older than this many days are kept in a DoseEventStore.
+	 */
+	static final int HISTORY_DAYS = 30;
+
+	/**
+	 * Orders DoseEvents by date, then by dose time.
+	 */
+	static final Comparator<DoseEvent> EVENT_COMPARATOR = new Comparator<DoseEvent>() {
+
+		@Override
+		public int compare(DoseEvent lhs, DoseEvent rhs)
+		{
+			final long l = lhs.getDate().getTime();
+			final long r = rhs.getDate().getTime();
+
+			if(l != r)
+				return l < r ? -1 : 1;
+
+			return lhs.getDoseTime() - rhs.getDoseTime();
+		}
+	};
+
+	private static final HashMap<Integer, Drug> sDrugs = new HashMap<Integer, Drug>();
+	private static final HashMap<Integer, Patient> sPatients = new HashMap<Integer, Patient>();
+	private static final HashMap<Integer, List<Drug>> sDrugsByPatient = new HashMap<Integer, List<Drug>>();
+
+	static
+	{
+		Metrics.registerGauge("db.history.events", new Metrics.Gauge() {
+
+			@Override
+			public long getValue()
+			{
+				long count = 0;
+
+				synchronized(Relations.class)
+				{
+					for(Drug drug : sDrugs.values())
+						count += drug.getDoseEventHistory().size();
+				}
+
+				return count;
+			}
+		});
+
+		Metrics.registerGauge("db.history.bytes", new Metrics.Gauge() {
+
+			@Override
+			public long getValue()
+			{
+				long bytes = 0;
+
+				synchronized(Relations.class)
+				{
+					for(Drug drug : sDrugs.values())
+						bytes += drug.getDoseEventHistory().getSizeInBytes();
+				}
+
+				return bytes;
+			}
+		});
+	}
+
+	static synchronized void onLoaded()
+	{
+		sDrugs.clear();
+		sPatients.clear();
+		sDrugsByPatient.clear();
+
+		for(Patient patient : Database.getCached(Patient.class))
+			sPatients.put(patient.id, patient);
+
+		final HashMap<Integer, List<DoseEvent>> events = new HashMap<Integer, List<DoseEvent>>();
+
+		for(Drug drug : Database.getCached(Drug.class))
+		{
+			sDrugs.put(drug.id, drug);
+			drug.mPatient = sPatients.get(drug.getPatientId());
+			events.put(drug.id, new ArrayList<DoseEvent>());
+			addToPartition(drug);
+		}
+
+		for(DoseEvent event : Database.getCached(DoseEvent.class))
+		{
+			final Drug drug = sDrugs.get(event.getDrugId());
+			event.mDrug = drug;
+
+			if(drug != null)
+				events.get(drug.id).add(event);
+		}
+
+		final long historyEnd = DateTime.add(DateTime.today(), Calendar.DAY_OF_MONTH, -HISTORY_DAYS).getTime();
+		final List<Integer> archived = new ArrayList<Integer>();
+		long historyBytes = 0;
+
+		for(Drug drug : sDrugs.values())
+		{
+			final List<DoseEvent> drugEvents = events.get(drug.id);
+			Collections.sort(drugEvents, EVENT_COMPARATOR);
+
+			final int split = lowerBound(drugEvents, historyEnd);
+			final List<DoseEvent> history = drugEvents.subList(0, split);
+
+			for(DoseEvent event : history)
+				archived.add(event.id);
+
+			drug.mHistory = DoseEventStore.fromEvents(history);
+			drug.mDoseEvents = new ArrayList<DoseEvent>(drugEvents.subList(split, drugEvents.size()));
+			historyBytes += drug.mHistory.getSizeInBytes();
+		}
+
+		Database.purgeCached(DoseEvent.class, archived);
+
+		Log.i(TAG, "Moved " + archived.size() + " DoseEvents to the history (" + historyBytes + " bytes)");
+	}
+
+	static synchronized void onCreated(Entry entry)
+	{
+		if(entry instanceof DoseEvent)
+			addDoseEvent((DoseEvent) entry);
+		else if(entry instanceof Drug)
+		{
+			final Drug drug = (Drug) entry;
+
+			sDrugs.put(drug.id, drug);
+			drug.mPatient = sPatients.get(drug.getPatientId());
+
+			if(drug.mDoseEvents == null)
+				drug.mDoseEvents = new ArrayList<DoseEvent>();
+
+			if(drug.mHistory == null)
+				drug.mHistory = DoseEventStore.EMPTY;
+
+			addToPartition(drug);
+		}
+		else if(entry instanceof Patient)
+			sPatients.put(entry.id, (Patient) entry);
+	}
+
+	static synchronized void onUpdated(Entry oldEntry, Entry newEntry)
+	{
+		if(newEntry instanceof DoseEvent)
+		{
+			// oldEntry is null if the event was materialized from the history
+			removeDoseEvent((DoseEvent) (oldEntry != null ? oldEntry : newEntry));
+			addDoseEvent((DoseEvent) newEntry);
+		}
+		else if(newEntry instanceof Drug)
+		{
+			final Drug oldDrug = (Drug) oldEntry;
+			final Drug newDrug = (Drug) newEntry;
+
+			sDrugs.put(newDrug.id, newDrug);
+			newDrug.mPatient = sPatients.get(newDrug.getPatientId());
+
+			final List<Drug> partition = sDrugsByPatient.get(oldDrug.mPartitionId);
+			final int index = partition != null ? indexOf(partition, oldDrug) : -1;
+
+			if(index != -1 && oldDrug.mPartitionId == newDrug.getPatientId())
+			{
+				// keep the drug's position
+				partition.set(index, newDrug);
+				newDrug.mPartitionId = oldDrug.mPartitionId;
+			}
+			else
+			{
+				if(index != -1)
+					partition.remove(index);
+
+				addToPartition(newDrug);
+			}
+
+			if(oldDrug != newDrug)
+			{
+				newDrug.mDoseEvents = oldDrug.mDoseEvents;
+				oldDrug.mDoseEvents = null;
+				newDrug.mHistory = oldDrug.mHistory;
+				oldDrug.mHistory = null;
+
+				// Null if the drug was updated before the dose events were loaded
+				if(newDrug.mDoseEvents != null)
+				{
+					for(DoseEvent event : newDrug.mDoseEvents)
+						event.mDrug = newDrug;
+				}
+			}
+		}
+		else if(newEntry instanceof Patient)
+		{
+			final Patient patient = (Patient) newEntry;
+			sPatients.put(patient.id, patient);
+
+			for(Drug drug : sDrugs.values())
+			{
+				if(drug.mPatient == oldEntry)
+					drug.mPatient = patient;
+			}
+		}
+	}
+
+	static synchronized void onDeleted(Entry entry)
+	{
+		if(entry instanceof DoseEvent)
+			removeDoseEvent((DoseEvent) entry);
+		else if(entry instanceof Drug)
+		{
+			// the Drug's DoseEvents are purged by Drug.CALLBACK_DELETED
+			sDrugs.remove(entry.id);
+
+			final Drug drug = (Drug) entry;
+			final List<Drug> partition = sDrugsByPatient.get(drug.mPartitionId);
+			final int index = partition != null ? indexOf(partition, drug) : -1;
+
+			if(index != -1)
+				partition.remove(index);
+		}
+		else if(entry instanceof Patient)
+		{
+			sPatients.remove(entry.id);
+
+			for(Drug drug : sDrugs.values())
+			{
+				if(drug.mPatient == entry)
+					drug.mPatient = null;
+			}
+		}
+	}
+
+	static synchronized Drug findDrug(int drugId) {
+		return sDrugs.get(drugId);
+	}
+
+	/**
+	 * Returns a copy of the specified patient's drug list.
+	 */
+	static synchronized List<Drug> getDrugs(int patientId)
+	{
+		final List<Drug> drugs = sDrugsByPatient.get(patientId);
+		return drugs != null ? new ArrayList<Drug>(drugs) : new ArrayList<Drug>();
+	}
+
+	/**
+	 * Removes all DoseEvents of the specified drug from the cache and the history.
+	 * <p>
+	 * Like {@link Database#purgeCached(Class, java.util.Collection)}, this function
+	 * does not touch the database.
+	 */
+	static void purgeDoseEvents(Drug drug)
+	{
+		final List<DoseEvent> events;
+
+		synchronized(Relations.class)
+		{
+			drug.mHistory = null;
+			events = drug.mDoseEvents;
+			if(events == null || events.isEmpty())
+				return;
+
+			drug.mDoseEvents = new ArrayList<DoseEvent>();
+		}
+
+		final List<Integer> ids = new ArrayList<Integer>(events.size());
+		for(DoseEvent event : events)
+			ids.add(event.id);
+
+		Database.purgeCached(DoseEvent.class, ids);
+	}
+
+	/**
+	 * Returns the index of the first event in <code>events</code> whose date is not
+	 * before <code>time</code>.
+	 */
+	static int lowerBound(List<DoseEvent> events, long time)
+	{
+		int low = 0, high = events.size();
+
+		while(low < high)
+		{
+			final int mid = (low + high) >>> 1;
+			if(events.get(mid).getDate().getTime() < time)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	private static void addToPartition(Drug drug)
+	{
+		final int patientId = drug.getPatientId();
+		List<Drug> partition = sDrugsByPatient.get(patientId);
+		if(partition == null)
+		{
+			partition = new ArrayList<Drug>();
+			sDrugsByPatient.put(patientId, partition);
+		}
+
+		partition.add(drug);
+		drug.mPartitionId = patientId;
+	}
+
+	private static int indexOf(List<Drug> drugs, Drug drug)
+	{
+		for(int i = 0; i != drugs.size(); ++i)
+		{
+			if(drugs.get(i) == drug)
+				return i;
+		}
+
+		return -1;
+	}
+
+	private static void addDoseEvent(DoseEvent event)
+	{
+		final Drug drug = sDrugs.get(event.getDrugId());
+		event.mDrug = drug;
+
+		if(drug == null || drug.mDoseEvents == null)
+			return;
+
+		final List<DoseEvent> events = new ArrayList<DoseEvent>(drug.mDoseEvents.size() + 1);
+		events.addAll(drug.mDoseEvents);
+
+		int index = Collections.binarySearch(events, event, EVENT_COMPARATOR);
+		if(index < 0)
+			index = -index - 1;
+
+		events.add(index, event);
+		drug.mDoseEvents = events;
+	}
+
+	private static void removeDoseEvent(DoseEvent event)
+	{
+		final Drug drug = event.mDrug != null ? event.mDrug : sDrugs.get(event.getDrugId());
+		if(drug == null || drug.mDoseEvents == null)
+			return;
+
+		final List<DoseEvent> events = drug.mDoseEvents;
+
+		for(int i = 0; i != events.size(); ++i)
+		{
+			if(events.get(i) == event)
+			{
+				final List<DoseEvent> copy = new ArrayList<DoseEvent>(events);
+				copy.remove(i);
+				drug.mDoseEvents = copy;
+				return;
+			}
+		}
+
+		// not cached, so the event may have been materialized from the history
+		final DoseEventStore history = drug.mHistory;
+		final int index = history != null ? history.indexOf(event.id) : -1;
+		if(index != -1)
+			drug.mHistory = history.without(index);
+	}
+
+	private Relations() {}
+}
@@ -21,13 +21,16 @@
 
 package at.jclehner.rxdroid.db;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import at.jclehner.androidutils.LazyValue;
+import at.jclehner.rxdroid.DoseTimeTimeline;
 import at.jclehner.rxdroid.Fraction;
-import at.jclehner.rxdroid.util.DateTime;
+import at.jclehner.rxdroid.RepeatRules;
+import at.jclehner.rxdroid.ScheduleRules;
 import at.jclehner.rxdroid.util.Exceptions;
-import at.jclehner.rxdroid.util.Keep;
 
 import com.j256.ormlite.dao.ForeignCollection;
 import com.j256.ormlite.field.DatabaseField;
@@ -64,19 +67,16 @@ public final class Schedule extends Entry
 	public static final int TIME_NOON    = 1;
 	public static final int TIME_EVENING = 2;
 	public static final int TIME_NIGHT   = 3;
-	public static final int TIME_INVALID = 4;
+	public static final int TIME_INVALID = DoseTimeTimeline.TIME_INVALID;
 
 	public static final int DOSE_TIME_COUNT = TIME_INVALID;
 
-	public static final int REPEAT_DAILY = 0;
-	public static final int REPEAT_ON_DEMAND = 1;
-	public static final int REPEAT_EVERY_N_DAYS = 2;
-	public static final int REPEAT_EVERY_6_8_12_OR_24_HOURS = 3;
-	public static final int REPEAT_WEEKDAYS = 4;
-	public static final int REPEAT_DAILY_WITH_PAUSE = 5;
-
-	private static final int MASK_REPEAT_ARG_PAUSE = 0xffff;
-	private static final int MASK_REPEAT_ARG_CYCLE_LENGTH = 0xffff0000;
+	public static final int REPEAT_DAILY = ScheduleRules.REPEAT_DAILY;
+	public static final int REPEAT_ON_DEMAND = ScheduleRules.REPEAT_ON_DEMAND;
+	public static final int REPEAT_EVERY_N_DAYS = ScheduleRules.REPEAT_EVERY_N_DAYS;
+	public static final int REPEAT_EVERY_6_8_12_OR_24_HOURS = ScheduleRules.REPEAT_EVERY_6_8_12_OR_24_HOURS;
+	public static final int REPEAT_WEEKDAYS = ScheduleRules.REPEAT_WEEKDAYS;
+	public static final int REPEAT_DAILY_WITH_PAUSE = ScheduleRules.REPEAT_DAILY_WITH_PAUSE;
 
 	private static final Fraction[] ZERO_DOSE_ARRAY = new Fraction[] {
 		Fraction.ZERO, Fraction.ZERO, Fraction.ZERO, Fraction.ZERO
@@ -97,16 +97,16 @@ public final class Schedule extends Entry
 	@DatabaseField
 	private long repeatArg;
 
-	@DatabaseField(persisterClass = FractionPersister.class)
+	@DatabaseField(persisterClass = PackedFractionPersister.class)
 	private Fraction doseMorning;
 
-	@DatabaseField(persisterClass = FractionPersister.class)
+	@DatabaseField(persisterClass = PackedFractionPersister.class)
 	private Fraction doseNoon;
 
-	@DatabaseField(persisterClass = FractionPersister.class)
+	@DatabaseField(persisterClass = PackedFractionPersister.class)
 	private Fraction doseEvening;
 
-	@DatabaseField(persisterClass = FractionPersister.class)
+	@DatabaseField(persisterClass = PackedFractionPersister.class)
 	private Fraction doseNight;
 
 	@SuppressWarnings("unused")
@@ -134,21 +134,13 @@ public final class Schedule extends Entry
 
 	public boolean hasDoseOnDate(Date date)
 	{
-		if(begin != null && date.before(begin))
-			return false;
-		else if(end != null && date.after(end))
+		if(!RepeatRules.isWithinRange(date, begin, end))
 			return false;
 
 		if(!isDosePossibleOnDate(date))
 			return false;
 
-		for(Fraction dose : getDoses(date))
-		{
-			if(!dose.isZero())
-				return true;
-		}
-
-		return false;
+		return ScheduleRules.hasAnyDose(getDoses(date));
 	}
 
 	public void setDose(int doseTime, Fraction dose)
@@ -183,18 +175,8 @@ public final class Schedule extends Entry
 		if(!isDosePossibleOnDate(date))
 			return ZERO_DOSE_ARRAY;
 
-		final SchedulePart[] schedulePartsArray = mSchedulePartsArray.get();
-		if(schedulePartsArray != null && schedulePartsArray.length != 0)
-		{
-			final int weekday = DateTime.getIsoWeekDayNumberIndex(date);
-			for(SchedulePart part : schedulePartsArray)
-			{
-				if((part.weekdays & (1 << weekday)) != 0)
-					return part.getDoses();
-			}
-		}
-
-		return mDoses.get();
+		final SchedulePart part = ScheduleRules.findPart(date, mSchedulePartsArray.get());
+		return part != null ? part.getDoses() : mDoses.get();
 	}
 
 	public Fraction getDose(Date date, int doseTime)
@@ -243,29 +225,8 @@ public final class Schedule extends Entry
 		return 0;
 	}
 
-	private boolean isDosePossibleOnDate(Date date)
-	{
-		switch(repeatMode)
-		{
-			case REPEAT_DAILY:
-			case REPEAT_ON_DEMAND:
-			case REPEAT_EVERY_6_8_12_OR_24_HOURS:
-				return true;
-
-			case REPEAT_EVERY_N_DAYS:
-				return DateTime.diffDays(date, begin) % repeatArg == 0;
-
-			case REPEAT_WEEKDAYS:
-				return (repeatArg & (1 << DateTime.getIsoWeekDayNumberIndex(date))) != 0;
-
-			case REPEAT_DAILY_WITH_PAUSE:
-				final long pauseDays = repeatArg & MASK_REPEAT_ARG_PAUSE;
-				final long cycleLength = (repeatArg & MASK_REPEAT_ARG_CYCLE_LENGTH) >> 16;
-				return DateTime.diffDays(date, begin) % cycleLength < (cycleLength - pauseDays);
-
-			default:
-				throw new Exceptions.UnexpectedValueInSwitch(repeatMode);
-		}
+	private boolean isDosePossibleOnDate(Date date) {
+		return ScheduleRules.isDosePossibleOnDate(date, repeatMode, repeatArg, begin);
 	}
 
 	transient private LazyValue<SchedulePart[]> mSchedulePartsArray = new LazyValue<SchedulePart[]>() {
@@ -292,7 +253,13 @@ public final class Schedule extends Entry
 		}
 	};
 
-	@Keep
+	/**
+	 * Statements run by {@link Database} before deleting a schedule, in the same transaction.
+	 */
+	/* package */ static final String[] DELETE_CASCADE = {
+		"DELETE FROM `schedulepart` WHERE `owner_id` = ?"
+	};
+
 	/* package */ static final Callback<Schedule> CALLBACK_DELETED = new Callback<Schedule>() {
 
 		@Override
@@ -302,10 +269,11 @@ public final class Schedule extends Entry
 			if(scheduleParts == null)
 				return;
 
+			final List<Integer> ids = new ArrayList<Integer>(scheduleParts.length);
 			for(SchedulePart part : scheduleParts)
-			{
-				Database.delete(part, Database.FLAG_DONT_NOTIFY_LISTENERS);
-			}
+				ids.add(part.id);
+
+			Database.purgeCached(SchedulePart.class, ids);
 		}
 	};
 }
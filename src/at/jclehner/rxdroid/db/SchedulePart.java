@@ -23,6 +23,7 @@ package at.jclehner.rxdroid.db;
 
 import at.jclehner.androidutils.LazyValue;
 import at.jclehner.rxdroid.Fraction;
+import at.jclehner.rxdroid.ScheduleRules;
 
 import com.j256.ormlite.field.DatabaseField;
 import com.j256.ormlite.table.DatabaseTable;
@@ -34,18 +35,18 @@ import com.j256.ormlite.table.DatabaseTable;
  *
  */
 @DatabaseTable
-public class SchedulePart extends Entry
+public class SchedulePart extends Entry implements ScheduleRules.WeekdayPart
 {
-	@DatabaseField(persisterClass = FractionPersister.class)
+	@DatabaseField(persisterClass = PackedFractionPersister.class)
 	private Fraction doseMorning;
 
-	@DatabaseField(persisterClass = FractionPersister.class)
+	@DatabaseField(persisterClass = PackedFractionPersister.class)
 	private Fraction doseNoon;
 
-	@DatabaseField(persisterClass = FractionPersister.class)
+	@DatabaseField(persisterClass = PackedFractionPersister.class)
 	private Fraction doseEvening;
 
-	@DatabaseField(persisterClass = FractionPersister.class)
+	@DatabaseField(persisterClass = PackedFractionPersister.class)
 	private Fraction doseNight;
 
 	@DatabaseField
@@ -78,6 +79,11 @@ public class SchedulePart extends Entry
 		return mDoses.get();
 	}
 
+	@Override
+	public int getWeekdays() {
+		return weekdays;
+	}
+
 	@Override
 	public boolean equals(Object other)
 	{
@@ -25,6 +25,7 @@ import java.util.Date;
 import java.util.List;
 
 import at.jclehner.rxdroid.Fraction;
+import at.jclehner.rxdroid.RepeatRules;
 
 /* package */ final class Schedules
 {
@@ -64,14 +65,8 @@ import at.jclehner.rxdroid.Fraction;
 		return true;
 	}
 
-	static boolean isDateWithinSchedule(Date date, Schedule schedule)
-	{
-		if(date.before(schedule.begin))
-			return false;
-		else if(schedule.end != null)
-			return !date.after(schedule.end);
-		else
-			return true;
+	static boolean isDateWithinSchedule(Date date, Schedule schedule) {
+		return RepeatRules.isWithinRange(date, schedule.begin, schedule.end);
 	}
 
 	private Schedules() {}
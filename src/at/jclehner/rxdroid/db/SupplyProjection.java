@@ -0,0 +1,156 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid.db;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+
+import at.jclehner.rxdroid.Fraction;
+import at.jclehner.rxdroid.FractionAccumulator;
+import at.jclehner.rxdroid.Settings;
+import at.jclehner.rxdroid.util.DateTime;
+
+/**
+ * Memoized supply projections.
+ * <p>
+ * For each drug, the projected supply is computed day by day, starting from
+ * today, and only as far as it has been requested so far. A projection is
+ * dropped whenever its drug, one of its dose events, or a schedule changes,
+ * and when the current day or the drug's supply are no longer the ones it was
+ * computed from.
+ *
+ * @author Joseph Lehner
+ */
+public final class SupplyProjection
+{
+	private static final HashMap<Integer, SupplyProjection> sProjections =
+			new HashMap<Integer, SupplyProjection>();
+
+	private final Drug mDrug;
+	private final Fraction mSupply;
+	private final Date mToday;
+
+	// mRemaining.get(n) is the supply left at the end of the n-th day after today
+	private final ArrayList<Fraction> mRemaining = new ArrayList<Fraction>();
+	private final FractionAccumulator mTotalDose = new FractionAccumulator();
+	private final Calendar mLastDay;
+	private boolean mIsExhausted = false;
+
+	private Settings.Snapshot mSettings;
+	private boolean mHasLowSupplies;
+
+	/**
+	 * Returns the drug's supply at the end of the specified date.
+	 * <p>
+	 * For dates after today, this is equivalent to subtracting
+	 * {@link Entries#getTotalDoseInTimePeriod_dumb(Drug, Date, Date, boolean)}
+	 * from the current supply; for all other dates, it is the current supply.
+	 */
+	public static synchronized Fraction getProjectedSupply(Drug drug, Date date)
+	{
+		final SupplyProjection projection = get(drug);
+		// not using DateTime.diffDays(), as it is off by one across DST changes
+		final int days = DateTime.toEpochDay(date) - DateTime.toEpochDay(projection.mToday);
+
+		if(days <= 0)
+			return projection.mSupply;
+
+		return projection.getRemaining(days);
+	}
+
+	/**
+	 * Memoized version of {@link Entries#hasLowSupplies(Drug)}.
+	 */
+	public static synchronized boolean hasLowSupplies(Drug drug)
+	{
+		final SupplyProjection projection = get(drug);
+		final Settings.Snapshot settings = Settings.snapshot();
+
+		if(projection.mSettings != settings)
+		{
+			projection.mHasLowSupplies = Entries.hasLowSupplies(drug);
+			projection.mSettings = settings;
+		}
+
+		return projection.mHasLowSupplies;
+	}
+
+	/**
+	 * Drops the projections affected by a change to the specified entry.
+	 */
+	/* package */ static synchronized void onChanged(Entry entry)
+	{
+		if(entry instanceof Drug)
+			sProjections.remove(entry.getId());
+		else if(entry instanceof DoseEvent)
+			sProjections.remove(((DoseEvent) entry).getDrugId());
+		else if(!(entry instanceof Patient))
+			sProjections.clear();
+	}
+
+	private static SupplyProjection get(Drug drug)
+	{
+		SupplyProjection projection = sProjections.get(drug.getId());
+		if(projection == null || !projection.isValidFor(drug))
+		{
+			projection = new SupplyProjection(drug);
+			sProjections.put(drug.getId(), projection);
+		}
+
+		return projection;
+	}
+
+	private SupplyProjection(Drug drug)
+	{
+		mDrug = drug;
+		mSupply = drug.getCurrentSupply();
+		mToday = DateTime.today();
+		mLastDay = DateTime.calendarFromDate(mToday);
+		mRemaining.add(mSupply);
+	}
+
+	private boolean isValidFor(Drug drug) {
+		return mDrug == drug && mSupply.equals(drug.getCurrentSupply()) && mToday.equals(DateTime.today());
+	}
+
+	private Fraction getRemaining(int days)
+	{
+		while(mRemaining.size() <= days)
+		{
+			if(!mIsExhausted)
+			{
+				mLastDay.add(Calendar.DAY_OF_MONTH, 1);
+				Entries.getTotalDose(mDrug, mLastDay.getTime(), mTotalDose);
+
+				// mirrors getTotalDoseInTimePeriod_dumb(), which returns the
+				// current supply in this case.
+				mIsExhausted = mTotalDose.isNegative();
+			}
+
+			mRemaining.add(mIsExhausted ? Fraction.ZERO : mSupply.minus(mTotalDose.toFraction()));
+		}
+
+		return mRemaining.get(days);
+	}
+}
@@ -0,0 +1,194 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid.db.v58;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+import at.jclehner.rxdroid.Fraction;
+import at.jclehner.rxdroid.db.DoseEvent;
+import at.jclehner.rxdroid.db.Drug;
+import at.jclehner.rxdroid.db.PackedFractionPersister;
+import at.jclehner.rxdroid.db.Schedule;
+import at.jclehner.rxdroid.db.SchedulePart;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.table.DatabaseTableConfig;
+import com.j256.ormlite.table.TableUtils;
+
+/**
+ * Converts all Fraction columns from strings to packed integers.
+ * <p>
+ * As SQLite would keep storing the packed values as text in a column that
+ * was declared as VARCHAR, the affected tables are rebuilt. Row ids are
+ * preserved, so foreign keys remain valid.
+ */
+public final class UpgradeHelper
+{
+	private static final String TAG = UpgradeHelper.class.getSimpleName();
+
+	private static final String[] DOSE_COLUMNS = {
+		"doseMorning", "doseNoon", "doseEvening", "doseNight"
+	};
+
+	public static void upgradeDatabase(ConnectionSource cs) throws SQLException
+	{
+		rebuildTable(cs, Drug.class, "currentSupply", "doseMorning", "doseNoon", "doseEvening", "doseNight");
+		rebuildTable(cs, Schedule.class, DOSE_COLUMNS);
+		rebuildTable(cs, SchedulePart.class, DOSE_COLUMNS);
+		rebuildTable(cs, DoseEvent.class, "dose");
+	}
+
+	private static <T> void rebuildTable(ConnectionSource cs, Class<T> clazz, String... fractionColumns) throws SQLException
+	{
+		final Dao<T, ?> dao = DaoManager.createDao(cs, clazz);
+		final String table = DatabaseTableConfig.extractTableName(clazz);
+		final String oldTable = table + "_v58";
+
+		final List<String[]> oldColumns = getColumnInfo(dao, table);
+		if(!isTextColumn(oldColumns, fractionColumns[0]))
+		{
+			Log.i(TAG, table + ": nothing to do");
+			return;
+		}
+
+		dao.executeRaw("ALTER TABLE `" + table + "` RENAME TO `" + oldTable + "`");
+		TableUtils.createTable(cs, clazz);
+
+		// Copy everything except the fraction columns, which are converted below
+
+		final StringBuilder columns = new StringBuilder();
+
+		for(String[] info : getColumnInfo(dao, table))
+		{
+			final String name = info[1];
+			if(contains(fractionColumns, name) || findColumn(oldColumns, name) == null)
+				continue;
+
+			if(columns.length() != 0)
+				columns.append(", ");
+
+			columns.append('`').append(name).append('`');
+		}
+
+		dao.executeRaw("INSERT INTO `" + table + "` (" + columns + ") SELECT " + columns + " FROM `" + oldTable + "`");
+
+		final StringBuilder query = new StringBuilder("SELECT `id`");
+		for(String column : fractionColumns)
+			query.append(", `").append(column).append('`');
+
+		query.append(" FROM `").append(oldTable).append('`');
+
+		final GenericRawResults<String[]> rows = dao.queryRaw(query.toString());
+
+		try
+		{
+			for(String[] row : rows)
+			{
+				final StringBuilder update = new StringBuilder("UPDATE `" + table + "` SET ");
+
+				for(int i = 0; i != fractionColumns.length; ++i)
+				{
+					if(i != 0)
+						update.append(", ");
+
+					update.append('`').append(fractionColumns[i]).append("`=").append(toPackedString(row[i + 1]));
+				}
+
+				update.append(" WHERE `id`=").append(Integer.parseInt(row[0]));
+				dao.executeRaw(update.toString());
+			}
+		}
+		finally
+		{
+			rows.close();
+		}
+
+		dao.executeRaw("DROP TABLE `" + oldTable + "`");
+
+		Log.i(TAG, table + ": converted " + fractionColumns.length + " column(s)");
+	}
+
+	private static String toPackedString(String value)
+	{
+		if(value == null)
+			return "NULL";
+		else if(value.length() == 0)
+			return Long.toString(PackedFractionPersister.pack(Fraction.ZERO));
+
+		return Long.toString(PackedFractionPersister.pack(Fraction.valueOf(value)));
+	}
+
+	private static List<String[]> getColumnInfo(Dao<?, ?> dao, String table) throws SQLException
+	{
+		// columns: cid, name, type, notnull, dflt_value, pk
+		final GenericRawResults<String[]> results = dao.queryRaw("PRAGMA table_info(`" + table + "`)");
+
+		try
+		{
+			return new ArrayList<String[]>(results.getResults());
+		}
+		finally
+		{
+			results.close();
+		}
+	}
+
+	private static String[] findColumn(List<String[]> columnInfo, String name)
+	{
+		for(String[] info : columnInfo)
+		{
+			if(info[1].equals(name))
+				return info;
+		}
+
+		return null;
+	}
+
+	private static boolean isTextColumn(List<String[]> columnInfo, String name)
+	{
+		final String[] info = findColumn(columnInfo, name);
+		if(info == null)
+			return false;
+
+		final String type = info[2].toUpperCase();
+		return type.contains("CHAR") || type.contains("TEXT") || type.contains("CLOB");
+	}
+
+	private static boolean contains(String[] array, String value)
+	{
+		for(String s : array)
+		{
+			if(s.equals(value))
+				return true;
+		}
+
+		return false;
+	}
+
+	private UpgradeHelper() {}
+}
@@ -291,7 +291,7 @@ public class TimePeriodPreference extends BaseAdvancedDialogPreference<TimePerio
 
 	private boolean isCurrentlyVisibleTimePickerValueValid()
 	{
-		final DumbTime current = DumbTime.fromTimePicker(mTimePicker);
+		final DumbTime current = Util.getTimePickerTime(mTimePicker);
 		final DumbTime min, max;
 
 		min = getConstraintTimeForCurrentlyVisibleTimePicker(MIN);
@@ -66,6 +66,15 @@ public abstract class AbsDrugAdapter extends ArrayAdapter<Drug>
 		notifyDataSetChanged();
 	}
 
+	/**
+	 * Sets the items to display, if these have already been filtered.
+	 */
+	public void setFilteredItems(List<Drug> items)
+	{
+		mItems = new ArrayList<Drug>(items);
+		notifyDataSetChanged();
+	}
+
 	@Override
 	public abstract View getView(int position, View convertView, ViewGroup parent);
 
@@ -54,6 +54,7 @@ import at.jclehner.rxdroid.ui.ExpandableListFragment.OnGroupCollapseExpandListen
 import at.jclehner.rxdroid.util.Constants;
 import at.jclehner.rxdroid.util.DateTime;
 import at.jclehner.rxdroid.util.Timer;
+import at.jclehner.rxdroid.util.Trace;
 import at.jclehner.rxdroid.util.Util;
 
 import com.actionbarsherlock.app.SherlockFragmentActivity;
@@ -213,9 +214,7 @@ public class DoseLogFragment extends ExpandableListFragment
 
 	private void gatherEventInfos(int flags)
 	{
-		final Timer t;
-		if(LOGV)
-			t = new Timer();
+		final Timer t = new Timer();
 
 		final Drug drug = getDrug();
 		final List<EventInfo> infos = new ArrayList<EventInfo>();
@@ -316,6 +315,7 @@ public class DoseLogFragment extends ExpandableListFragment
 			}
 		}
 
+		Trace.record("log.gather", t);
 		if(LOGV) Log.d(TAG, "gatherEvents: " + t);
 	}
 
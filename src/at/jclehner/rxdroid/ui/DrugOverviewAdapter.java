@@ -38,6 +38,7 @@ import at.jclehner.rxdroid.BuildConfig;
 import at.jclehner.rxdroid.DoseHistoryActivity;
 import at.jclehner.rxdroid.DoseView;
 import at.jclehner.rxdroid.DrugListActivity;
+import at.jclehner.rxdroid.Fraction;
 import at.jclehner.rxdroid.R;
 import at.jclehner.rxdroid.Theme;
 import at.jclehner.rxdroid.Version;
@@ -56,7 +57,19 @@ public class DrugOverviewAdapter extends AbsDrugAdapter
 	private static final String TAG = DrugOverviewAdapter.class.getSimpleName();
 	private static final boolean LOGV = BuildConfig.DEBUG;
 
+	/**
+	 * Precomputed state of the drugs on the adapter's date.
+	 */
+	public interface DayInfo
+	{
+		boolean hasMissedDoses(Drug drug);
+		boolean isCurrentSupplyVisible(Drug drug);
+		Fraction getTakenDose(Drug drug, int doseTime);
+		int getIntakeCount(Drug drug, int doseTime);
+	}
+
 	private final Timer mTimer;
+	private DayInfo mDayInfo;
 
 	public DrugOverviewAdapter(Activity activity, List<Drug> items, Date date)
 	{
@@ -65,6 +78,13 @@ public class DrugOverviewAdapter extends AbsDrugAdapter
 		mTimer = LOGV ? new Timer() : null;
 	}
 
+	/**
+	 * Sets the state to bind views from, instead of querying the database.
+	 */
+	public void setDayInfo(DayInfo dayInfo) {
+		mDayInfo = dayInfo;
+	}
+
 	@Override
 	public View getView(int position, View v, ViewGroup parent)
 	{
@@ -114,7 +134,12 @@ public class DrugOverviewAdapter extends AbsDrugAdapter
 		final boolean isCurrentSupplyVisible;
 		boolean isMissingDoseIndicatorVisible = false;
 
-		if(today.equals(mAdapterDate))
+		if(mDayInfo != null)
+		{
+			isMissingDoseIndicatorVisible = mDayInfo.hasMissedDoses(drug);
+			isCurrentSupplyVisible = mDayInfo.isCurrentSupplyVisible(drug);
+		}
+		else if(today.equals(mAdapterDate))
 		{
 			if(Entries.hasMissingDosesBeforeDate(drug, mAdapterDate))
 				isMissingDoseIndicatorVisible = true;
@@ -140,7 +165,16 @@ public class DrugOverviewAdapter extends AbsDrugAdapter
 
 		for(DoseView doseView : holder.doseViews)
 		{
-			if(!doseView.hasInfo(mAdapterDate, drug))
+			if(doseView.hasInfo(mAdapterDate, drug))
+				continue;
+
+			if(mDayInfo != null)
+			{
+				final int doseTime = doseView.getDoseTime();
+				doseView.setDoseFromDrugAndDate(mAdapterDate, drug, mDayInfo.getTakenDose(drug, doseTime),
+						mDayInfo.getIntakeCount(drug, doseTime));
+			}
+			else
 				doseView.setDoseFromDrugAndDate(mAdapterDate, drug);
 		}
 
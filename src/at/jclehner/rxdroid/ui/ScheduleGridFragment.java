@@ -185,7 +185,7 @@ public class ScheduleGridFragment extends ListFragment implements
 			for(int j = 0; j != Schedule.DOSE_TIME_COUNT; ++j)
 				doses[j] = mHolders[i].doseViews[j].getDose();
 
-			outState.putParcelableArray("doses_" + i, doses);
+			outState.putSerializable("doses_" + i, doses);
 		}
 
 		outState.putLong("day_status", mDayStatus.longValue());
@@ -249,7 +249,7 @@ public class ScheduleGridFragment extends ListFragment implements
 
 		for(int i = 0; i != mHolders.length; ++i)
 		{
-			Fraction[] doses = (Fraction[]) state.getParcelableArray("doses_" + i);
+			Fraction[] doses = (Fraction[]) state.getSerializable("doses_" + i);
 			if(doses != null)
 			{
 				for(int j = 0; j != doses.length; ++j)
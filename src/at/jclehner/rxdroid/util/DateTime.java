@@ -27,10 +27,13 @@ import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.text.format.DateFormat;
-import android.util.Log;
 import at.jclehner.rxdroid.DumbTime;
 import at.jclehner.rxdroid.PerThreadInstance;
 import at.jclehner.rxdroid.RxDroid;
@@ -50,8 +53,62 @@ public final class DateTime
 	private static final String DATE_AND_TIME_FORMAT = "yyyy-MM-dd, HH:mm:ss";
 	private static final String DATE_FORMAT = "yyyy-MM-dd";
 
-	private static final HashMap<Long, DateCacheData> DATE_CACHE = new HashMap<Long, DateCacheData>();
-	private static boolean sDateCacheEnabled = true;
+	private static final DayCache DAY_CACHE = new DayCache(64);
+	private static volatile boolean sDateCacheEnabled = true;
+
+	private static final int MAX_INTERNED_DATES = 4096;
+	private static final HashMap<Long, Date> INTERNED_DATES = new HashMap<Long, Date>();
+	private static int sInternHits = 0;
+	private static int sInternMisses = 0;
+
+	static
+	{
+		Metrics.registerGauge("datetime.cache.hits", new Metrics.Gauge() {
+
+			@Override
+			public long getValue() {
+				return DAY_CACHE.mHits.get();
+			}
+		});
+
+		Metrics.registerGauge("datetime.cache.misses", new Metrics.Gauge() {
+
+			@Override
+			public long getValue() {
+				return DAY_CACHE.mMisses.get();
+			}
+		});
+
+		Metrics.registerGauge("datetime.cache.evictions", new Metrics.Gauge() {
+
+			@Override
+			public long getValue() {
+				return DAY_CACHE.mEvictions.get();
+			}
+		});
+
+		Metrics.registerGauge("datetime.intern.hits", new Metrics.Gauge() {
+
+			@Override
+			public long getValue()
+			{
+				synchronized(INTERNED_DATES) {
+					return sInternHits;
+				}
+			}
+		});
+
+		Metrics.registerGauge("datetime.intern.misses", new Metrics.Gauge() {
+
+			@Override
+			public long getValue()
+			{
+				synchronized(INTERNED_DATES) {
+					return sInternMisses;
+				}
+			}
+		});
+	}
 
 	public static Calendar calendarFromDate(Date date)
 	{
@@ -72,12 +129,25 @@ public final class DateTime
 		return getDatePartMutable(DateTime.nowCalendarMutable());
 	}
 
-	public static Date today()
-	{
-		final long now = System.currentTimeMillis();
-		final long today = now - (now % Constants.MILLIS_PER_DAY);
+	public static Date today() {
+		return getDayInstance(System.currentTimeMillis());
+	}
 
-		return obtainImmutableCachedDateInstance(today).date;
+	/**
+	 * Returns the number of days since 1970-01-01 of a date, in the default time zone.
+	 * <p>
+	 * Unlike {@link #diffDays(Date, Date)}, differences of epoch days are not
+	 * affected by DST changes.
+	 */
+	public static int toEpochDay(Date date) {
+		return DateMath.toEpochDay(TimeZone.getDefault(), date.getTime());
+	}
+
+	/**
+	 * Returns midnight of the specified epoch day, in the default time zone.
+	 */
+	public static Date fromEpochDay(int epochDay) {
+		return DayCache.createDayInstance(TimeZone.getDefault(), epochDay);
 	}
 
 	public static Date yesterday() {
@@ -261,14 +331,8 @@ public final class DateTime
 		return sdf.format(time);
 	}
 
-	public static long getOffsetFromMidnight(Calendar date)
-	{
-		final int hour = date.get(Calendar.HOUR_OF_DAY);
-		final int minute = date.get(Calendar.MINUTE);
-		final int second = date.get(Calendar.SECOND);
-		final int millis = date.get(Calendar.MILLISECOND);
-
-		return millis + 1000 * (hour * 3600 + minute * 60 + second);
+	public static long getOffsetFromMidnight(Calendar date) {
+		return DateMath.getOffsetFromMidnight(date);
 	}
 
 	public static long getOffsetFromMidnight(Date date)
@@ -310,15 +374,58 @@ public final class DateTime
 		return copy;
 	}
 
-	public static long diffDays(Date date1, Date date2)
+	public static long diffDays(Date date1, Date date2) {
+		return DateMath.diffDays(date1.getTime(), date2.getTime());
+	}
+
+	public static int getIsoWeekDayNumberIndex(Date date) {
+		return DateMath.getIsoWeekDayIndex(get(date, Calendar.DAY_OF_WEEK));
+	}
+
+	/**
+	 * Returns a shared, immutable instance of the specified date.
+	 * <p>
+	 * Meant for dates that are usually shared by many objects, such as the
+	 * date of a DoseEvent. The returned instance will throw an
+	 * <code>UnsupportedOperationException</code> if it is modified.
+	 */
+	public static Date internDate(Date date)
 	{
-		return (date2.getTime() - date1.getTime()) / Constants.MILLIS_PER_DAY;
+		if(date == null || date instanceof ImmutableDate)
+			return date;
+
+		synchronized(INTERNED_DATES)
+		{
+			final long time = date.getTime();
+			Date interned = INTERNED_DATES.get(time);
+
+			if(interned == null)
+			{
+				++sInternMisses;
+
+				if(INTERNED_DATES.size() >= MAX_INTERNED_DATES)
+					return date;
+
+				interned = new ImmutableDate(time);
+				INTERNED_DATES.put(time, interned);
+			}
+			else
+				++sInternHits;
+
+			return interned;
+		}
 	}
 
-	public static int getIsoWeekDayNumberIndex(Date date)
+	/**
+	 * Returns a summary of how often {@link #internDate(Date)} returned a shared instance.
+	 */
+	public static String getInternStats()
 	{
-		final Calendar cal = calendarFromDate(date);
-		return CollectionUtils.indexOf(cal.get(Calendar.DAY_OF_WEEK), Constants.WEEK_DAYS);
+		synchronized(INTERNED_DATES)
+		{
+			return sInternHits + " of " + (sInternHits + sInternMisses) + " shared, " +
+					INTERNED_DATES.size() + " distinct";
+		}
 	}
 
 	public static void disableDateCache()
@@ -328,7 +435,14 @@ public final class DateTime
 	}
 
 	public static void clearDateCache() {
-		DATE_CACHE.clear();
+		DAY_CACHE.clear();
+	}
+
+	/**
+	 * Returns a summary of the hits, misses and evictions of the cache used by {@link #today()}.
+	 */
+	public static String getDateCacheStats() {
+		return DAY_CACHE.toString();
 	}
 
 	private static ImmutableGregorianCalendar getImmutableInstance(Calendar cal)
@@ -338,46 +452,23 @@ public final class DateTime
 		return r;
 	}
 
-	private static DateCacheData obtainImmutableCachedDateInstance(long timeInMillis)
+	/**
+	 * Returns an immutable instance of midnight of the day containing the
+	 * specified time, in the default time zone.
+	 */
+	private static Date getDayInstance(long timeInMillis)
 	{
-		synchronized(DATE_CACHE)
-		{
-			//ImmutableGregorianCalendar instance = DATE_CACHE.get(timeInMillis);
-			DateCacheData data = sDateCacheEnabled ? DATE_CACHE.get(timeInMillis) : null;
+		final TimeZone tz = TimeZone.getDefault();
+		if(!sDateCacheEnabled)
+			return DayCache.createDayInstance(tz, DateMath.toEpochDay(tz, timeInMillis));
 
-			if(data == null)
-			{
-				data = new DateCacheData();
-				data.calendar = new ImmutableGregorianCalendar(timeInMillis);
-
-				for(int field : CALENDAR_TIME_FIELDS)
-					data.calendar.setInternal(field, 0);
-
-				data.date = new ImmutableDate(data.calendar.getTimeInMillis());
-
-				if(sDateCacheEnabled)
-					DATE_CACHE.put(timeInMillis, data);
-			}
-			else if(LOGV)
-			{
-				if((++ImmutableGregorianCalendar.sCacheHits % 10) == 0)
-					Log.v(TAG, ImmutableGregorianCalendar.sCacheHits + " cache hits while obtaining current date");
-			}
-
-			return data;
-		}
+		return DAY_CACHE.get(tz, timeInMillis);
 	}
 
 	private static final class ImmutableGregorianCalendar extends GregorianCalendar
 	{
 		private static final long serialVersionUID = -3883494047745731717L;
 
-//		private static final SparseArray<ImmutableGregorianCalendar> DATE_CACHE =
-//			new SparseArray<DateTime.ImmutableGregorianCalendar>();
-
-
-		private static int sCacheHits = 0;
-
 		private ImmutableGregorianCalendar(Calendar other)
 		{
 			super(other.getTimeZone(), Locale.getDefault());
@@ -508,9 +599,120 @@ public final class DateTime
 		}
 	}
 
-	private static final class DateCacheData
+	/**
+	 * A bounded cache of immutable day instances, keyed by time zone and day.
+	 * <p>
+	 * Lookups don't lock; insertions evict the least recently used entry
+	 * once the cache is full.
+	 */
+	private static final class DayCache
 	{
-		ImmutableGregorianCalendar calendar;
-		Date date;
+		private final ConcurrentHashMap<Key, Entry> mEntries = new ConcurrentHashMap<Key, Entry>();
+		private final int mMaxSize;
+
+		private final AtomicLong mClock = new AtomicLong();
+		private final AtomicInteger mHits = new AtomicInteger();
+		private final AtomicInteger mMisses = new AtomicInteger();
+		private final AtomicInteger mEvictions = new AtomicInteger();
+
+		DayCache(int maxSize) {
+			mMaxSize = maxSize;
+		}
+
+		Date get(TimeZone tz, long timeInMillis)
+		{
+			final Key key = new Key(tz.getID(), DateMath.toEpochDay(tz, timeInMillis));
+			Entry entry = mEntries.get(key);
+
+			if(entry != null)
+				mHits.incrementAndGet();
+			else
+			{
+				mMisses.incrementAndGet();
+				entry = new Entry(createDayInstance(tz, key.epochDay));
+
+				synchronized(this)
+				{
+					final Entry existing = mEntries.putIfAbsent(key, entry);
+					if(existing != null)
+						entry = existing;
+					else if(mEntries.size() > mMaxSize)
+						evictEldest(key);
+				}
+			}
+
+			entry.lastAccess = mClock.incrementAndGet();
+			return entry.date;
+		}
+
+		void clear() {
+			mEntries.clear();
+		}
+
+		@Override
+		public String toString()
+		{
+			return "hits=" + mHits.get() + ", misses=" + mMisses.get() + ", evictions=" +
+					mEvictions.get() + ", size=" + mEntries.size() + "/" + mMaxSize;
+		}
+
+		static Date createDayInstance(TimeZone tz, int epochDay) {
+			return new ImmutableDate(DateMath.getDayStart(tz, epochDay));
+		}
+
+		private void evictEldest(Key keep)
+		{
+			Key eldest = null;
+			long eldestAccess = Long.MAX_VALUE;
+
+			for(Map.Entry<Key, Entry> e : mEntries.entrySet())
+			{
+				if(e.getValue().lastAccess < eldestAccess && !e.getKey().equals(keep))
+				{
+					eldest = e.getKey();
+					eldestAccess = e.getValue().lastAccess;
+				}
+			}
+
+			if(eldest != null && mEntries.remove(eldest) != null)
+				mEvictions.incrementAndGet();
+		}
+
+		private static final class Key
+		{
+			final String tzId;
+			final int epochDay;
+
+			Key(String tzId, int epochDay)
+			{
+				this.tzId = tzId;
+				this.epochDay = epochDay;
+			}
+
+			@Override
+			public boolean equals(Object o)
+			{
+				if(!(o instanceof Key))
+					return false;
+
+				final Key other = (Key) o;
+				return epochDay == other.epochDay && tzId.equals(other.tzId);
+			}
+
+			@Override
+			public int hashCode() {
+				return 31 * tzId.hashCode() + epochDay;
+			}
+		}
+
+		private static final class Entry
+		{
+			final Date date;
+			volatile long lastAccess;
+
+			Entry(Date date) {
+				this.date = date;
+			}
+		}
 	}
 }
@@ -56,7 +56,6 @@ import at.jclehner.rxdroid.Fraction;
 import at.jclehner.rxdroid.R;
 import at.jclehner.rxdroid.RxDroid;
 import at.jclehner.rxdroid.Settings;
-import at.jclehner.rxdroid.Settings.Keys;
 import at.jclehner.rxdroid.Theme;
 import at.jclehner.rxdroid.db.Drug;
 import at.jclehner.rxdroid.db.Schedule;
@@ -415,6 +414,10 @@ public final class Util
 		picker.setCurrentMinute(time.getMinutes());
 	}
 
+	public static DumbTime getTimePickerTime(TimePicker picker) {
+		return new DumbTime(picker.getCurrentHour(), picker.getCurrentMinute());
+	}
+
 	public static String arrayToString(Object array)
 	{
 		if(array == null)
@@ -591,8 +594,7 @@ public final class Util
 
 	public static String prettify(Fraction frac)
 	{
-		if(!BuildConfig.DEBUG
-				|| !Settings.getBoolean(Keys.USE_PRETTY_FRACTIONS, false))
+		if(!BuildConfig.DEBUG || !Settings.snapshot().usePrettyFractions)
 			return frac.toString();
 
 		// Characters for fifths and sixths are available in the unicode specs,
@@ -32,13 +32,13 @@ import android.util.AttributeSet;
 import android.view.View;
 import android.widget.TextView;
 import at.jclehner.rxdroid.Fraction;
-import at.jclehner.rxdroid.Fraction.MutableFraction;
 import at.jclehner.rxdroid.R;
 import at.jclehner.rxdroid.db.Database;
 import at.jclehner.rxdroid.db.DoseEvent;
 import at.jclehner.rxdroid.db.Drug;
-import at.jclehner.rxdroid.db.Entries;
 import at.jclehner.rxdroid.db.Entry;
+import at.jclehner.rxdroid.db.ListenerRegistry;
+import at.jclehner.rxdroid.db.SupplyProjection;
 import at.jclehner.rxdroid.util.DateTime;
 import at.jclehner.rxdroid.util.Util;
 import at.jclehner.rxdroid.util.WrappedCheckedException;
@@ -49,6 +49,7 @@ public class DrugSupplyMonitor extends TextView implements
 	//private int mDrugId = -1;
 	private Drug mDrug;
 	private Date mDate;
+	private boolean mIsAttached = false;
 
 	public DrugSupplyMonitor(Context context) {
 		super(context);
@@ -69,6 +70,7 @@ public class DrugSupplyMonitor extends TextView implements
 	public void setDrug(Drug drug)
 	{
 		mDrug = drug;
+		updateRegistration();
 		updateText(drug, mDate);
 	}
 
@@ -82,6 +84,7 @@ public class DrugSupplyMonitor extends TextView implements
 	{
 		mDrug = drug;
 		mDate = date;
+		updateRegistration();
 		updateText(drug, date);
 	}
 
@@ -108,14 +111,30 @@ public class DrugSupplyMonitor extends TextView implements
 	protected void onAttachedToWindow()
 	{
 		super.onAttachedToWindow();
-		Database.registerEventListener(this);
+		mIsAttached = true;
+		updateRegistration();
 	}
 
 	@Override
 	protected void onDetachedFromWindow()
 	{
 		super.onDetachedFromWindow();
-		Database.unregisterEventListener(this);
+		mIsAttached = false;
+		ListenerRegistry.unregister(this);
+	}
+
+	/**
+	 * Registers for changes to the drug and its dose events on any date, if attached.
+	 */
+	private void updateRegistration()
+	{
+		if(mIsAttached && mDrug != null)
+		{
+			ListenerRegistry.register(this, mDrug.getId(), ListenerRegistry.ANY_DATE,
+					ListenerRegistry.ANY_DOSE_TIME);
+		}
+		else
+			ListenerRegistry.unregister(this);
 	}
 
 	private void updateTextIfApplicable(Entry entry)
@@ -150,17 +169,13 @@ public class DrugSupplyMonitor extends TextView implements
 		if(drug != null)
 		{
 			final Date today = DateTime.today();
-			MutableFraction currentSupply = drug.getCurrentSupply().mutate();
+			Fraction currentSupply = drug.getCurrentSupply();
 
 			if(date != null)
 			{
 				if(date.after(today))
-				{
-					//Fraction doseInTimePeriod_smart = Entries.getTotalDoseInTimePeriod_smart(drug, today, date);
-					Fraction doseInTimePeriod_dumb = Entries.getTotalDoseInTimePeriod_dumb(drug, today, date, true);
-					currentSupply.subtract(doseInTimePeriod_dumb);
-				}
-				else if(date.equals(today) && Entries.hasLowSupplies(drug))
+					currentSupply = SupplyProjection.getProjectedSupply(drug, date);
+				else if(date.equals(today) && SupplyProjection.hasLowSupplies(drug))
 				{
 					typeface = Typeface.BOLD_ITALIC;
 					textScaleX = 1.25f;
@@ -0,0 +1,57 @@
+/**
+ * RxDroid - A Medication Reminder
+ * Copyright (C) 2011-2013 Joseph Lehner <joseph.c.lehner@gmail.com>
+ *
+ *
+ * RxDroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RxDroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RxDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+
+package at.jclehner.rxdroid.test;
+
+import android.test.AndroidTestCase;
+import at.jclehner.rxdroid.Fraction;
+import at.jclehner.rxdroid.db.PackedFractionPersister;
+
+public class PackedFractionPersisterTest extends AndroidTestCase
+{
+	private static final String[] FRACTIONS = {
+			"5/4",
+			"23/9",
+			"7/8",
+			"3",
+			"-5",
+			"-21/4",
+			"-5/4",
+			"8/7"
+	};
+
+	public void testCanonicalInstances()
+	{
+		assertSame(Fraction.valueOf(1, 4), PackedFractionPersister.unpack(PackedFractionPersister.pack(new Fraction(1, 4))));
+		assertEquals(Fraction.ZERO, PackedFractionPersister.unpack(0));
+	}
+
+	public void testPackedRoundTrip()
+	{
+		for(String s : FRACTIONS)
+		{
+			final Fraction f = Fraction.valueOf(s);
+			final Fraction unpacked = PackedFractionPersister.unpack(PackedFractionPersister.pack(f));
+
+			assertEquals(f.toString(), unpacked.toString());
+		}
+	}
+}
@@ -224,6 +224,27 @@ public class PreferencesTest extends AndroidTestCase
 
 	}
 
+	public void testWriteBehind()
+	{
+		final String key = "__test_write_behind__";
+
+		Settings.putString(key, "foo");
+		assertEquals("foo", Settings.getString(key));
+		assertTrue(Settings.contains(key));
+
+		Settings.flush();
+		assertEquals("foo", mPrefs.getString(key, null));
+
+		Settings.putInt(key + "_int", 1);
+		Settings.putInt(key + "_int", 2);
+		assertEquals(2, Settings.getInt(key + "_int"));
+
+		Settings.flush();
+		assertEquals(2, mPrefs.getInt(key + "_int", 0));
+
+		mPrefs.edit().remove(key).remove(key + "_int").commit();
+	}
+
 	@Override
 	protected void setUp()
 	{